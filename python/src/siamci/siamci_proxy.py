@@ -152,6 +152,22 @@ class SiamCiAdapterProxy():
         defer.returnValue(response)
     
     
+    @defer.inlineCallbacks
+    def stats(self):
+        """
+        Gets the latency statistics of the SIAM-CI adapter service: for each command and
+        stage a pair "command.stage" -> "n=.. mean=.. p50=.. p90=.. p99=.. max=.." (milliseconds),
+        and for each worker pool a pair "pool.NAME" -> description.
+        """
+        cmd = yield self._make_command("stats")
+        response = yield self._rpc(cmd)
+        
+        if log.getEffectiveLevel() <= logging.DEBUG:
+            log.debug(_show_message(response, "stats response:"))
+        
+        defer.returnValue(response)
+    
+    
     @defer.inlineCallbacks
     def get_channels(self, publish_stream=None):
         """
@@ -281,9 +297,35 @@ class SiamCiAdapterProxy():
         
         
     @defer.inlineCallbacks
-    def execute_StartAcquisition(self, channel, publish_stream):
+    def execute_StartAcquisition(self, channel, publish_stream,
+                                 batch_max_samples=None, batch_max_latency=None,
+                                 encoding=None, overflow=None,
+                                 backfill_start=None, backfill_duration=None,
+                                 aggregate_window=None, aggregate_slide=None,
+                                 deadband=None, deadband_relative=None,
+                                 heartbeat=None):
         """
         Sends a execute_StartAcquisition command.
+        
+        @param batch_max_samples: if given, samples are published in batches
+               of at most this number of samples
+        @param batch_max_latency: if given, maximum time in milliseconds a
+               sample is held before being published
+        @param encoding: "map" (default) or "packed"
+        @param overflow: "drop_oldest" (default), "conflate" or "block"
+        @param backfill_start: if given, RBNB time (seconds since the epoch)
+               from which historical data is published before the live data
+        @param backfill_duration: if given, seconds of historical data to
+               publish before the live data
+        @param aggregate_window: if given, seconds of each window over which
+               count, min, max and mean are published instead of the samples
+        @param aggregate_slide: if given, seconds between windows (sliding
+               windows); by default, windows are tumbling
+        @param deadband: if given, a sample is published only if it differs
+               from the last published value by more than this (0: any change)
+        @param deadband_relative: same, as a fraction of the last value
+        @param heartbeat: if given, seconds after which a sample is published
+               even if within the deadband
         """
 
         assert(channel is not None)
@@ -292,6 +334,28 @@ class SiamCiAdapterProxy():
         log.debug("execute_StartAcquisition: channel='%s' publish_stream='%s'" % (str(channel), str(publish_stream)))
         
         args = [("port", self.port), ("channel", channel)]
+        if batch_max_samples is not None:
+            args.append(("batch_max_samples", str(batch_max_samples)))
+        if batch_max_latency is not None:
+            args.append(("batch_max_latency", str(batch_max_latency)))
+        if encoding is not None:
+            args.append(("encoding", encoding))
+        if overflow is not None:
+            args.append(("overflow", overflow))
+        if backfill_start is not None:
+            args.append(("backfill_start", str(backfill_start)))
+        if backfill_duration is not None:
+            args.append(("backfill_duration", str(backfill_duration)))
+        if aggregate_window is not None:
+            args.append(("aggregate_window", str(aggregate_window)))
+        if aggregate_slide is not None:
+            args.append(("aggregate_slide", str(aggregate_slide)))
+        if deadband is not None:
+            args.append(("deadband", str(deadband)))
+        if deadband_relative is not None:
+            args.append(("deadband_relative", str(deadband_relative)))
+        if heartbeat is not None:
+            args.append(("heartbeat", str(heartbeat)))
              
         cmd = yield self._make_command("execute_StartAcquisition", args, publish_stream)
         response = yield self._rpc(cmd)
@@ -0,0 +1,483 @@
+package net.ooici.siamci;
+
+import net.ooici.siamci.utils.WindowAggregator;
+
+/**
+ * Options for the publication of data in a data acquisition. These are given
+ * as optional arguments of the execute_StartAcquisition command:
+ * <ul>
+ * <li>"batch_max_samples": maximum number of samples per published message
+ * <li>"batch_max_latency": maximum time in milliseconds a sample is held
+ * before being published
+ * <li>"encoding": "map" (default) to publish the samples as a map of strings,
+ * or "packed" to publish them in the compact binary encoding given by
+ * {@link net.ooici.siamci.utils.PackedSamples}
+ * <li>"overflow": what to do when the samples arrive faster than they can be
+ * published, see {@link Overflow}
+ * <li>"backfill_start": RBNB time (seconds since the epoch) of the first
+ * historical sample to publish before the live data
+ * <li>"backfill_duration": alternatively, the length in seconds of the
+ * history to publish, counted back from the newest sample on the server
+ * <li>"aggregate_window": length in seconds of the windows over which the
+ * samples are summarized (count, min, max, mean) instead of being published
+ * individually
+ * <li>"aggregate_slide": step in seconds between consecutive windows; equal
+ * to the window (tumbling windows) by default. The window must be a multiple
+ * of it.
+ * <li>"deadband": publish a sample only if its value differs from the last
+ * published one by more than this; 0 to publish on any change
+ * <li>"deadband_relative": same, as a fraction of the last published value
+ * <li>"heartbeat": publish a sample anyway if this many seconds have passed
+ * since the last published one; if given alone, the samples are published on
+ * any change or on the heartbeat
+ * </ul>
+ * Batching is enabled if any of the two limits is positive; samples are then
+ * accumulated and published together when either limit is reached. If only
+ * one of the limits is given, the other one takes a default value, so data is
+ * never held indefinitely nor buffered without bound.
+ *
+ * @author carueda
+ */
+public class AcquisitionOptions {
+
+    /**
+     * Policy when the queue between the RBNB fetch and the publication of a
+     * stream is full.
+     */
+    public enum Overflow {
+        /**
+         * The fetch waits for room, but all the channels of the RBNB server
+         * are held up meanwhile, so the wait is bounded by the system
+         * property "siamci.data.blockMaxMs" (default: 1000), after which the
+         * oldest samples are dropped as with DROP_OLDEST.
+         */
+        BLOCK,
+
+        /** The oldest queued samples are dropped (default) */
+        DROP_OLDEST,
+
+        /**
+         * Only the samples of the latest fetch are kept, so the stream always
+         * gets the most recent data.
+         */
+        CONFLATE;
+
+        /** Value of the "overflow" argument */
+        public String getArgValue() {
+            return name().toLowerCase();
+        }
+
+        /**
+         * Gets the policy for an "overflow" argument value.
+         *
+         * @throws IllegalArgumentException
+         *             if the value is not recognized.
+         */
+        public static Overflow fromArgValue(String value) {
+            for (Overflow overflow : values()) {
+                if (overflow.getArgValue().equals(value)) {
+                    return overflow;
+                }
+            }
+            throw new IllegalArgumentException("invalid value for '"
+                    + OVERFLOW + "': '" + value + "'");
+        }
+    }
+
+    /** Argument name for the maximum number of samples per message */
+    public static final String BATCH_MAX_SAMPLES = "batch_max_samples";
+
+    /** Argument name for the maximum latency in milliseconds */
+    public static final String BATCH_MAX_LATENCY = "batch_max_latency";
+
+    /** Argument name for the encoding of the published samples */
+    public static final String ENCODING = "encoding";
+
+    /** Value of the {@link #ENCODING} argument for the default encoding */
+    public static final String ENCODING_MAP = "map";
+
+    /** Value of the {@link #ENCODING} argument for the packed encoding */
+    public static final String ENCODING_PACKED = "packed";
+
+    /** Argument name for the overflow policy */
+    public static final String OVERFLOW = "overflow";
+
+    /** Argument name for the start time of the historical data */
+    public static final String BACKFILL_START = "backfill_start";
+
+    /** Argument name for the duration of the historical data */
+    public static final String BACKFILL_DURATION = "backfill_duration";
+
+    /** Argument name for the length of the aggregation windows */
+    public static final String AGGREGATE_WINDOW = "aggregate_window";
+
+    /** Argument name for the step between aggregation windows */
+    public static final String AGGREGATE_SLIDE = "aggregate_slide";
+
+    /** Argument name for the absolute deadband */
+    public static final String DEADBAND = "deadband";
+
+    /** Argument name for the relative deadband */
+    public static final String DEADBAND_RELATIVE = "deadband_relative";
+
+    /** Argument name for the heartbeat interval in seconds */
+    public static final String HEARTBEAT = "heartbeat";
+
+    /** Maximum samples per message if only the latency is given */
+    public static final int DEFAULT_MAX_SAMPLES = 1000;
+
+    /** Maximum latency in milliseconds if only the samples are given */
+    public static final long DEFAULT_MAX_LATENCY = 1000;
+
+    /** No batching: the samples of each fetch are published right away */
+    public static final AcquisitionOptions NONE = newBuilder().build();
+
+    /**
+     * Builds {@link AcquisitionOptions}; every option not set takes its
+     * default value.
+     */
+    public static class Builder {
+        private int batchMaxSamples;
+        private long batchMaxLatency;
+        private boolean packed;
+        private Overflow overflow = Overflow.DROP_OLDEST;
+        private double backfillStart;
+        private double backfillDuration;
+        private double aggregateWindow;
+        private double aggregateSlide;
+        private double deadband = -1;
+        private double deadbandRelative;
+        private double heartbeat;
+
+        private Builder() {
+        }
+
+        /** Maximum number of samples per message; 0 for default */
+        public Builder setBatchMaxSamples(int batchMaxSamples) {
+            this.batchMaxSamples = batchMaxSamples;
+            return this;
+        }
+
+        /** Maximum latency in milliseconds; 0 for default */
+        public Builder setBatchMaxLatency(long batchMaxLatency) {
+            this.batchMaxLatency = batchMaxLatency;
+            return this;
+        }
+
+        /** True to use the packed encoding */
+        public Builder setPacked(boolean packed) {
+            this.packed = packed;
+            return this;
+        }
+
+        /** Overflow policy; DROP_OLDEST by default */
+        public Builder setOverflow(Overflow overflow) {
+            this.overflow = overflow;
+            return this;
+        }
+
+        /** RBNB time of the first historical sample; 0 for none */
+        public Builder setBackfillStart(double backfillStart) {
+            this.backfillStart = backfillStart;
+            return this;
+        }
+
+        /** Seconds of history before the newest sample; 0 for none */
+        public Builder setBackfillDuration(double backfillDuration) {
+            this.backfillDuration = backfillDuration;
+            return this;
+        }
+
+        /** Seconds of each aggregation window; 0 for no aggregation */
+        public Builder setAggregateWindow(double aggregateWindow) {
+            this.aggregateWindow = aggregateWindow;
+            return this;
+        }
+
+        /** Seconds between aggregation windows; 0 for tumbling windows */
+        public Builder setAggregateSlide(double aggregateSlide) {
+            this.aggregateSlide = aggregateSlide;
+            return this;
+        }
+
+        /**
+         * Absolute deadband; 0 to publish on any change; negative (default)
+         * for none
+         */
+        public Builder setDeadband(double deadband) {
+            this.deadband = deadband;
+            return this;
+        }
+
+        /** Relative deadband; 0 for none */
+        public Builder setDeadbandRelative(double deadbandRelative) {
+            this.deadbandRelative = deadbandRelative;
+            return this;
+        }
+
+        /** Heartbeat interval in seconds; 0 for none */
+        public Builder setHeartbeat(double heartbeat) {
+            this.heartbeat = heartbeat;
+            return this;
+        }
+
+        /**
+         * Creates the options.
+         * 
+         * @throws IllegalArgumentException
+         *             if any of the values is negative (other than the
+         *             deadband), if both backfill values are given, if
+         *             backfill is requested with the CONFLATE policy, if the
+         *             aggregation windows are invalid (see
+         *             {@link WindowAggregator}), if aggregation is requested
+         *             together with batching, the packed encoding or the
+         *             deadband filter.
+         */
+        public AcquisitionOptions build() {
+            return new AcquisitionOptions(this);
+        }
+    }
+
+    /**
+     * Gets a builder of options.
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    private final int batchMaxSamples;
+    private final long batchMaxLatency;
+    private final boolean packed;
+    private final Overflow overflow;
+    private final double backfillStart;
+    private final double backfillDuration;
+    private final double aggregateWindow;
+    private final double aggregateSlide;
+    private final double deadband;
+    private final double deadbandRelative;
+    private final double heartbeat;
+
+    private AcquisitionOptions(Builder builder) {
+        int batchMaxSamples = builder.batchMaxSamples;
+        long batchMaxLatency = builder.batchMaxLatency;
+        boolean packed = builder.packed;
+        Overflow overflow = builder.overflow;
+        double backfillStart = builder.backfillStart;
+        double backfillDuration = builder.backfillDuration;
+        double aggregateWindow = builder.aggregateWindow;
+        double aggregateSlide = builder.aggregateSlide;
+        double deadband = builder.deadband;
+        double deadbandRelative = builder.deadbandRelative;
+        double heartbeat = builder.heartbeat;
+
+        if (deadbandRelative < 0) {
+            throw new IllegalArgumentException(DEADBAND_RELATIVE
+                    + " cannot be negative");
+        }
+        if (heartbeat < 0) {
+            throw new IllegalArgumentException(HEARTBEAT
+                    + " cannot be negative");
+        }
+        this.deadbandRelative = deadbandRelative > 0 ? deadbandRelative : 0;
+        this.heartbeat = heartbeat > 0 ? heartbeat : 0;
+        this.deadband = deadband >= 0 || this.deadbandRelative > 0
+                || this.heartbeat > 0 ? Math.max(0, deadband) : -1;
+        if (this.deadband >= 0 && aggregateWindow > 0) {
+            throw new IllegalArgumentException("the deadband filter cannot "
+                    + "be combined with " + AGGREGATE_WINDOW);
+        }
+        if (aggregateSlide < 0) {
+            throw new IllegalArgumentException(AGGREGATE_SLIDE
+                    + " cannot be negative");
+        }
+        if (aggregateSlide > 0 && !(aggregateWindow > 0)) {
+            throw new IllegalArgumentException(AGGREGATE_SLIDE + " requires "
+                    + AGGREGATE_WINDOW);
+        }
+        if (aggregateWindow > 0) {
+            if (aggregateSlide <= 0) {
+                aggregateSlide = aggregateWindow;
+            }
+            WindowAggregator.getNumPanes(aggregateWindow, aggregateSlide);
+            if (packed || batchMaxSamples > 0 || batchMaxLatency > 0) {
+                throw new IllegalArgumentException(AGGREGATE_WINDOW
+                        + " cannot be combined with batching or the "
+                        + ENCODING_PACKED + " encoding");
+            }
+        }
+        else if (aggregateWindow < 0) {
+            throw new IllegalArgumentException(AGGREGATE_WINDOW
+                    + " cannot be negative");
+        }
+        else {
+            aggregateSlide = 0;
+        }
+        this.aggregateWindow = aggregateWindow > 0 ? aggregateWindow : 0;
+        this.aggregateSlide = aggregateSlide;
+        this.packed = packed;
+        this.overflow = overflow;
+        if (backfillStart < 0) {
+            throw new IllegalArgumentException(BACKFILL_START
+                    + " cannot be negative");
+        }
+        if (backfillDuration < 0) {
+            throw new IllegalArgumentException(BACKFILL_DURATION
+                    + " cannot be negative");
+        }
+        if (backfillStart > 0 && backfillDuration > 0) {
+            throw new IllegalArgumentException("only one of " + BACKFILL_START
+                    + " and " + BACKFILL_DURATION + " can be given");
+        }
+        if ((backfillStart > 0 || backfillDuration > 0)
+                && overflow == Overflow.CONFLATE) {
+            throw new IllegalArgumentException("backfill cannot be used with "
+                    + OVERFLOW + "=" + overflow.getArgValue());
+        }
+        this.backfillStart = backfillStart;
+        this.backfillDuration = backfillDuration;
+        if (batchMaxSamples < 0) {
+            throw new IllegalArgumentException(BATCH_MAX_SAMPLES
+                    + " cannot be negative");
+        }
+        if (batchMaxLatency < 0) {
+            throw new IllegalArgumentException(BATCH_MAX_LATENCY
+                    + " cannot be negative");
+        }
+        if (batchMaxSamples == 0 && batchMaxLatency == 0) {
+            this.batchMaxSamples = 0;
+            this.batchMaxLatency = 0;
+        }
+        else {
+            this.batchMaxSamples = batchMaxSamples > 0 ? batchMaxSamples
+                    : DEFAULT_MAX_SAMPLES;
+            this.batchMaxLatency = batchMaxLatency > 0 ? batchMaxLatency
+                    : DEFAULT_MAX_LATENCY;
+        }
+    }
+
+    /**
+     * @return true if samples are to be accumulated before publishing.
+     */
+    public boolean isBatching() {
+        return batchMaxSamples > 0;
+    }
+
+    /**
+     * @return the maximum number of samples per message; 0 if not batching.
+     */
+    public int getBatchMaxSamples() {
+        return batchMaxSamples;
+    }
+
+    /**
+     * @return the maximum latency in milliseconds; 0 if not batching.
+     */
+    public long getBatchMaxLatency() {
+        return batchMaxLatency;
+    }
+
+    /**
+     * @return true if the samples are to be published in the packed encoding.
+     */
+    public boolean isPacked() {
+        return packed;
+    }
+
+    /**
+     * @return the overflow policy.
+     */
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return true if historical data is to be published before the live
+     *         data.
+     */
+    public boolean isBackfill() {
+        return backfillStart > 0 || backfillDuration > 0;
+    }
+
+    /**
+     * @return the RBNB time of the first historical sample; 0 if not given.
+     */
+    public double getBackfillStart() {
+        return backfillStart;
+    }
+
+    /**
+     * @return the seconds of history before the newest sample; 0 if not
+     *         given.
+     */
+    public double getBackfillDuration() {
+        return backfillDuration;
+    }
+
+    /**
+     * @return true if the samples are to be summarized over windows.
+     */
+    public boolean isAggregating() {
+        return aggregateWindow > 0;
+    }
+
+    /**
+     * @return the length in seconds of the aggregation windows; 0 if not
+     *         aggregating.
+     */
+    public double getAggregateWindow() {
+        return aggregateWindow;
+    }
+
+    /**
+     * @return the step in seconds between aggregation windows; 0 if not
+     *         aggregating.
+     */
+    public double getAggregateSlide() {
+        return aggregateSlide;
+    }
+
+    /**
+     * @return true if only the samples passing a deadband filter are to be
+     *         published.
+     */
+    public boolean isDeadband() {
+        return deadband >= 0;
+    }
+
+    /**
+     * @return the absolute deadband; 0 for publishing on any change.
+     */
+    public double getDeadband() {
+        return Math.max(0, deadband);
+    }
+
+    /**
+     * @return the relative deadband; 0 if none.
+     */
+    public double getDeadbandRelative() {
+        return deadbandRelative;
+    }
+
+    /**
+     * @return the heartbeat interval in seconds; 0 if none.
+     */
+    public double getHeartbeat() {
+        return heartbeat;
+    }
+
+    public String toString() {
+        return (isBatching() ? "batch(maxSamples=" + batchMaxSamples
+                + ", maxLatency=" + batchMaxLatency + "ms)" : "no batching")
+                + ", encoding=" + (packed ? ENCODING_PACKED : ENCODING_MAP)
+                + ", overflow=" + overflow.getArgValue()
+                + (backfillStart > 0 ? ", backfillStart=" + backfillStart : "")
+                + (backfillDuration > 0 ? ", backfillDuration="
+                        + backfillDuration + "s" : "")
+                + (aggregateWindow > 0 ? ", aggregate(window="
+                        + aggregateWindow + "s, slide=" + aggregateSlide
+                        + "s)" : "")
+                + (deadband >= 0 ? ", deadband(absolute=" + deadband
+                        + ", relative=" + deadbandRelative + ", heartbeat="
+                        + heartbeat + "s)" : "");
+    }
+}
@@ -15,14 +15,18 @@ public interface IDataManager {
      * @param reqId
      * @param publishId
      * @param publishStream
+     * @param options
+     *            publication options
      * @throws Exception
      */
     public void startDataNotifier(String turbineName, int reqId,
-            String publishId, String publishStream) throws Exception;
+            String publishId, String publishStream, AcquisitionOptions options)
+            throws Exception;
 
     /**
      * Requests that the data notifier corresponding to the given parameters
-     * stop execution.
+     * stop execution. The notifier is identified by the turbineName,
+     * publishId and publishStream; reqId is only used for logging purposes.
      * 
      * @param turbineName
      * @param reqId
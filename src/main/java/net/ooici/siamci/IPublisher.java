@@ -1,5 +1,7 @@
 package net.ooici.siamci;
 
+import java.util.Map;
+
 import com.google.protobuf.GeneratedMessage;
 
 /**
@@ -27,4 +29,43 @@ public interface IPublisher {
 	public void publish(int reqId, String publishId, GeneratedMessage response,
 			String streamName);
 
+	/**
+	 * Publishes data samples in the compact binary encoding given by
+	 * {@link net.ooici.siamci.utils.PackedSamples}.
+	 * 
+	 * @param reqId
+	 *            ID of the request
+	 * @param publishId
+	 *            ID to correlate the request and the response
+	 * @param payload
+	 *            The encoded samples
+	 * @param streamName
+	 *            The queue (rounting key) where the payload should be
+	 *            published.
+	 */
+	public void publishPacked(int reqId, String publishId, byte[] payload,
+			String streamName);
+
+	/**
+	 * Like {@link #publish(int, String, GeneratedMessage, String)}, also
+	 * including the given headers in the published message.
+	 * 
+	 * @param headers
+	 *            Additional headers; they do not replace the standard ones
+	 *            (eg., "publish_id"). Can be null.
+	 */
+	public void publish(int reqId, String publishId, GeneratedMessage response,
+			String streamName, Map<String, String> headers);
+
+	/**
+	 * Like {@link #publishPacked(int, String, byte[], String)}, also
+	 * including the given headers in the published message.
+	 * 
+	 * @param headers
+	 *            Additional headers; they do not replace the standard ones
+	 *            (eg., "publish_id"). Can be null.
+	 */
+	public void publishPacked(int reqId, String publishId, byte[] payload,
+			String streamName, Map<String, String> headers);
+
 }
\ No newline at end of file
@@ -34,11 +34,21 @@ public interface IRequestProcessor {
      * submission of the request, and the actual response will be published to
      * the queue indicated in the "publish_stream" field of the request.
      * 
+     * <p>
+     * The deadline is the time by which the requester expects the response
+     * (see the "expiry" header of the request). Synchronous calls to SIAM are
+     * abandoned once the deadline has passed, in which case a fail response
+     * is returned.
+     * 
      * @param reqId
      *            ID of the request
      * @param cmd
      *            The request (at this point, a command).
+     * @param deadline
+     *            Deadline for the response in milliseconds since the epoch; 0
+     *            means no deadline.
      * @return The resulting message.
      */
-    public GeneratedMessage processRequest(int reqId, Command cmd);
+    public GeneratedMessage processRequest(int reqId, Command cmd,
+            long deadline);
 }
@@ -35,4 +35,15 @@ public interface IRequestProcessors {
      */
     public IRequestProcessor getRequestProcessor(String id);
 
+    /**
+     * Returns the lane in which the given type of request is to be
+     * dispatched.
+     * 
+     * @param id
+     *            ID of the processor
+     * @return the lane, never null. Unrecognized IDs are assigned to
+     *         {@link RequestLane#STATUS}.
+     */
+    public RequestLane getRequestLane(String id);
+
 }
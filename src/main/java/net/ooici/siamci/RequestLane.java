@@ -0,0 +1,31 @@
+package net.ooici.siamci;
+
+/**
+ * The lanes in which requests are dispatched. Each lane has its own pool of
+ * threads, so requests in one lane are not held up by slow requests in
+ * another lane. See {@link IRequestProcessors#getRequestLane(String)}.
+ * 
+ * @author carueda
+ */
+public enum RequestLane {
+
+    /**
+     * Quick commands that change the state of the system (stop acquisition,
+     * set parameters); these must stay responsive under load.
+     */
+    CONTROL,
+
+    /**
+     * Start of acquisitions, which involves several SIAM calls and the setup
+     * of the data notification; kept apart so a burst of starts does not hold
+     * up the CONTROL commands, in particular the stops.
+     */
+    ACQUISITION,
+
+    /** Quick queries about the current state of an instrument */
+    STATUS,
+
+    /** Queries that may take long, eg., listing all ports of a node */
+    BULK,
+
+}
@@ -5,6 +5,7 @@ import net.ooici.siamci.IDataManagers;
 import net.ooici.siamci.IDataRequestProcessor;
 import net.ooici.siamci.IRequestProcessor;
 import net.ooici.siamci.IRequestProcessors;
+import net.ooici.siamci.RequestLane;
 import net.ooici.siamci.impl.reqproc.BaseRequestProcessor;
 import net.ooici.siamci.impl.reqproc.EchoRequestProcessor;
 import net.ooici.siamci.impl.reqproc.FetchParamsRequestProcessor;
@@ -14,6 +15,7 @@ import net.ooici.siamci.impl.reqproc.GetStatusRequestProcessor;
 import net.ooici.siamci.impl.reqproc.ListPortsRequestProcessor;
 import net.ooici.siamci.impl.reqproc.SetParamsRequestProcessor;
 import net.ooici.siamci.impl.reqproc.StartOrStopAcquisitionRequestProcessor;
+import net.ooici.siamci.impl.reqproc.StatsRequestProcessor;
 import net.ooici.siamci.utils.ScUtils;
 
 import org.slf4j.Logger;
@@ -39,31 +41,35 @@ class RequestProcessors implements IRequestProcessors {
      */
     private enum RP {
 
-        echo(new EchoRequestProcessor()),
+        echo(RequestLane.STATUS, new EchoRequestProcessor()),
 
-        list_ports(new ListPortsRequestProcessor()),
+        list_ports(RequestLane.BULK, new ListPortsRequestProcessor()),
 
-        get_channels(new GetChannelsRequestProcessor()),
+        get_channels(RequestLane.BULK, new GetChannelsRequestProcessor()),
 
-        get_status(new GetStatusRequestProcessor()),
+        get_status(RequestLane.STATUS, new GetStatusRequestProcessor()),
         
-        get_last_sample(new GetLastSampleRequestProcessor()),
+        get_last_sample(RequestLane.STATUS, new GetLastSampleRequestProcessor()),
 
-        fetch_params(new FetchParamsRequestProcessor()),
+        fetch_params(RequestLane.BULK, new FetchParamsRequestProcessor()),
 
-        set_params(new SetParamsRequestProcessor()),
+        set_params(RequestLane.CONTROL, new SetParamsRequestProcessor()),
 
-        execute_StartAcquisition(
+        execute_StartAcquisition(RequestLane.ACQUISITION,
                 new StartOrStopAcquisitionRequestProcessor(true)),
 
-        execute_StopAcquisition(
+        execute_StopAcquisition(RequestLane.CONTROL,
                 new StartOrStopAcquisitionRequestProcessor(false)),
 
+        stats(RequestLane.STATUS, new StatsRequestProcessor()),
+
         ;
 
+        private RequestLane lane;
         private BaseRequestProcessor reqProc;
 
-        RP(BaseRequestProcessor reqProc) {
+        RP(RequestLane lane, BaseRequestProcessor reqProc) {
+            this.lane = lane;
             this.reqProc = reqProc;
         }
 
@@ -108,8 +114,19 @@ class RequestProcessors implements IRequestProcessors {
         }
     }
 
+    public RequestLane getRequestLane(String id) {
+        try {
+            RP rp = RP.valueOf(id);
+            return rp.lane;
+        }
+        catch (IllegalArgumentException e) {
+            return RequestLane.STATUS;
+        }
+    }
+
     private static BaseRequestProcessor _unrecognizedRequestProcessor = new BaseRequestProcessor() {
-        public GeneratedMessage processRequest(int reqId, Command cmd) {
+        public GeneratedMessage processRequest(int reqId, Command cmd,
+                long deadline) {
             String cmdName = cmd.getCommand();
             String description = _rid(reqId) + "Command '" + cmdName
                     + "' not recognized";
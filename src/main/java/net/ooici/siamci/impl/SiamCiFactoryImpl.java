@@ -6,7 +6,11 @@ import net.ooici.siamci.ISiamCiAdapter;
 import net.ooici.siamci.ISiamCiFactory;
 import net.ooici.siamci.impl.data.DataManagers;
 import net.ooici.siamci.impl.ionmsg.SiamCiAdapterIonMsg;
+import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.WorkerPools;
 import siam.AsyncSiam;
+import siam.CachingSiam;
+import siam.CoalescingSiam;
 import siam.IAsyncSiam;
 import siam.ISiam;
 import siam.Siam;
@@ -22,11 +26,15 @@ public class SiamCiFactoryImpl implements ISiamCiFactory {
     private final IDataManagers dataManagers = new DataManagers();
 
     public ISiam createSiam(String host) throws Exception {
-        return new Siam(host);
+        // identical concurrent reads share a single call to the SIAM node,
+        // and the results of the rarely changing ones are kept for a while
+        CachingSiam siam = new CachingSiam(new CoalescingSiam(new Siam(host)));
+        ScUtils.registerMBean(siam, "SiamCache", host);
+        return siam;
     }
 
     public IAsyncSiam createAsyncSiam(ISiam siam) throws Exception {
-        return new AsyncSiam(siam);
+        return new AsyncSiam(siam, WorkerPools.getPool("siam", 8, 64));
     }
 
     public IRequestProcessors createRequestProcessors(ISiam siam) {
@@ -0,0 +1,274 @@
+package net.ooici.siamci.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.ooici.siamci.AcquisitionOptions.Overflow;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rbnb.sapi.ChannelMap;
+
+/**
+ * The acquisition of data from a RBNB channel, shared by all the publish
+ * streams subscribed to the channel. The data of each fetch is extracted once
+ * and fanned out to the {@link DataNotifier} of each subscriber.
+ *
+ * <p>
+ * Subscribers are added and removed by the {@link DataManager}, which tears
+ * down the acquisition when its last subscriber leaves.
+ *
+ * <p>
+ * While the fetcher reconnects to the RBNB server, the subscribers are kept
+ * and notified of the "reconnecting" state. Once the data flows again, each
+ * subscriber is notified of the "live" state and its stream is resumed from
+ * its last published sample by a backfill, so the data available in the RBNB
+ * ring buffer during the outage is not lost. Streams with the CONFLATE
+ * overflow policy, which only want the latest data, are not backfilled.
+ *
+ * <p>
+ * When the fetcher renews its subscription to add a channel, the data starts
+ * again from some time already delivered (see {@link RbnbFetcher}); the
+ * samples not newer than the last one received are skipped.
+ *
+ * @author carueda
+ */
+class Acquisition implements RbnbFetcher.Listener {
+
+    private static final Logger log = LoggerFactory.getLogger(Acquisition.class);
+
+    private final String turbineName;
+    private final DataManager dataManager;
+
+    /** "live" or "reconnecting" */
+    private volatile String state = "live";
+
+    /** time of the newest sample received; fetch thread only */
+    private double newestTime = Double.NEGATIVE_INFINITY;
+
+    /** subscriber key -> notifier */
+    private final Map<String, DataNotifier> subscribers = new ConcurrentHashMap<String, DataNotifier>();
+
+    /**
+     * @param turbineName
+     *            qualified name of the RBNB channel
+     * @param dataManager
+     *            to start the backfill of the subscribers upon a reconnection
+     */
+    Acquisition(String turbineName, DataManager dataManager) {
+        this.turbineName = turbineName;
+        this.dataManager = dataManager;
+    }
+
+    /**
+     * Gets the key of a subscriber.
+     */
+    static String getSubscriberKey(String publishId, String publishStream) {
+        return publishStream + "|" + publishId;
+    }
+
+    String getTurbineName() {
+        return turbineName;
+    }
+
+    DataNotifier getSubscriber(String key) {
+        return subscribers.get(key);
+    }
+
+    void addSubscriber(String key, DataNotifier dataNotifier) {
+        subscribers.put(key, dataNotifier);
+        if (!"live".equals(state)) {
+            dataNotifier.notifyState(state, null);
+        }
+    }
+
+    /**
+     * Removes a subscriber.
+     *
+     * @return the removed notifier, or null if there was no such subscriber.
+     */
+    DataNotifier removeSubscriber(String key) {
+        return subscribers.remove(key);
+    }
+
+    /**
+     * Removes the subscribers publishing to the given stream.
+     *
+     * @return the removed notifiers.
+     */
+    List<DataNotifier> removeSubscribers(String publishStream) {
+        List<DataNotifier> removed = new ArrayList<DataNotifier>();
+        for (String key : subscribers.keySet()) {
+            DataNotifier dataNotifier = subscribers.get(key);
+            if (dataNotifier != null
+                    && publishStream.equals(dataNotifier.getPublishStream())
+                    && subscribers.remove(key) != null) {
+                removed.add(dataNotifier);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes all subscribers.
+     *
+     * @return the removed notifiers.
+     */
+    List<DataNotifier> removeAllSubscribers() {
+        List<DataNotifier> removed = new ArrayList<DataNotifier>();
+        for (String key : subscribers.keySet()) {
+            DataNotifier dataNotifier = subscribers.remove(key);
+            if (dataNotifier != null) {
+                removed.add(dataNotifier);
+            }
+        }
+        return removed;
+    }
+
+    boolean hasSubscribers() {
+        return !subscribers.isEmpty();
+    }
+
+    int getNumSubscribers() {
+        return subscribers.size();
+    }
+
+    /**
+     * {@link RbnbFetcher.Listener} operation.
+     */
+    public void dataReceived(ChannelMap getmap, int index) {
+        double[] values = getmap.GetDataAsFloat64(index);
+        if (values.length == 0) {
+            return;
+        }
+        double[] times = getmap.GetTimes(index);
+        boolean timed = times != null && times.length >= values.length;
+        if (!timed) {
+            double[] padded = new double[values.length];
+            if (times != null) {
+                System.arraycopy(times, 0, padded, 0, times.length);
+            }
+            times = padded;
+        }
+
+        if (timed) {
+            // skip the samples delivered before a renewed subscription:
+            int first = 0;
+            while (first < values.length && times[first] <= newestTime) {
+                first++;
+            }
+            if (first == values.length) {
+                return;
+            }
+            if (first > 0) {
+                double[] newValues = new double[values.length - first];
+                System.arraycopy(values, first, newValues, 0, newValues.length);
+                double[] newTimes = new double[values.length - first];
+                System.arraycopy(times, first, newTimes, 0, newTimes.length);
+                values = newValues;
+                times = newTimes;
+            }
+            newestTime = times[times.length - 1];
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("{" + turbineName + "} -> " + values.length
+                    + " sample(s) to " + subscribers.size() + " subscriber(s)");
+        }
+
+        for (DataNotifier dataNotifier : subscribers.values()) {
+            try {
+                dataNotifier.samplesReceived(values, times);
+            }
+            catch (RuntimeException e) {
+                log.warn("{" + turbineName + "} error notifying data to '"
+                        + dataNotifier.getPublishStream() + "'", e);
+            }
+        }
+    }
+
+    /**
+     * {@link RbnbFetcher.Listener} operation.
+     */
+    public void fetchFailed(String reason) {
+        for (DataNotifier dataNotifier : removeAllSubscribers()) {
+            dataNotifier.stop(reason);
+        }
+    }
+
+    /**
+     * {@link RbnbFetcher.Listener} operation.
+     */
+    public void fetchInterrupted(String reason) {
+        state = "reconnecting";
+        for (DataNotifier dataNotifier : subscribers.values()) {
+            dataNotifier.notifyState(state, reason);
+        }
+    }
+
+    /**
+     * {@link RbnbFetcher.Listener} operation. Notifies the subscribers and
+     * starts the backfill of the data missed since their last sample.
+     */
+    public void fetchResumed() {
+        // the server may have been restarted with older times:
+        newestTime = Double.NEGATIVE_INFINITY;
+        state = "live";
+        for (DataNotifier dataNotifier : subscribers.values()) {
+            dataNotifier.notifyState(state, null);
+        }
+        _backfillSubscribers();
+    }
+
+    /**
+     * Starts the backfill of each subscriber from its last sample.
+     */
+    private void _backfillSubscribers() {
+        for (DataNotifier dataNotifier : subscribers.values()) {
+            double lastTime = dataNotifier.getLastTime();
+            if (lastTime == Double.NEGATIVE_INFINITY
+                    || dataNotifier.getOptions().getOverflow() == Overflow.CONFLATE
+                    || !dataNotifier.beginBackfill()) {
+                /*
+                 * nothing published yet, only the latest data wanted (as
+                 * for an explicit backfill, see AcquisitionOptions), or a
+                 * backfill already in progress
+                 */
+                continue;
+            }
+            try {
+                // start just after the last sample; duplicates are skipped
+                dataManager.startBackfill(turbineName,
+                        dataNotifier,
+                        lastTime,
+                        0);
+            }
+            catch (RejectedExecutionException e) {
+                log.warn("{" + turbineName + "} cannot resume '"
+                        + dataNotifier.getPublishStream()
+                        + "' from its last sample: data pool busy");
+                dataNotifier.endBackfill(Double.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    /**
+     * Gets the stats of each subscriber, see {@link DataNotifier#getStats()}.
+     */
+    List<String> getSubscriberStats() {
+        List<String> list = new ArrayList<String>();
+        for (DataNotifier dataNotifier : subscribers.values()) {
+            list.add(turbineName + ": " + dataNotifier.getStats());
+        }
+        return list;
+    }
+
+    public String toString() {
+        return turbineName + ": state=" + state + " subscribers="
+                + subscribers.size();
+    }
+}
@@ -0,0 +1,182 @@
+package net.ooici.siamci.impl.data;
+
+import net.ooici.siamci.utils.ScUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rbnb.sapi.ChannelMap;
+import com.rbnb.sapi.SAPIException;
+import com.rbnb.sapi.Sink;
+
+/**
+ * Streams the historical data of a channel to a {@link DataNotifier} in backfill
+ * mode, and then switches the notifier to the live data (see
+ * {@link DataNotifier#endBackfill(double)}).
+ *
+ * <p>
+ * The history is requested with its own RBNB connection, in ranges of
+ * "siamci.data.backfillChunk" seconds (default: 600), from the requested
+ * start time up to the newest sample on the server. If by then the live data
+ * started later than that newest sample, the newer range is requested too, so
+ * no data is missed at the switch. If the history cannot be retrieved, the
+ * notifier is switched to the live data anyway.
+ *
+ * <p>
+ * Besides the backfill requested at the start of an acquisition, this is also
+ * used to resume the streams from their last sample when the connection of
+ * the {@link RbnbFetcher} is restored.
+ *
+ * @author carueda
+ */
+class Backfill implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(Backfill.class);
+
+    /**
+     * Length in seconds of each requested range; system property
+     * "siamci.data.backfillChunk".
+     */
+    private static final int CHUNK_SECONDS = ScUtils.getIntProperty("siamci.data.backfillChunk",
+            600);
+
+    /** Timeout for the fetch of each requested range */
+    private static final long FETCH_TIMEOUT = 30 * 1000;
+
+    private final String rbnbHost;
+    private final String clientName;
+    private final String turbineName;
+    private final double backfillStart;
+    private final double backfillDuration;
+    private final DataNotifier dataNotifier;
+
+    /**
+     * @param rbnbHost
+     *            The RBNB server host
+     * @param clientName
+     *            name for the RBNB client
+     * @param turbineName
+     *            qualified name of the RBNB channel
+     * @param backfillStart
+     *            RBNB time of the first sample; if 0, the duration is used.
+     * @param backfillDuration
+     *            seconds of history before the newest sample
+     * @param dataNotifier
+     *            the notifier, already in backfill mode
+     */
+    Backfill(String rbnbHost, String clientName, String turbineName,
+            double backfillStart, double backfillDuration,
+            DataNotifier dataNotifier) {
+        this.rbnbHost = rbnbHost;
+        this.clientName = clientName;
+        this.turbineName = turbineName;
+        this.backfillStart = backfillStart;
+        this.backfillDuration = backfillDuration;
+        this.dataNotifier = dataNotifier;
+    }
+
+    public void run() {
+        Sink sink = new Sink();
+        boolean ended = false;
+        try {
+            sink.OpenRBNBConnection(rbnbHost, clientName);
+            ChannelMap channelMap = new ChannelMap();
+            channelMap.Add(turbineName);
+
+            double newest = _getNewestTime(sink, channelMap);
+            if (Double.isNaN(newest)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("{" + turbineName + "} no historical data");
+                }
+                return;
+            }
+            final double start = backfillStart > 0 ? backfillStart : newest
+                    - backfillDuration;
+
+            if (log.isDebugEnabled()) {
+                log.debug("{" + turbineName + "} backfill from " + start
+                        + " to " + newest);
+            }
+
+            double from = start;
+            while (dataNotifier.isRunning()) {
+                for (; from <= newest && dataNotifier.isRunning(); from += CHUNK_SECONDS) {
+                    sink.Request(channelMap, from, CHUNK_SECONDS, "absolute");
+                    ChannelMap getmap = sink.Fetch(FETCH_TIMEOUT, channelMap);
+                    _deliver(getmap, start);
+                }
+                if (dataNotifier.endBackfill(newest)) {
+                    ended = true;
+                    break;
+                }
+                // the live data started after newest: catch up from there
+                from = newest;
+                newest = _getNewestTime(sink, channelMap);
+            }
+        }
+        catch (SAPIException e) {
+            log.warn("{" + turbineName + "} error during backfill from "
+                    + rbnbHost + "; switching to live data", e);
+        }
+        catch (RuntimeException e) {
+            log.warn("{" + turbineName + "} error during backfill from "
+                    + rbnbHost + "; switching to live data", e);
+        }
+        finally {
+            sink.CloseRBNBConnection();
+            if (!ended) {
+                dataNotifier.endBackfill(Double.POSITIVE_INFINITY);
+            }
+        }
+    }
+
+    /**
+     * Passes the samples of the fetched map at or after the start time to the
+     * notifier.
+     */
+    private void _deliver(ChannelMap getmap, double start) {
+        int index = getmap == null ? -1 : getmap.GetIndex(turbineName);
+        if (index < 0) {
+            return;
+        }
+        double[] values = getmap.GetDataAsFloat64(index);
+        double[] times = getmap.GetTimes(index);
+        if (values.length == 0 || times == null
+                || times.length < values.length) {
+            return;
+        }
+        int first = 0;
+        while (first < values.length && times[first] < start) {
+            first++;
+        }
+        if (first < values.length) {
+            if (first > 0) {
+                double[] newValues = new double[values.length - first];
+                double[] newTimes = new double[newValues.length];
+                System.arraycopy(values, first, newValues, 0, newValues.length);
+                System.arraycopy(times, first, newTimes, 0, newTimes.length);
+                values = newValues;
+                times = newTimes;
+            }
+            dataNotifier.backfillReceived(values, times);
+        }
+    }
+
+    /**
+     * Gets the time of the newest sample of the channel on the server.
+     *
+     * @return the time, or NaN if the channel has no data.
+     */
+    private double _getNewestTime(Sink sink, ChannelMap channelMap)
+            throws SAPIException {
+        sink.Request(channelMap, 0, 0, "newest");
+        ChannelMap getmap = sink.Fetch(FETCH_TIMEOUT, channelMap);
+        int index = getmap == null ? -1 : getmap.GetIndex(turbineName);
+        if (index < 0) {
+            return Double.NaN;
+        }
+        double[] times = getmap.GetTimes(index);
+        return times == null || times.length == 0 ? Double.NaN
+                : times[times.length - 1];
+    }
+}
@@ -1,14 +1,18 @@
 package net.ooici.siamci.impl.data;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
+import net.ooici.siamci.AcquisitionOptions;
 import net.ooici.siamci.IDataManager;
 import net.ooici.siamci.event.EventMan;
 import net.ooici.siamci.event.ReturnEvent;
+import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.WorkerPools;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,29 +22,51 @@ import com.mycila.event.Subscriber;
 
 /**
  * Mechanism to dispatch the notification of new data from RBNB channels to
- * registered listeners.
+ * registered listeners. All the channels of interest are fetched by a single
+ * {@link RbnbFetcher}, that is, with one RBNB connection and one thread per
+ * data manager regardless of the number of channels.
  * 
- * Preliminary implementation, thread-safety is not guaranteed.
+ * <p>
+ * Each channel has a single {@link Acquisition}, shared by all the publish
+ * streams requesting its data, so the RBNB load does not grow with the
+ * number of consumers. The acquisition is torn down when its last subscriber
+ * leaves, either by a stop request or because of a {@link ReturnEvent}.
+ * 
+ * <p>
+ * If the options request backfill, the historical data is first published by
+ * a {@link Backfill} task (also run in the "data" pool) before the live data.
+ * The same mechanism resumes the streams from their last published sample
+ * after the fetcher recovers from a lost connection.
  * 
  * @author carueda
  */
-public class DataManager implements IDataManager, Subscriber<ReturnEvent> {
+public class DataManager implements IDataManager, Subscriber<ReturnEvent>,
+        DataManagerMBean {
 
     private static final Logger log = LoggerFactory.getLogger(DataManager.class);
 
-    private final ExecutorService execService = Executors.newCachedThreadPool();
+    /**
+     * Runs the RBNB fetchers. This pool (named "data") is shared by all data
+     * managers; it has no queue, so a fetcher is only accepted when a thread
+     * is available for it.
+     */
+    private final ExecutorService execService = WorkerPools.getPool("data",
+            64,
+            0);
 
     /**
-     * This map maintains the created DataNotifier objects, where the key is
-     * given by {@link #_getNotifierKey(String, int, String, String)}. <br/>
-     * key --> DataNotifier <br/>
-     * Notifiers that complete execution are removed from this map.
+     * The acquisitions in progress: turbineName --> {@link Acquisition}. <br/>
+     * An acquisition is removed when its last subscriber leaves. Guarded by
+     * itself.
      */
-    private final Map<String, DataNotifier> dataNotifiers = new HashMap<String, DataNotifier>();
+    private final Map<String, Acquisition> acquisitions = new HashMap<String, Acquisition>();
 
     private final String rbnbHost;
     private final String clientName;
 
+    /** Fetches the data for all the notifiers */
+    private final RbnbFetcher fetcher;
+
     /**
      * Creates a data notifier manager.
      * 
@@ -53,10 +79,13 @@ public class DataManager implements IDataManager, Subscriber<ReturnEvent> {
         super();
         this.rbnbHost = rbnbHost;
         this.clientName = clientName;
+        this.fetcher = new RbnbFetcher(rbnbHost, clientName);
 
         // subscribe to return event to stop corresponding data notifiers
         EventMan.subscribe(ReturnEvent.class, this);
 
+        ScUtils.registerMBean(this, "DataManager", toString());
+
         if (log.isDebugEnabled()) {
             log.debug("instance created: " + this);
         }
@@ -84,121 +113,205 @@ public class DataManager implements IDataManager, Subscriber<ReturnEvent> {
      * @param routingKey
      */
     private void _stopNotifiers(String routingKey) {
-        synchronized (dataNotifiers) {
-            for (Entry<String, DataNotifier> e : dataNotifiers.entrySet()) {
-                DataNotifier dn = e.getValue();
-                if (routingKey.equals(dn.getPublishStream())) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Stopping notifier key='" + e.getKey() + "'");
-                    }
-                    dn.stop("No delivery possible to rountingKey='"
-                            + routingKey + "'");
-                }
+        List<DataNotifier> stopped = new ArrayList<DataNotifier>();
+        synchronized (acquisitions) {
+            for (Acquisition acquisition : acquisitions.values()) {
+                stopped.addAll(acquisition.removeSubscribers(routingKey));
+            }
+        }
+        for (DataNotifier dn : stopped) {
+            if (log.isDebugEnabled()) {
+                log.debug("Stopping notifier {" + dn.getTurbineName()
+                        + "} stream='" + routingKey + "'");
             }
+            dn.stop("No delivery possible to rountingKey='" + routingKey
+                    + "'");
         }
     }
 
-    public void startDataNotifier(String turbineName, int reqId,
-            String publishId, String publishStream) throws Exception {
+    public void startDataNotifier(final String turbineName, int reqId,
+            String publishId, String publishStream, AcquisitionOptions options)
+            throws Exception {
 
-        final String key = _getNotifierKey(turbineName,
-                reqId,
-                publishId,
+        final String key = Acquisition.getSubscriberKey(publishId,
                 publishStream);
 
-        synchronized (dataNotifiers) {
-            DataNotifier dataNotifier = dataNotifiers.get(key);
-            if (dataNotifier != null) {
-                if (dataNotifier.isRunning()) {
+        synchronized (acquisitions) {
+            Acquisition acquisition = acquisitions.get(turbineName);
+            if (acquisition != null) {
+                DataNotifier dataNotifier = acquisition.getSubscriber(key);
+                if (dataNotifier != null && dataNotifier.isRunning()) {
                     if (log.isDebugEnabled()) {
-                        log.debug("data notifier already created and running. key='"
-                                + key + "'");
+                        log.debug("data notifier already created and running. {"
+                                + turbineName + "} key='" + key + "'");
                     }
                     return;
                 }
-                else {
-                    if (log.isDebugEnabled()) {
-                        log.debug("re-running data notifier already created. key='"
-                                + key + "'");
-                    }
-                }
+                // no-op unless the fetcher dropped it upon a failure:
+                fetcher.addListener(turbineName, acquisition);
             }
             else {
-                dataNotifier = new DataNotifier(rbnbHost,
-                        clientName,
-                        turbineName,
-                        reqId,
-                        publishId,
-                        publishStream) {
-
-                    @Override
-                    protected void _completed(String reason) {
-                        _removeNotifier(key);
-
-                        String str = "DataNotifier completed. key='" + key
-                                + "'";
-                        if (reason != null) {
-                            str += " Reason: " + reason;
-                        }
-                        /*
-                         * TODO could be a log.debug but log.info seems
-                         * convenient for the moment
-                         */
-                        log.info(str);
+                acquisition = new Acquisition(turbineName, this);
+                acquisitions.put(turbineName, acquisition);
+                fetcher.addListener(turbineName, acquisition);
+                if (log.isDebugEnabled()) {
+                    log.debug("Acquisition created: {" + turbineName + "}");
+                }
+            }
+
+            DataNotifier dataNotifier = new DataNotifier(turbineName,
+                    reqId,
+                    publishId,
+                    publishStream,
+                    options) {
+
+                @Override
+                protected void _completed(String reason) {
+                    _removeSubscriber(turbineName, key, this);
+
+                    String str = "DataNotifier completed. {" + turbineName
+                            + "} key='" + key + "'";
+                    if (reason != null) {
+                        str += " Reason: " + reason;
                     }
-                };
+                    /*
+                     * TODO could be a log.debug but log.info seems convenient
+                     * for the moment
+                     */
+                    log.info(str);
+                }
+            };
+            dataNotifier.started();
+            if (options.isBackfill()) {
+                // live data is held until the history is published:
+                dataNotifier.beginBackfill();
+            }
+            acquisition.addSubscriber(key, dataNotifier);
 
-                dataNotifiers.put(key, dataNotifier);
-                if (log.isDebugEnabled()) {
-                    log.debug("DataNotifier created: key='" + key + "'");
+            if (fetcher.needsStart()) {
+                try {
+                    execService.submit(fetcher);
+                }
+                catch (RejectedExecutionException e) {
+                    fetcher.startFailed();
+                    acquisition.removeSubscriber(key);
+                    _removeIfUnused(acquisition);
+                    throw new Exception("Busy: cannot start data notifier ("
+                            + execService + ")");
+                }
+            }
+            if (options.isBackfill()) {
+                try {
+                    startBackfill(turbineName,
+                            dataNotifier,
+                            options.getBackfillStart(),
+                            options.getBackfillDuration());
+                }
+                catch (RejectedExecutionException e) {
+                    acquisition.removeSubscriber(key);
+                    _removeIfUnused(acquisition);
+                    throw new Exception("Busy: cannot start backfill ("
+                            + execService + ")");
                 }
             }
-            execService.submit(dataNotifier);
             if (log.isDebugEnabled()) {
-                log.debug("DataNotifier started: key='" + key + "'");
+                log.debug("DataNotifier started: {" + turbineName + "} key='"
+                        + key + "' " + options + "; subscribers="
+                        + acquisition.getNumSubscribers());
             }
         }
 
     }
 
+    /**
+     * Starts a {@link Backfill} for a notifier already in backfill mode.
+     * 
+     * @param start
+     *            RBNB time of the first sample; if 0, the duration is used.
+     * @param duration
+     *            seconds of history before the newest sample
+     * @throws RejectedExecutionException
+     *             if the "data" pool is busy.
+     */
+    void startBackfill(String turbineName, DataNotifier dataNotifier,
+            double start, double duration) {
+        execService.submit(new Backfill(rbnbHost,
+                clientName + "_backfill",
+                turbineName,
+                start,
+                duration,
+                dataNotifier));
+    }
+
     public void stopDataNotifier(String turbineName, int reqId,
             String publishId, String publishStream) throws Exception {
 
-        final String key = _getNotifierKey(turbineName,
-                reqId,
-                publishId,
+        final String key = Acquisition.getSubscriberKey(publishId,
                 publishStream);
 
-        synchronized (dataNotifiers) {
-            DataNotifier dataNotifier = dataNotifiers.get(key);
-            if (dataNotifier != null) {
-                if (dataNotifier.isRunning()) {
-                    dataNotifier.stop("stop requested");
-                }
-                else if (log.isDebugEnabled()) {
-                    log.debug("Data notifier is not running. key='" + key + "'");
-                }
-                dataNotifiers.remove(key);
-            }
-            else if (log.isDebugEnabled()) {
-                log.debug("Data notifier not registered. key='" + key + "'");
+        DataNotifier dataNotifier = null;
+        synchronized (acquisitions) {
+            Acquisition acquisition = acquisitions.get(turbineName);
+            if (acquisition != null) {
+                dataNotifier = acquisition.removeSubscriber(key);
+                _removeIfUnused(acquisition);
             }
         }
+        if (dataNotifier != null) {
+            dataNotifier.stop("stop requested");
+        }
+        else if (log.isDebugEnabled()) {
+            log.debug("Data notifier not registered. {" + turbineName
+                    + "} key='" + key + "'");
+        }
+    }
 
+    /**
+     * Removes the given subscriber from the acquisition of the channel, if
+     * still there, tearing down the acquisition if it has no subscribers left.
+     */
+    private void _removeSubscriber(String turbineName, String key,
+            DataNotifier dataNotifier) {
+        synchronized (acquisitions) {
+            Acquisition acquisition = acquisitions.get(turbineName);
+            if (acquisition != null) {
+                if (acquisition.getSubscriber(key) == dataNotifier) {
+                    acquisition.removeSubscriber(key);
+                }
+                _removeIfUnused(acquisition);
+            }
+        }
     }
 
-    private void _removeNotifier(String key) {
-        synchronized (dataNotifiers) {
-            dataNotifiers.remove(key);
+    /**
+     * Removes the acquisition, and the corresponding RBNB subscription, if it
+     * has no subscribers. Called while holding the lock on the acquisitions.
+     */
+    private void _removeIfUnused(Acquisition acquisition) {
+        if (!acquisition.hasSubscribers()) {
+            String turbineName = acquisition.getTurbineName();
+            acquisitions.remove(turbineName);
+            fetcher.removeListener(turbineName, acquisition);
+            if (log.isDebugEnabled()) {
+                log.debug("Acquisition removed: {" + turbineName + "}");
+            }
         }
     }
 
-    private String _getNotifierKey(String turbineName, int reqId,
-            String publishId, String publishStream) {
+    public int getNumAcquisitions() {
+        synchronized (acquisitions) {
+            return acquisitions.size();
+        }
+    }
 
-        String key = reqId + "|" + turbineName + "|" + publishId + "|"
-                + publishStream;
-        return key;
+    public String[] getSubscriberStats() {
+        List<String> list = new ArrayList<String>();
+        synchronized (acquisitions) {
+            for (Acquisition acquisition : acquisitions.values()) {
+                list.addAll(acquisition.getSubscriberStats());
+            }
+        }
+        return list.toArray(new String[list.size()]);
     }
 
     public String toString() {
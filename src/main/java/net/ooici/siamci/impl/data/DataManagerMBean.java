@@ -0,0 +1,20 @@
+package net.ooici.siamci.impl.data;
+
+/**
+ * JMX management interface of a {@link DataManager}.
+ * 
+ * @author carueda
+ */
+public interface DataManagerMBean {
+
+    /** Number of channels being acquired */
+    public int getNumAcquisitions();
+
+    /**
+     * One line per subscriber of each acquisition, with the queue lag, the
+     * received (fetched), published, dropped, conflated and suppressed
+     * samples, and the number of data messages published.
+     */
+    public String[] getSubscriberStats();
+
+}
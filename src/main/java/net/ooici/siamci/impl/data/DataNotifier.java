@@ -1,62 +1,239 @@
 package net.ooici.siamci.impl.data;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.Map;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import net.ooici.siamci.AcquisitionOptions;
+import net.ooici.siamci.AcquisitionOptions.Overflow;
 import net.ooici.siamci.SiamCi;
+import net.ooici.siamci.utils.DeadbandFilter;
+import net.ooici.siamci.utils.PackedSamples;
 import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.SpscRing;
+import net.ooici.siamci.utils.WindowAggregator;
+import net.ooici.siamci.utils.WorkerPools;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.GeneratedMessage;
-import com.rbnb.sapi.ChannelMap;
-import com.rbnb.sapi.SAPIException;
-import com.rbnb.sapi.Sink;
 
 /**
  * Notifies data from a RBNB channel to a publish_stream using a given
- * publisher.
+ * publisher. Each notifier is a subscriber of the {@link Acquisition} of the
+ * channel, which calls {@link #samplesReceived(double[], double[])} for each
+ * new data on the channel.
+ * 
+ * <p>
+ * The samples are passed from the fetch thread to the publication through a
+ * bounded {@link SpscRing} (capacity given by the system property
+ * "siamci.data.queue"), drained by a task in the "data.publish" pool, so a
+ * slow broker does not stall the RBNB fetch. When the queue is full, the
+ * {@link AcquisitionOptions.Overflow} policy of the stream applies. The
+ * number of samples received, dropped and conflated, and the current and
+ * maximum queue lag are available via {@link #getStats()}.
+ * 
+ * <p>
+ * Each data message published carries headers (see {@link #_getHeaders}) with
+ * a sequence number, increasing by one from message to message of the
+ * stream, and the RBNB time range of its samples, so consumers can detect
+ * lost messages, and tell them from the samples dropped on purpose by the
+ * overflow policy or the deadband filter, also given in the headers.
+ * 
+ * <p>
+ * If batching is enabled (see {@link AcquisitionOptions}), the samples are
+ * accumulated and published when the maximum number of samples is reached or
+ * when the oldest sample has waited the maximum latency, whatever happens
+ * first.
  * 
- * Preliminary implementation, thread-safety is not guaranteed
+ * <p>
+ * If aggregation is enabled, the samples are instead summarized over time
+ * windows by a {@link WindowAggregator}, and only the aggregate of each
+ * window is published (see {@link #_publishWindow}).
+ * 
+ * <p>
+ * If a deadband is requested, the samples are first passed through a
+ * {@link DeadbandFilter}, so only the changes beyond the deadband (and the
+ * heartbeats) are published.
+ * 
+ * <p>
+ * If backfill is requested, the notifier starts in backfill mode (see
+ * {@link #beginBackfill()}): a {@link Backfill} task feeds the historical
+ * samples while the live samples are held aside. At the end of the backfill
+ * the held samples newer than the last historical one are queued, and the
+ * live samples flow directly from then on, so there are neither gaps nor
+ * duplicates at the switch.
  * 
  * @author carueda
  */
-class DataNotifier implements Runnable {
+class DataNotifier {
 
     private static final Logger log = LoggerFactory.getLogger(DataNotifier.class);
 
-    /**
-     * Timeout while fetching for data. The timeout allows to periodically check
-     * whether the main loop should finish (because of a call to
-     * {@link #stop(String)}.
-     */
-    private static final long FETCH_TIMEOUT = 2 * 1000;
-
-    private final String rbnbHost;
-    private final String clientName;
     private final String turbineName;
+    private final String channelName;
     private final String prefix;
 
     private final int reqId;
     private final String publishId;
     private final String publishStream;
 
-    private volatile boolean keepRunning;
-    private volatile String stopReason;
-    private volatile boolean isRunning = false;
+    private final AtomicBoolean isRunning = new AtomicBoolean();
+
+    /**
+     * Capacity of the queue of each notifier, in fetches; system property
+     * "siamci.data.queue".
+     */
+    private static final int QUEUE_CAPACITY = ScUtils.getIntProperty("siamci.data.queue",
+            64);
+
+    /** How long the fetch thread parks while waiting for room (BLOCK) */
+    private static final long BLOCK_PARK_NANOS = 100 * 1000;
+
+    /**
+     * Maximum time the fetch thread waits for room in the queue of a BLOCK
+     * stream before dropping its oldest samples, so a slow stream does not
+     * stall the other channels of the shared fetcher; system property
+     * "siamci.data.blockMaxMs". The backfill thread waits without limit.
+     */
+    private static final long BLOCK_MAX_NANOS = 1000L * 1000 * ScUtils.getIntProperty("siamci.data.blockMaxMs",
+            1000);
+
+    /** Runs the tasks that drain the queues and publish the data */
+    private static final ExecutorService publishService = WorkerPools.getPool("data.publish",
+            4,
+            1024);
+
+    /** The samples of a fetch */
+    private static class Chunk {
+        final double[] values;
+        final double[] times;
+
+        Chunk(double[] values, double[] times) {
+            this.values = values;
+            this.times = times;
+        }
+    }
+
+    /** The queue; null for the CONFLATE policy */
+    private final SpscRing<Chunk> ring;
+
+    /** The latest chunk, for the CONFLATE policy */
+    private final AtomicReference<Chunk> latest = new AtomicReference<Chunk>();
+
+    /** Set while a drain task is scheduled or running */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /** Set by {@link #stop(String)} so the drain task flushes the batch */
+    private volatile boolean flushRequested;
+
+    private final AtomicLong receivedSamples = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+    private final AtomicLong conflatedSamples = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong blockTimeouts = new AtomicLong();
+    private final AtomicLong backfilledSamples = new AtomicLong();
+    private final AtomicLong publishedSamples = new AtomicLong();
+
+    /** Sequence number of the last data message published */
+    private final AtomicLong seqNo = new AtomicLong();
+    private volatile int maxLag;
+
+    private final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            _drain();
+        }
+    };
+
+    /** Flushes the batches that reach their maximum latency */
+    private static final ScheduledExecutorService flushService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "data-batch-flush");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AcquisitionOptions options;
 
-    private volatile Sink rbnbSink = null;
-    private final ChannelMap channelMap = new ChannelMap();
+    /** Channel name for the packed encoding */
+    private final byte[] channelBytes;
 
     /**
-     * Creates an instance. This makes the connection to the RBNB server and
-     * subscribes to the channel by the given turbineName.
+     * Reused for the packed encoding; accessed by the drain task, or while
+     * holding the lock on the batch if batching
+     */
+    private ByteBuffer packBuffer;
+
+    /** The pending samples; null if not batching. Guarded by itself */
+    private final SampleBatch batch;
+
+    /** Scheduled flush of the current batch, if any; guarded by batch */
+    private ScheduledFuture<?> flushTask;
+
+    private final Runnable flushRunnable = new Runnable() {
+        public void run() {
+            synchronized (batch) {
+                flushTask = null;
+                _flushBatch();
+            }
+        }
+    };
+
+    /** The aggregator, if aggregating; only accessed by the drain task */
+    private final WindowAggregator aggregator;
+
+    private final WindowAggregator.Listener windowListener = new WindowAggregator.Listener() {
+        public void windowClosed(double start, double end, int count,
+                double min, double max, double mean) {
+            _publishWindow(start, end, count, min, max, mean);
+        }
+    };
+
+    /** The deadband filter, if any; only accessed by the drain task */
+    private final DeadbandFilter deadbandFilter;
+
+    /** Output of the deadband filter, reused; only accessed by the drain task */
+    private double[] filteredValues = new double[0];
+    private double[] filteredTimes = new double[0];
+
+    /** Guards the live samples held during the backfill */
+    private final Object backfillLock = new Object();
+
+    /** True during the backfill; set with backfillLock held */
+    private volatile boolean backfilling;
+
+    /** The live samples received during the backfill; guarded by backfillLock */
+    private SampleBatch heldLive;
+
+    /** Time of the last sample queued; written by the producer only */
+    private volatile double lastTime = Double.NEGATIVE_INFINITY;
+
+    /** State reported by {@link #notifyState(String, String)} */
+    private volatile String state = "live";
+
+    /**
+     * Live samples up to this time are discarded, as already published by the
+     * backfill; NaN once past it. Set before the end of the backfill, then
+     * only accessed by the fetch thread.
+     */
+    private double liveAfter = Double.NaN;
+
+    /**
+     * Creates an instance.
      * 
-     * @param rbnbHost
-     *            The RBNB server host
-     * @param clientName
-     *            name for this RBNB client
      * @param turbineName
      *            qualified name of the RBNB channe
      * @param reqId
@@ -66,47 +243,58 @@ class DataNotifier implements Runnable {
      *            the publish_id
      * @param publishStream
      *            the publish stream name
-     * @throws Exception
-     *             if something goes wrong, in particular around the RBNB API
-     *             calls.
+     * @param options
+     *            publication options
      */
-    DataNotifier(String rbnbHost, String clientName, String turbineName,
-            int reqId, String publishId, String publishStream) throws Exception {
+    DataNotifier(String turbineName, int reqId, String publishId,
+            String publishStream, AcquisitionOptions options) {
         super();
-        this.rbnbHost = rbnbHost;
-        this.clientName = clientName;
         this.turbineName = turbineName;
+        this.channelName = turbineName.substring(turbineName.lastIndexOf('/') + 1);
         this.reqId = reqId;
         this.prefix = ScUtils.formatReqId(reqId)
                 + String.format("{%s} ", this.turbineName);
 
         this.publishId = publishId;
         this.publishStream = publishStream;
+        this.options = options;
+        this.channelBytes = PackedSamples.channelBytes(turbineName);
+        this.batch = options.isBatching() ? new SampleBatch(Math.min(options.getBatchMaxSamples(),
+                1024))
+                : null;
+        this.ring = options.getOverflow() == Overflow.CONFLATE ? null
+                : new SpscRing<Chunk>(QUEUE_CAPACITY);
+        this.aggregator = options.isAggregating() ? new WindowAggregator(options.getAggregateWindow(),
+                options.getAggregateSlide())
+                : null;
+        this.deadbandFilter = options.isDeadband() ? new DeadbandFilter(options.getDeadband(),
+                options.getDeadbandRelative(),
+                options.getHeartbeat())
+                : null;
+    }
 
-        _prepare();
+    String getTurbineName() {
+        return turbineName;
     }
 
     String getPublishStream() {
         return publishStream;
     }
 
-    private void _prepare() throws Exception {
-        if (log.isDebugEnabled()) {
-            log.debug(prefix + "Connecting to " + rbnbHost + " ...");
-        }
-        rbnbSink = new Sink();
-        rbnbSink.OpenRBNBConnection(rbnbHost, clientName);
-
-        channelMap.Clear();
-        channelMap.Add(turbineName);
-        if (log.isDebugEnabled()) {
-            log.debug(prefix + "Subscribing to channel ...");
-        }
-        rbnbSink.Subscribe(channelMap); // , 0, 10, "newest");
+    AcquisitionOptions getOptions() {
+        return options;
     }
 
     public boolean isRunning() {
-        return isRunning;
+        return isRunning.get();
+    }
+
+    /**
+     * Marks this notifier as running. To be called when it is registered with
+     * the fetcher.
+     */
+    void started() {
+        isRunning.set(true);
     }
 
     /**
@@ -114,119 +302,633 @@ class DataNotifier implements Runnable {
      * class.
      * 
      * @param reason
-     *            null unless there has been a call to {@link #stop(String)}
-     *            prior to the completion of the execution, in which case the
-     *            string given to {@link #stop(String)} will be passed here.
+     *            the string given to {@link #stop(String)}.
      */
     protected void _completed(String reason) {
         // nothing here
     }
 
     /**
-     * Requests that this process stop accepting further requests. It returns
-     * immediately.
+     * Stops the notification of data. It returns immediately; the samples
+     * already queued are still published.
      * 
      * @param reason
      *            This string will be passed to {@link #_completed(String)}.
      */
     public void stop(String reason) {
-        keepRunning = false;
-        stopReason = reason;
+        if (isRunning.compareAndSet(true, false)) {
+            flushRequested = true;
+            _scheduleDrain();
+            _completed(reason);
+        }
     }
 
     /**
-     * Start the loop of fetching data from RBNB and publishing the values
+     * Called by the acquisition, in the fetch thread, with all the samples of
+     * a fetch. The arrays are shared with other subscribers and must not be
+     * modified.
+     * 
+     * @param values
+     *            the values, not empty
+     * @param times
+     *            the corresponding times, same length as values
      */
-    public void run() {
-        stopReason = null;
-        keepRunning = true;
-        isRunning = true;
-        try {
-            _run();
+    void samplesReceived(double[] values, double[] times) {
+        if (!isRunning.get()) {
+            return;
         }
-        finally {
-            isRunning = false;
-            // let subclass know execution completed:
-            _completed(stopReason);
-            if (rbnbSink != null) {
-                rbnbSink.CloseRBNBConnection();
+        if (backfilling) {
+            synchronized (backfillLock) {
+                if (backfilling) {
+                    heldLive.add(values, times);
+                    return;
+                }
+            }
+        }
+        if (!Double.isNaN(liveAfter)) {
+            // skip the samples already published by the backfill
+            int first = 0;
+            while (first < values.length && times[first] <= liveAfter) {
+                first++;
+            }
+            if (first == values.length) {
+                return;
+            }
+            liveAfter = Double.NaN;
+            if (first > 0) {
+                values = _copyOfRange(values, first, values.length);
+                times = _copyOfRange(times, first, times.length);
             }
-            rbnbSink = null;
         }
+        receivedSamples.addAndGet(values.length);
+        _enqueue(new Chunk(values, times), options.getOverflow(), BLOCK_MAX_NANOS);
     }
 
-    private void _run() {
+    /**
+     * Puts a chunk in the queue according to the given overflow policy. Must
+     * only be called by the current producer: the backfill thread during the
+     * backfill, and the fetch thread afterwards. Without a queue (CONFLATE
+     * notifiers), the chunk is always conflated.
+     * 
+     * @param maxBlockNanos
+     *            for the BLOCK policy, how long to wait for room before
+     *            dropping the oldest samples
+     */
+    private void _enqueue(Chunk chunk, Overflow policy, long maxBlockNanos) {
+        if (ring == null) {
+            policy = Overflow.CONFLATE;
+        }
+        switch (policy) {
+        case CONFLATE:
+            Chunk previous = latest.getAndSet(chunk);
+            if (previous != null) {
+                conflatedSamples.addAndGet(previous.values.length);
+            }
+            break;
 
-        while (keepRunning) {
-            try {
-                if (log.isDebugEnabled()) {
-                    log.debug(prefix + "Waiting for data ...");
+        case DROP_OLDEST:
+            _offerDroppingOldest(chunk);
+            break;
+
+        case BLOCK:
+            long start = 0;
+            while (!ring.offer(chunk)) {
+                if (!isRunning.get()) {
+                    return;
                 }
+                long now = System.nanoTime();
+                if (start == 0) {
+                    start = now;
+                }
+                else if (now - start >= maxBlockNanos) {
+                    if (blockTimeouts.getAndIncrement() == 0) {
+                        log.warn(prefix + "Queue still full after "
+                                + maxBlockNanos / 1000000
+                                + " ms, dropping oldest samples (stream '"
+                                + publishStream + "')");
+                    }
+                    _offerDroppingOldest(chunk);
+                    break;
+                }
+                _scheduleDrain();
+                LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            }
+            if (start != 0) {
+                blockedNanos.addAndGet(System.nanoTime() - start);
+            }
+            break;
+        }
+        lastTime = chunk.times[chunk.times.length - 1];
+
+        int lag = ring == null ? 1 : ring.size();
+        if (lag > maxLag) {
+            maxLag = lag;
+        }
+        _scheduleDrain();
+    }
+
+    /**
+     * Puts a chunk in the queue, dropping the oldest chunks as needed.
+     */
+    private void _offerDroppingOldest(Chunk chunk) {
+        while (!ring.offer(chunk)) {
+            Chunk dropped = ring.dropOldest();
+            if (dropped != null) {
+                if (droppedSamples.getAndAdd(dropped.values.length) == 0) {
+                    log.warn(prefix + "Queue full, dropping oldest samples"
+                            + " (stream '" + publishStream + "')");
+                }
+            }
+        }
+    }
+
+    /**
+     * Puts this notifier in backfill mode. To be called before it is
+     * registered with the acquisition, or in the fetch thread.
+     * 
+     * @return false if already in backfill mode.
+     */
+    boolean beginBackfill() {
+        synchronized (backfillLock) {
+            if (backfilling) {
+                return false;
+            }
+            heldLive = new SampleBatch(256);
+            backfilling = true;
+            return true;
+        }
+    }
+
+    /**
+     * Time of the last sample queued for publication;
+     * {@link Double#NEGATIVE_INFINITY} if none.
+     */
+    double getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Publishes a change in the state of the acquisition, with the following
+     * entries:
+     * <ul>
+     * <li>"channel", "turbineName": as in {@link #_publishData}
+     * <li>"state": "reconnecting" when the connection to the RBNB server is
+     * lost, or "live" when the data flows again
+     * <li>"reason": the cause, if any
+     * <li>"time": time of the last sample published before the change, if
+     * any
+     * </ul>
+     * The message is published right away, possibly before data still in the
+     * queue.
+     */
+    void notifyState(String state, String reason) {
+        this.state = state;
+        if (!isRunning.get()) {
+            return;
+        }
+        log.info(prefix + "stream '" + publishStream + "' state: " + state
+                + (reason != null ? " (" + reason + ")" : ""));
+
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put("channel", channelName);
+        map.put("turbineName", turbineName);
+        map.put("state", state);
+        if (reason != null) {
+            map.put("reason", reason);
+        }
+        if (lastTime != Double.NEGATIVE_INFINITY) {
+            map.put("time", String.valueOf(lastTime));
+        }
+        try {
+            GeneratedMessage response = ScUtils.createSuccessResponseWithMap(map);
+            SiamCi.instance().getPublisher().publish(reqId,
+                    publishId,
+                    response,
+                    publishStream);
+        }
+        catch (RuntimeException e) {
+            log.warn(prefix + "Error publishing state", e);
+        }
+    }
 
-                ChannelMap getmap = null;
+    /**
+     * Called by the {@link Backfill} task with historical samples, in
+     * increasing time order. Samples not newer than the last one queued are
+     * skipped. The task waits for room in the queue rather than dropping
+     * samples; large chunks are split into messages of at most the batch size
+     * (or {@link AcquisitionOptions#DEFAULT_MAX_SAMPLES}).
+     */
+    void backfillReceived(double[] values, double[] times) {
+        int first = 0;
+        while (first < values.length && times[first] <= lastTime) {
+            first++;
+        }
+        int maxSamples = options.isBatching() ? options.getBatchMaxSamples()
+                : AcquisitionOptions.DEFAULT_MAX_SAMPLES;
+        for (int from = first; from < values.length && isRunning.get(); from += maxSamples) {
+            int to = Math.min(values.length, from + maxSamples);
+            double[] chunkValues = from == 0 && to == values.length ? values
+                    : _copyOfRange(values, from, to);
+            double[] chunkTimes = from == 0 && to == values.length ? times
+                    : _copyOfRange(times, from, to);
+            _enqueue(new Chunk(chunkValues, chunkTimes),
+                    Overflow.BLOCK,
+                    Long.MAX_VALUE);
+            receivedSamples.addAndGet(chunkValues.length);
+            backfilledSamples.addAndGet(chunkValues.length);
+        }
+    }
 
-                while (keepRunning) {
-                    getmap = rbnbSink.Fetch(FETCH_TIMEOUT, channelMap);
-                    if (getmap != null && getmap.NumberOfChannels() > 0) {
-                        break; // we have data.
+    /**
+     * Ends the backfill by queuing the live samples held in the meantime
+     * that are newer than the last historical sample, and then letting the
+     * live samples through.
+     * 
+     * @param newest
+     *            time of the newest sample on the server when the last
+     *            historical range was requested; if the first held live
+     *            sample is later than this, there may be a gap, so the
+     *            backfill is not ended and the caller should request the
+     *            history up to a more recent time. Use
+     *            {@link Double#POSITIVE_INFINITY} to end the backfill anyway.
+     * @return true if the backfill has ended.
+     */
+    boolean endBackfill(double newest) {
+        boolean returned = false;
+        try {
+            boolean checked = false;
+            while (true) {
+                double[][] held;
+                synchronized (backfillLock) {
+                    if (heldLive.isEmpty() || !isRunning.get()) {
+                        // in the same block as the check, so no live sample
+                        // can be held after it:
+                        _endHeldLive();
+                        returned = true;
+                        return true;
                     }
-                    else {
-                        // surely a timeout -- just try again.
-                        // if (log.isDebugEnabled()) {
-                        // log.debug("XXXX timeout while fetching data");
-                        // }
+                    if (!checked) {
+                        if (heldLive.getTimes()[0] > newest) {
+                            returned = true;
+                            return false;
+                        }
+                        checked = true;
                     }
+                    held = heldLive.drain();
                 }
-
-                if (keepRunning) {
-                    _dispatchGotData(getmap);
+                // queued without the lock so the fetch thread is not held up:
+                backfillReceived(held[0], held[1]);
+            }
+        }
+        finally {
+            // upon an error, so the live samples are not held forever
+            if (!returned) {
+                synchronized (backfillLock) {
+                    _endHeldLive();
                 }
             }
-            catch (SAPIException e) {
-                keepRunning = isRunning = false;
-                log.warn(prefix + "Error fetching data: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Lets the live samples through from now on, skipping those not newer
+     * than the last one queued. Called with backfillLock held.
+     */
+    private void _endHeldLive() {
+        liveAfter = lastTime;
+        heldLive = null;
+        backfilling = false;
+    }
+
+    private static double[] _copyOfRange(double[] array, int from, int to) {
+        double[] copy = new double[to - from];
+        System.arraycopy(array, from, copy, 0, copy.length);
+        return copy;
+    }
+
+    private boolean _hasQueued() {
+        return ring == null ? latest.get() != null : !ring.isEmpty();
+    }
+
+    private Chunk _take() {
+        return ring == null ? latest.getAndSet(null) : ring.poll();
+    }
+
+    /**
+     * Submits the drain task unless already scheduled or running.
+     */
+    private void _scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                publishService.execute(drainRunnable);
+            }
+            catch (RejectedExecutionException e) {
+                // will be retried upon the next fetch
+                draining.set(false);
+                log.warn(prefix + e.getMessage());
             }
         }
     }
 
-    private void _dispatchGotData(ChannelMap getmap) {
-        int noChannels = getmap.NumberOfChannels();
-        assert noChannels == 1; // should be 1 because we are subscribing to one
-        // channel
+    /**
+     * Publishes the queued data. Only one instance runs at a time (guarded
+     * by {@link #draining}), so this is the single consumer of the queue.
+     */
+    private void _drain() {
+        do {
+            Chunk chunk;
+            while ((chunk = _take()) != null) {
+                _publishChunk(chunk);
+            }
+            if (flushRequested) {
+                flushRequested = false;
+                if (batch != null) {
+                    synchronized (batch) {
+                        _flushBatch();
+                    }
+                }
+                else if (aggregator != null) {
+                    aggregator.flush(windowListener);
+                }
+            }
+            draining.set(false);
+        } while ((_hasQueued() || flushRequested)
+                && draining.compareAndSet(false, true));
+    }
 
-        final int ch = 0;
+    private void _publishChunk(Chunk chunk) {
+        if (deadbandFilter != null) {
+            chunk = _filter(chunk);
+            if (chunk == null) {
+                return;
+            }
+        }
+        try {
+            if (aggregator != null) {
+                aggregator.add(chunk.times,
+                        chunk.values,
+                        chunk.values.length,
+                        windowListener);
+            }
+            else if (batch == null) {
+                if (options.isPacked()) {
+                    _publishPacked(chunk.values,
+                            chunk.times,
+                            chunk.values.length);
+                }
+                else {
+                    _publishData(chunk.values, chunk.times);
+                }
+            }
+            else {
+                _addToBatch(chunk.values, chunk.times);
+            }
+        }
+        catch (RuntimeException e) {
+            log.warn(prefix + "Error publishing data", e);
+        }
+    }
 
-        // double[] times = getmap.GetTimes(ch);
-        // int type = getmap.GetType(ch);
+    /**
+     * Applies the deadband filter to a chunk.
+     * 
+     * @return the given chunk if all its samples pass, a new chunk with the
+     *         samples that pass, or null if none.
+     */
+    private Chunk _filter(Chunk chunk) {
+        int length = chunk.values.length;
+        if (filteredValues.length < length) {
+            filteredValues = new double[length];
+            filteredTimes = new double[length];
+        }
+        int count = deadbandFilter.filter(chunk.times,
+                chunk.values,
+                length,
+                filteredTimes,
+                filteredValues);
+        if (count == length) {
+            return chunk;
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new Chunk(_copyOfRange(filteredValues, 0, count),
+                _copyOfRange(filteredTimes, 0, count));
+    }
 
-        // value.length should be 1
-        double[] values = getmap.GetDataAsFloat64(ch);
-        if (values.length > 0) {
-            double value = values[0];
-            if (log.isDebugEnabled()) {
-                log.debug(prefix + " -> " + value);
+    /**
+     * A one-line summary of the state of this notifier.
+     */
+    String getStats() {
+        return String.format("stream=%s state=%s overflow=%s lag=%d maxLag=%d received=%d published=%d messages=%d dropped=%d conflated=%d suppressed=%d blockedMs=%d blockTimeouts=%d backfilled=%d%s",
+                publishStream,
+                state,
+                options.getOverflow().getArgValue(),
+                ring == null ? (latest.get() == null ? 0 : 1) : ring.size(),
+                maxLag,
+                receivedSamples.get(),
+                publishedSamples.get(),
+                seqNo.get(),
+                droppedSamples.get(),
+                conflatedSamples.get(),
+                deadbandFilter == null ? 0
+                        : deadbandFilter.getSuppressedCount(),
+                blockedNanos.get() / 1000000,
+                blockTimeouts.get(),
+                backfilledSamples.get(),
+                backfilling ? " (backfilling)" : "");
+    }
+
+    private void _addToBatch(double[] values, double[] times) {
+        synchronized (batch) {
+            batch.add(values, times);
+            if (batch.size() >= options.getBatchMaxSamples()) {
+                _flushBatch();
             }
+            else if (flushTask == null) {
+                flushTask = flushService.schedule(flushRunnable,
+                        options.getBatchMaxLatency(),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
 
-            _publishData(turbineName, value);
+    /**
+     * Publishes the pending samples, if any. Called while holding the lock on
+     * the batch so messages are published in order.
+     */
+    private void _flushBatch() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (options.isPacked()) {
+            _publishPacked(batch.getValues(), batch.getTimes(), batch.size());
+            batch.clear();
+        }
+        else {
+            double[][] samples = batch.drain();
+            _publishData(samples[0], samples[1]);
         }
     }
 
-    private void _publishData(String turbineName, double value) {
-        log.info(prefix + "_publishData: '" + turbineName + "' = " + value);
+    /**
+     * Publishes the given samples in the packed encoding (see
+     * {@link PackedSamples}). The encoding buffer is reused from message to
+     * message; only the payload of each message is allocated.
+     */
+    private void _publishPacked(double[] values, double[] times, int count) {
         if (log.isDebugEnabled()) {
-            log.debug(prefix + "_publishData: '" + turbineName + "' = " + value);
+            log.debug(prefix + "_publishPacked: '" + turbineName + "' "
+                    + count + " sample(s)");
         }
 
-        Map<String, String> map = new HashMap<String, String>();
-        
-        map.put("turbineName", "turbineName");  // for debugging purposes
-        map.put("channel", "val");  // FIXME
-        map.put("value", String.valueOf(value));
-        
+        packBuffer = PackedSamples.encode(packBuffer,
+                channelBytes,
+                values,
+                times,
+                count);
+        byte[] payload = new byte[packBuffer.remaining()];
+        packBuffer.get(payload);
+
+        SiamCi.instance().getPublisher().publishPacked(reqId,
+                publishId,
+                payload,
+                publishStream,
+                _getHeaders(times[0], times[count - 1], count));
+    }
+
+    /**
+     * Publishes the aggregate of a window in a message with the following
+     * entries:
+     * <ul>
+     * <li>"channel", "turbineName": as in {@link #_publishData}
+     * <li>"value", "time": the mean, and the end of the window
+     * <li>"window_start", "window_end": the window, in seconds since the
+     * epoch; the start is inclusive and the end exclusive
+     * <li>"count", "min", "max", "mean": the aggregates
+     * </ul>
+     */
+    private void _publishWindow(double start, double end, int count,
+            double min, double max, double mean) {
+        if (log.isDebugEnabled()) {
+            log.debug(prefix + "_publishWindow: '" + turbineName + "' ["
+                    + start + ", " + end + ") count=" + count + " mean="
+                    + mean);
+        }
+
+        Map<String, String> map = new LinkedHashMap<String, String>();
+
+        map.put("channel", channelName);
+        map.put("turbineName", turbineName);
+        map.put("value", String.valueOf(mean));
+        map.put("time", String.valueOf(end));
+        map.put("window_start", String.valueOf(start));
+        map.put("window_end", String.valueOf(end));
+        map.put("count", String.valueOf(count));
+        map.put("min", String.valueOf(min));
+        map.put("max", String.valueOf(max));
+        map.put("mean", String.valueOf(mean));
+
+        GeneratedMessage response = ScUtils.createSuccessResponseWithMap(map);
+        SiamCi.instance().getPublisher().publish(reqId,
+                publishId,
+                response,
+                publishStream,
+                _getHeaders(start, end, count));
+    }
+
+    /**
+     * Publishes the given samples in a single message with the following
+     * entries:
+     * <ul>
+     * <li>"channel": name of the channel (last component of the turbine name)
+     * <li>"turbineName": the turbine name
+     * <li>"value", "time": the latest sample
+     * <li>"count": number of samples
+     * <li>"values", "times": all the samples as comma-separated lists, in
+     * increasing time order
+     * </ul>
+     * Times are in seconds since the epoch, as given by RBNB.
+     */
+    private void _publishData(double[] values, double[] times) {
+        final int count = values.length;
+        final int last = count - 1;
+        final double lastTime = times != null && times.length > last ? times[last]
+                : 0;
+
+        if (log.isDebugEnabled()) {
+            log.debug(prefix + "_publishData: '" + turbineName + "' = "
+                    + values[last] + " @ " + lastTime + " (" + count
+                    + " sample(s))");
+        }
+
+        StringBuilder valuesStr = new StringBuilder();
+        StringBuilder timesStr = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                valuesStr.append(',');
+                timesStr.append(',');
+            }
+            valuesStr.append(values[i]);
+            timesStr.append(times != null && times.length > i ? times[i] : 0);
+        }
+
+        Map<String, String> map = new LinkedHashMap<String, String>();
+
+        map.put("channel", channelName);
+        map.put("turbineName", turbineName);
+        map.put("value", String.valueOf(values[last]));
+        map.put("time", String.valueOf(lastTime));
+        map.put("count", String.valueOf(count));
+        map.put("values", valuesStr.toString());
+        map.put("times", timesStr.toString());
+
         GeneratedMessage response = ScUtils.createSuccessResponseWithMap(map);
         SiamCi.instance().getPublisher().publish(reqId,
                 publishId,
                 response,
-                publishStream);
+                publishStream,
+                _getHeaders(times != null && times.length > 0 ? times[0] : 0,
+                        lastTime,
+                        count));
+    }
+
+    /**
+     * Gets the headers of a data message, assigning it the next sequence
+     * number:
+     * <ul>
+     * <li>"seq_no": 1 for the first message of the stream, increased by one
+     * for each data message; state messages (see {@link #notifyState}) are
+     * not numbered
+     * <li>"time_start", "time_end": RBNB time of the first and last samples
+     * in the message (the window, for aggregates)
+     * <li>"sample_count": number of samples in the message (aggregated, for
+     * aggregates)
+     * <li>"dropped_samples": samples discarded so far by the overflow policy
+     * (dropped or conflated)
+     * <li>"suppressed_samples": samples discarded so far by the deadband
+     * filter
+     * </ul>
+     * Called by the publishing thread, in order of publication.
+     */
+    private Map<String, String> _getHeaders(double timeStart, double timeEnd,
+            int count) {
+        publishedSamples.addAndGet(count);
+
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("seq_no", String.valueOf(seqNo.incrementAndGet()));
+        headers.put("time_start", String.valueOf(timeStart));
+        headers.put("time_end", String.valueOf(timeEnd));
+        headers.put("sample_count", String.valueOf(count));
+        headers.put("dropped_samples",
+                String.valueOf(droppedSamples.get() + conflatedSamples.get()));
+        headers.put("suppressed_samples",
+                String.valueOf(deadbandFilter == null ? 0
+                        : deadbandFilter.getSuppressedCount()));
+        return headers;
     }
 }
@@ -0,0 +1,530 @@
+package net.ooici.siamci.impl.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.ooici.siamci.utils.ScUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rbnb.sapi.ChannelMap;
+import com.rbnb.sapi.SAPIException;
+import com.rbnb.sapi.Sink;
+
+/**
+ * Fetches data from a RBNB server for all the channels of interest using a
+ * single connection and a single thread. The subscription covers the union of
+ * the channels with registered listeners; each fetched map is demultiplexed to
+ * the listeners of each channel. Listeners can be added and removed at any
+ * time. The fetch blocks with no timeout; adding a channel interrupts it (by
+ * closing the connection) so the fetch thread reconnects with the new
+ * subscription right away. The new subscription starts from the oldest of the
+ * newest times already delivered for the other channels, so no data arriving
+ * meanwhile is lost; the listeners skip what they already got (see
+ * {@link Listener#dataReceived(ChannelMap, int)}). Removed channels are
+ * unsubscribed at the next iteration, except when no channels are left, in
+ * which case the fetch is also interrupted so the connection is released
+ * immediately.
+ *
+ * <p>
+ * The fetcher is run by its creator (see {@link #needsStart()}) and ends by
+ * itself when there are no listeners left. If the connection is lost, the
+ * listeners are notified ({@link Listener#fetchInterrupted(String)}) and the
+ * fetcher reconnects after a jittered exponential backoff, between
+ * "siamci.data.retryMinMs" (default: 500) and "siamci.data.retryMaxMs"
+ * (default: 30000) milliseconds, notifying the listeners again once
+ * reconnected ({@link Listener#fetchResumed()}). If "siamci.data.maxRetries"
+ * is positive, the fetcher gives up after that many consecutive failed
+ * attempts, and all listeners are notified with
+ * {@link Listener#fetchFailed(String)}.
+ *
+ * @author carueda
+ */
+class RbnbFetcher implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(RbnbFetcher.class);
+
+    /**
+     * Gets the data fetched for a channel.
+     */
+    interface Listener {
+        /**
+         * Called in the fetch thread when data arrives for the channel. After
+         * a channel is added, the data may start with samples already
+         * delivered, which the listener should skip.
+         *
+         * @param getmap
+         *            the fetched map
+         * @param index
+         *            index of the channel in the map
+         */
+        void dataReceived(ChannelMap getmap, int index);
+
+        /**
+         * Called in the fetch thread when the connection is lost; the fetcher
+         * will try to reconnect.
+         */
+        void fetchInterrupted(String reason);
+
+        /**
+         * Called in the fetch thread after reconnecting, before any new data
+         * is dispatched.
+         */
+        void fetchResumed();
+
+        /**
+         * Called when the fetcher ends because of an error. The listener has
+         * already been removed.
+         */
+        void fetchFailed(String reason);
+    }
+
+    private static final int RETRY_MIN_MS = ScUtils.getIntProperty("siamci.data.retryMinMs",
+            500);
+
+    private static final int RETRY_MAX_MS = ScUtils.getIntProperty("siamci.data.retryMaxMs",
+            30 * 1000);
+
+    private static final int MAX_RETRIES = ScUtils.getIntProperty("siamci.data.maxRetries",
+            0);
+
+    private final String rbnbHost;
+    private final String clientName;
+
+    /** For the jitter of the backoff */
+    private final Random random = new Random();
+
+    /**
+     * State of a run of the fetcher, local to it, so a run ending and the
+     * next one started meanwhile (see {@link #needsStart()}) never share it.
+     */
+    private static class RunState {
+        /** Consecutive failed attempts */
+        int failures;
+    }
+
+    /** turbineName -> listeners; guarded by itself */
+    private final Map<String, List<Listener>> listeners = new LinkedHashMap<String, List<Listener>>();
+
+    /** set when the listeners change; guarded by {@link #listeners} */
+    private boolean changed;
+
+    /** true from {@link #needsStart()} until the end of the run */
+    private boolean running;
+
+    /** The sink of the fetch thread, if running; guarded by listeners */
+    private Sink activeSink;
+
+    /** set by {@link #_wakeUp()}; guarded by listeners */
+    private boolean wokenUp;
+
+    /**
+     * Creates a fetcher. No connection is made until {@link #run()}.
+     *
+     * @param rbnbHost
+     *            The RBNB server host
+     * @param clientName
+     *            name for this RBNB client
+     */
+    RbnbFetcher(String rbnbHost, String clientName) {
+        this.rbnbHost = rbnbHost;
+        this.clientName = clientName;
+    }
+
+    /**
+     * Adds a listener for the given channel.
+     */
+    void addListener(String turbineName, Listener listener) {
+        synchronized (listeners) {
+            List<Listener> list = listeners.get(turbineName);
+            if (list == null) {
+                list = new ArrayList<Listener>();
+                listeners.put(turbineName, list);
+            }
+            if (!list.contains(listener)) {
+                list.add(listener);
+                changed = true;
+                if (list.size() == 1) {
+                    // new channel: the current subscription doesn't cover it
+                    _wakeUp();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a listener for the given channel. The channel is unsubscribed if
+     * it has no listeners left.
+     */
+    void removeListener(String turbineName, Listener listener) {
+        synchronized (listeners) {
+            List<Listener> list = listeners.get(turbineName);
+            if (list != null && list.remove(listener)) {
+                if (list.isEmpty()) {
+                    listeners.remove(turbineName);
+                    if (listeners.isEmpty()) {
+                        // so the fetch thread ends right away
+                        _wakeUp();
+                        listeners.notifyAll();
+                    }
+                }
+                changed = true;
+            }
+        }
+    }
+
+    /**
+     * Tells whether this fetcher should be started, in which case it is
+     * marked as running, so the caller is expected to actually run it (or
+     * call {@link #startFailed()}).
+     *
+     * @return true if the fetcher was not running.
+     */
+    boolean needsStart() {
+        synchronized (listeners) {
+            if (running) {
+                return false;
+            }
+            running = true;
+            changed = true;
+            return true;
+        }
+    }
+
+    /**
+     * To be called if the fetcher could not be run after a call to
+     * {@link #needsStart()} returning true.
+     */
+    void startFailed() {
+        synchronized (listeners) {
+            running = false;
+        }
+    }
+
+    /**
+     * Number of channels with listeners.
+     */
+    int getNumChannels() {
+        synchronized (listeners) {
+            return listeners.size();
+        }
+    }
+
+    /**
+     * Main loop: fetches data and dispatches it to the listeners.
+     */
+    public void run() {
+        RunState state = new RunState();
+        while (true) {
+            String reason;
+            try {
+                // closes its sink itself when ending normally:
+                _run(state);
+                return;
+            }
+            catch (SAPIException e) {
+                reason = "Error fetching data from " + rbnbHost + ": "
+                        + e.getMessage();
+            }
+            catch (RuntimeException e) {
+                reason = "Error fetching data from " + rbnbHost + ": " + e;
+            }
+
+            // still running, so activeSink is ours:
+            Sink sink;
+            synchronized (listeners) {
+                sink = activeSink;
+                activeSink = null;
+            }
+            if (sink != null) {
+                sink.CloseRBNBConnection();
+            }
+
+            int failures = ++state.failures;
+            if (MAX_RETRIES > 0 && failures > MAX_RETRIES) {
+                log.warn(reason + "; giving up after " + MAX_RETRIES
+                        + " attempt(s)");
+                _fail(reason);
+                return;
+            }
+            long delay = _getBackoff(failures);
+            log.warn(reason + "; reconnecting in " + delay + " ms (attempt "
+                    + failures + ")");
+            if (failures == 1) {
+                for (Listener listener : _getListeners()) {
+                    try {
+                        listener.fetchInterrupted(reason);
+                    }
+                    catch (RuntimeException e) {
+                        log.warn("Error notifying interruption", e);
+                    }
+                }
+            }
+            if (!_awaitRetry(delay)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the delay before the next attempt: exponential in the number of
+     * failures, from {@link #RETRY_MIN_MS} up to {@link #RETRY_MAX_MS}, with
+     * a random half of it as jitter, so clients of a restarted server do not
+     * all reconnect at once.
+     */
+    private long _getBackoff(int failures) {
+        long max = RETRY_MIN_MS;
+        for (int i = 1; i < failures && max < RETRY_MAX_MS; i++) {
+            max *= 2;
+        }
+        max = Math.max(1, Math.min(max, RETRY_MAX_MS));
+        return max / 2 + (long) (random.nextDouble() * (max - max / 2));
+    }
+
+    /**
+     * Waits before reconnecting, or until there are no listeners.
+     *
+     * @return true to reconnect; false if the fetcher is to end.
+     */
+    private boolean _awaitRetry(long delay) {
+        long end = System.currentTimeMillis() + delay;
+        synchronized (listeners) {
+            try {
+                long remaining;
+                while (!listeners.isEmpty()
+                        && (remaining = end - System.currentTimeMillis()) > 0) {
+                    listeners.wait(remaining);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+                return false;
+            }
+            if (listeners.isEmpty()) {
+                running = false;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private List<Listener> _getListeners() {
+        List<Listener> list = new ArrayList<Listener>();
+        synchronized (listeners) {
+            for (List<Listener> channelListeners : listeners.values()) {
+                list.addAll(channelListeners);
+            }
+        }
+        return list;
+    }
+
+    private void _run(RunState state) throws SAPIException {
+        ChannelMap channelMap = new ChannelMap();
+
+        // subscribed channels and corresponding listeners:
+        String[] names = null;
+        Listener[][] dispatch = null;
+
+        Sink sink = null;
+
+        // channel -> time of the newest data delivered
+        Map<String, Double> newestTimes = new HashMap<String, Double>();
+
+        while (true) {
+            boolean connect = false;
+            boolean resubscribe = false;
+            synchronized (listeners) {
+                if (listeners.isEmpty()) {
+                    // closed before giving up running, so a fetch thread
+                    // started afterwards cannot be affected:
+                    if (activeSink != null) {
+                        activeSink.CloseRBNBConnection();
+                        activeSink = null;
+                    }
+                    running = false;
+                    break;
+                }
+                if (sink == null || wokenUp) {
+                    // first iteration, or connection closed by _wakeUp()
+                    sink = activeSink = new Sink();
+                    wokenUp = false;
+                    connect = true;
+                    names = null;
+                    changed = true;
+                }
+                if (changed) {
+                    changed = false;
+                    resubscribe = names == null
+                            || !listeners.keySet().equals(
+                                    new HashSet<String>(Arrays.asList(names)));
+                    names = listeners.keySet().toArray(new String[listeners.size()]);
+                    newestTimes.keySet().retainAll(listeners.keySet());
+                    dispatch = new Listener[names.length][];
+                    for (int i = 0; i < names.length; i++) {
+                        List<Listener> list = listeners.get(names[i]);
+                        dispatch[i] = list.toArray(new Listener[list.size()]);
+                    }
+                }
+            }
+
+            ChannelMap getmap;
+            try {
+                if (connect) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Connecting to " + rbnbHost + " ...");
+                    }
+                    sink.OpenRBNBConnection(rbnbHost, clientName);
+                }
+                if (connect && state.failures > 0) {
+                    // the listeners resume from their last samples by
+                    // themselves (see Listener.fetchResumed):
+                    newestTimes.clear();
+                }
+                if (resubscribe) {
+                    channelMap.Clear();
+                    for (String name : names) {
+                        channelMap.Add(name);
+                    }
+                    double start = _getResumeTime(names, newestTimes);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Subscribing to " + names.length
+                                + " channel(s) on " + rbnbHost + " from "
+                                + start);
+                    }
+                    if (start == Double.POSITIVE_INFINITY) {
+                        sink.Subscribe(channelMap);
+                    }
+                    else {
+                        // nothing lost while the connection was renewed:
+                        sink.Subscribe(channelMap, start, 0, "absolute");
+                    }
+                }
+                if (_isWokenUp()) {
+                    // woken up while connecting: the subscription may be stale
+                    continue;
+                }
+                if (connect && state.failures > 0) {
+                    _resumed(state, dispatch);
+                }
+
+                // no timeout: _wakeUp() interrupts the fetch when needed
+                getmap = sink.Fetch(-1, channelMap);
+            }
+            catch (SAPIException e) {
+                if (!_isWokenUp()) {
+                    throw e;
+                }
+                continue;
+            }
+            if (getmap == null || getmap.NumberOfChannels() == 0) {
+                continue;
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                int index = getmap.GetIndex(names[i]);
+                if (index < 0) {
+                    continue;
+                }
+                newestTimes.put(names[i], getmap.GetTimeStart(index)
+                        + getmap.GetTimeDuration(index));
+                for (Listener listener : dispatch[i]) {
+                    try {
+                        listener.dataReceived(getmap, index);
+                    }
+                    catch (RuntimeException e) {
+                        log.warn("Error dispatching data for '" + names[i]
+                                + "'", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Interrupts the blocking fetch by closing the connection, so the fetch
+     * thread reconnects with the new subscription, or ends if there are no
+     * listeners. Called while holding the lock on the listeners.
+     */
+    private void _wakeUp() {
+        if (activeSink != null && !wokenUp) {
+            wokenUp = true;
+            if (log.isDebugEnabled()) {
+                log.debug("Waking up fetch from " + rbnbHost);
+            }
+            activeSink.CloseRBNBConnection();
+        }
+    }
+
+    /**
+     * Notifies the listeners that the fetch has resumed after a failure.
+     */
+    private void _resumed(RunState state, Listener[][] dispatch) {
+        log.info("Reconnected to " + rbnbHost + " after " + state.failures
+                + " attempt(s)");
+        state.failures = 0;
+        for (Listener[] channelListeners : dispatch) {
+            for (Listener listener : channelListeners) {
+                try {
+                    listener.fetchResumed();
+                }
+                catch (RuntimeException e) {
+                    log.warn("Error notifying resumption", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the time from which to renew the subscription to the given
+     * channels: the oldest of the newest times delivered for them, or
+     * {@link Double#POSITIVE_INFINITY} if none, to start from the newest
+     * data.
+     */
+    private static double _getResumeTime(String[] names,
+            Map<String, Double> newestTimes) {
+        double start = Double.POSITIVE_INFINITY;
+        for (String name : names) {
+            Double time = newestTimes.get(name);
+            if (time != null && time < start) {
+                start = time;
+            }
+        }
+        return start;
+    }
+
+    private boolean _isWokenUp() {
+        synchronized (listeners) {
+            return wokenUp;
+        }
+    }
+
+    /**
+     * Removes all listeners, if any, notifying them with the given reason.
+     */
+    private void _fail(String reason) {
+        List<Listener> failed = new ArrayList<Listener>();
+        synchronized (listeners) {
+            running = false;
+            for (List<Listener> list : listeners.values()) {
+                failed.addAll(list);
+            }
+            listeners.clear();
+            changed = true;
+        }
+        for (Listener listener : failed) {
+            listener.fetchFailed(reason);
+        }
+    }
+
+    public String toString() {
+        return rbnbHost + "|" + clientName + ": channels=" + getNumChannels();
+    }
+}
@@ -0,0 +1,101 @@
+package net.ooici.siamci.impl.data;
+
+/**
+ * Accumulates samples (value and time) to be published together. The
+ * internal arrays are reused across batches and only grow when needed.
+ *
+ * Not thread-safe.
+ *
+ * @author carueda
+ */
+class SampleBatch {
+
+    private double[] values;
+    private double[] times;
+    private int count;
+
+    /**
+     * @param initialCapacity
+     *            Initial capacity of the batch.
+     */
+    SampleBatch(int initialCapacity) {
+        values = new double[Math.max(1, initialCapacity)];
+        times = new double[values.length];
+    }
+
+    /**
+     * Adds samples to the batch.
+     *
+     * @param newValues
+     *            the values
+     * @param newTimes
+     *            the corresponding times; missing times are taken as 0.
+     */
+    void add(double[] newValues, double[] newTimes) {
+        int n = newValues.length;
+        _ensureCapacity(count + n);
+        System.arraycopy(newValues, 0, values, count, n);
+        int t = newTimes == null ? 0 : Math.min(n, newTimes.length);
+        System.arraycopy(newTimes == null ? times : newTimes, 0, times, count, t);
+        for (int i = t; i < n; i++) {
+            times[count + i] = 0;
+        }
+        count += n;
+    }
+
+    private void _ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int newLength = Math.max(capacity, 2 * values.length);
+            double[] newValues = new double[newLength];
+            double[] newTimes = new double[newLength];
+            System.arraycopy(values, 0, newValues, 0, count);
+            System.arraycopy(times, 0, newTimes, 0, count);
+            values = newValues;
+            times = newTimes;
+        }
+    }
+
+    /** Number of samples in the batch */
+    int size() {
+        return count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * The internal array of values; only the first {@link #size()} elements
+     * are valid, and only until the batch is modified.
+     */
+    double[] getValues() {
+        return values;
+    }
+
+    /**
+     * The internal array of times; only the first {@link #size()} elements
+     * are valid, and only until the batch is modified.
+     */
+    double[] getTimes() {
+        return times;
+    }
+
+    /** Removes all the samples */
+    void clear() {
+        count = 0;
+    }
+
+    /**
+     * Takes the values of the batch, which is then cleared.
+     *
+     * @return arrays {values, times} of exactly {@link #size()} elements each.
+     */
+    double[][] drain() {
+        double[] outValues = new double[count];
+        double[] outTimes = new double[count];
+        System.arraycopy(values, 0, outValues, 0, count);
+        System.arraycopy(times, 0, outTimes, 0, count);
+        count = 0;
+        return new double[][] { outValues, outTimes };
+    }
+}
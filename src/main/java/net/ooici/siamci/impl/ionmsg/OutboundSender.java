@@ -0,0 +1,687 @@
+package net.ooici.siamci.impl.ionmsg;
+
+import ion.core.messaging.IonMessage;
+import ion.core.messaging.MsgBrokerClient;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ooici.siamci.utils.LatencyHistogram;
+import net.ooici.siamci.utils.ScUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Sends outgoing messages on behalf of any thread. Messages are put in
+ * bounded queues, each one drained by a sender thread with its own broker
+ * connection and channel, so callers don't contend on a shared channel (which
+ * is not safe for concurrent use anyway). Each sender thread takes all the
+ * messages available in its queue at once (up to {@value #MAX_DRAIN}) and
+ * sends them back to back, which saves the handoff per message, but each
+ * message is still published on its own: messages are not combined, and (in
+ * publisher-confirm mode) confirms are tracked asynchronously rather than
+ * awaited.
+ *
+ * <p>
+ * The queue (and so the channel) of a message is chosen by its routing key,
+ * so the messages for a given routing key are always sent on the same
+ * channel, in the order they were queued; the broker only preserves the
+ * order of the messages published on a same channel.
+ *
+ * <p>
+ * Optionally, the channels are put in publisher-confirm mode: the outstanding
+ * messages are then tracked by sequence number and the listener of each
+ * message is notified when the broker confirms it (ack) or reports it as lost
+ * (nack, see {@link NackException}), so the sender threads never wait for the
+ * broker. If the channel is closed (eg., the broker is restarted), the
+ * messages still waiting for their confirms are reported as failed.
+ *
+ * <p>
+ * A sender thread that finds its channel closed connects again, with an
+ * exponential backoff from {@value #RETRY_MIN_MS} ms up to the system
+ * property "siamci.senders.retryMaxMs" (default: 30000). Until then, the
+ * messages it takes from its queue are reported as failed right away, so the
+ * caller can keep them (see {@link PublishSpool}) instead of having them
+ * wait in the queue.
+ *
+ * <p>
+ * The queue depth, the send latency (from enqueue to sent, or to confirmed in
+ * confirm mode) and the outstanding confirms are available via JMX
+ * (net.ooici.siamci:type=OutboundSender).
+ *
+ * @author carueda
+ */
+class OutboundSender implements OutboundSenderMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(OutboundSender.class);
+
+    /** Maximum number of messages taken from the queue at once */
+    private static final int MAX_DRAIN = 64;
+
+    /** How long {@link #send} waits for room in the queue */
+    private static final long OFFER_TIMEOUT_MS = 1000;
+
+    /** Initial delay before connecting again to the broker */
+    private static final long RETRY_MIN_MS = 500;
+
+    /** Maximum delay before connecting again to the broker */
+    private static final long RETRY_MAX_MS = ScUtils.getIntProperty("siamci.senders.retryMaxMs",
+            30 * 1000);
+
+    /** How long a sender thread waits for outstanding confirms when stopping */
+    private static final long CONFIRMS_TIMEOUT_MS = 2000;
+
+    /**
+     * Notified about the outcome of a send. Called in the sender thread, in
+     * the connection thread (when a confirm arrives) or in the calling thread
+     * (if the message could not be queued), so this should return quickly.
+     */
+    interface Listener {
+        void sent();
+
+        void failed(Throwable e);
+    }
+
+    /**
+     * Reported to {@link Listener#failed(Throwable)} when the broker nacks a
+     * message in confirm mode.
+     */
+    static class NackException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        NackException(String routingKey) {
+            super("Message to '" + routingKey + "' nacked by the broker");
+        }
+    }
+
+    private static class Outgoing {
+        final IonMessage msg;
+        final String routingKey;
+        final boolean mandatory;
+        final Listener listener;
+        final long enqueuedAt = System.nanoTime();
+
+        Outgoing(IonMessage msg, String routingKey, boolean mandatory,
+                Listener listener) {
+            this.msg = msg;
+            this.routingKey = routingKey;
+            this.mandatory = mandatory;
+            this.listener = listener;
+        }
+    }
+
+    /** Put in each queue by {@link #stop()} */
+    private static final Outgoing STOP = new Outgoing(null, null, false, null);
+
+    private final String name;
+    private final String brokerHost;
+    private final int brokerPort;
+    private final String ionExchange;
+    private final int numSenders;
+    private final int queueCapacity;
+    private final boolean confirms;
+    private final ReturnListener returnListener;
+
+    /** The queue of each sender thread */
+    private final List<BlockingQueue<Outgoing>> queues = new ArrayList<BlockingQueue<Outgoing>>();
+
+    private final List<SenderThread> senderThreads = new ArrayList<SenderThread>();
+
+    private volatile boolean running;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong nackCount = new AtomicLong();
+
+    /** routingKey -> number of messages waiting for confirmation */
+    private final ConcurrentMap<String, AtomicInteger> outstanding = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Creates the sender. Call {@link #start()} to start the sender threads.
+     *
+     * @param name
+     *            Name of this sender, used for the threads and the MBean.
+     * @param brokerHost
+     * @param brokerPort
+     * @param ionExchange
+     * @param numSenders
+     *            Number of sender threads
+     * @param queueCapacity
+     *            Total capacity of the queues, evenly divided among the
+     *            sender threads
+     * @param confirms
+     *            Whether to use publisher confirms.
+     * @param returnListener
+     *            Set to the channel of each sender, if not null.
+     */
+    OutboundSender(String name, String brokerHost, int brokerPort,
+            String ionExchange, int numSenders, int queueCapacity,
+            boolean confirms, ReturnListener returnListener) {
+        this.name = name;
+        this.brokerHost = brokerHost;
+        this.brokerPort = brokerPort;
+        this.ionExchange = ionExchange;
+        this.numSenders = Math.max(1, numSenders);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.confirms = confirms;
+        this.returnListener = returnListener;
+        int capacity = (this.queueCapacity + this.numSenders - 1)
+                / this.numSenders;
+        for (int i = 0; i < this.numSenders; i++) {
+            queues.add(new ArrayBlockingQueue<Outgoing>(capacity));
+        }
+    }
+
+    /**
+     * Creates the broker clients and starts the sender threads.
+     */
+    synchronized void start() throws IOException {
+        running = true;
+        for (int i = 0; i < numSenders; i++) {
+            SenderThread senderThread = new SenderThread(name + "-sender-"
+                    + (i + 1), queues.get(i));
+            senderThreads.add(senderThread);
+            senderThread.start();
+        }
+        ScUtils.registerMBean(this, "OutboundSender", name);
+
+        log.info("Outbound sender '" + name + "' started: senders="
+                + numSenders + " queue=" + queueCapacity + " confirms="
+                + confirms);
+    }
+
+    /**
+     * Stops the sender threads once the messages already in the queue have
+     * been sent (and confirmed, in confirm mode). Each thread is woken up by a
+     * stop marker put behind those messages.
+     */
+    synchronized void stop() {
+        running = false;
+        try {
+            for (SenderThread senderThread : senderThreads) {
+                senderThread.queue.put(STOP);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (SenderThread senderThread : senderThreads) {
+            try {
+                senderThread.join(5 * 1000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        senderThreads.clear();
+    }
+
+    /**
+     * Gets the queue for the given routing key.
+     */
+    private BlockingQueue<Outgoing> _getQueue(String routingKey) {
+        int hash = routingKey == null ? 0 : routingKey.hashCode();
+        return queues.get((hash & Integer.MAX_VALUE) % queues.size());
+    }
+
+    /**
+     * Queues a message to be sent.
+     *
+     * @param msg
+     *            the message
+     * @param routingKey
+     *            the routing key of the message, used to choose the sender
+     *            thread, to track outstanding confirms and for logging
+     *            purposes.
+     * @param mandatory
+     *            the mandatory flag for basic.publish
+     * @param listener
+     *            notified about the outcome, if not null
+     */
+    void send(IonMessage msg, String routingKey, boolean mandatory,
+            Listener listener) {
+        _queue(msg, routingKey, mandatory, listener, OFFER_TIMEOUT_MS);
+    }
+
+    /**
+     * Like {@link #send(IonMessage, String, boolean, Listener)}, but without
+     * waiting for room in the queue: if it is full, the listener is notified
+     * of the failure right away, in the calling thread.
+     */
+    void trySend(IonMessage msg, String routingKey, boolean mandatory,
+            Listener listener) {
+        _queue(msg, routingKey, mandatory, listener, 0);
+    }
+
+    private void _queue(IonMessage msg, String routingKey, boolean mandatory,
+            Listener listener, long timeoutMillis) {
+        Outgoing outgoing = new Outgoing(msg, routingKey, mandatory, listener);
+        boolean queued = false;
+        if (running) {
+            try {
+                queued = _getQueue(routingKey).offer(outgoing,
+                        timeoutMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!queued) {
+            rejectedCount.incrementAndGet();
+            if (listener != null) {
+                listener.failed(new Exception("Outbound queue '" + name
+                        + (running ? "' full" : "' stopped")));
+            }
+        }
+    }
+
+    /**
+     * A client that gives access to its channel and sets our
+     * {@link ReturnListener} (if any) upon attach.
+     */
+    private class SenderClient extends MsgBrokerClient {
+
+        SenderClient() {
+            super(brokerHost, brokerPort, ionExchange);
+        }
+
+        @Override
+        public void attach() {
+            // do the regular attach:
+            super.attach();
+
+            // and set our return listener:
+            if (returnListener != null) {
+                mDefaultChannel.setReturnListener(returnListener);
+                if (log.isDebugEnabled()) {
+                    log.debug("Return listener has been set to the channel");
+                }
+            }
+        }
+
+        Channel getChannel() {
+            return mDefaultChannel;
+        }
+    }
+
+    private void _outstanding(String routingKey, int delta) {
+        AtomicInteger count = outstanding.get(routingKey);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = outstanding.putIfAbsent(routingKey, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.addAndGet(delta);
+    }
+
+    private void _succeeded(Outgoing outgoing) {
+        sentCount.incrementAndGet();
+        latency.recordSince(outgoing.enqueuedAt);
+        if (outgoing.listener != null) {
+            outgoing.listener.sent();
+        }
+    }
+
+    private void _failed(Outgoing outgoing, Throwable e) {
+        failedCount.incrementAndGet();
+        if (outgoing.listener != null) {
+            outgoing.listener.failed(e);
+        }
+        else {
+            log.warn("Cannot send message to '" + outgoing.routingKey + "'",
+                    e);
+        }
+    }
+
+    private class SenderThread extends Thread implements ConfirmListener,
+            ShutdownListener {
+        private final BlockingQueue<Outgoing> queue;
+
+        /** null while disconnected */
+        private volatile SenderClient ionClient;
+
+        /** seqNo -> message waiting for confirmation */
+        private final SortedMap<Long, Outgoing> pending = new TreeMap<Long, Outgoing>();
+
+        /** Consecutive failed connection attempts; sender thread only */
+        private int attempts;
+
+        /** Time of the next connection attempt; sender thread only */
+        private long nextAttempt;
+
+        SenderThread(String threadName, BlockingQueue<Outgoing> queue)
+                throws IOException {
+            super(threadName);
+            this.queue = queue;
+            this.ionClient = _connect();
+        }
+
+        private SenderClient _connect() throws IOException {
+            SenderClient client = new SenderClient();
+            client.attach();
+            if (confirms) {
+                Channel channel = client.getChannel();
+                channel.setConfirmListener(this);
+                channel.addShutdownListener(this);
+                channel.confirmSelect();
+            }
+            return client;
+        }
+
+        /**
+         * Connects again to the broker if the channel is closed, unless the
+         * next attempt is not due yet.
+         * 
+         * @return true if connected.
+         */
+        private boolean _ensureConnected() {
+            SenderClient client = ionClient;
+            if (client != null && client.getChannel() != null
+                    && client.getChannel().isOpen()) {
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if (now < nextAttempt) {
+                return false;
+            }
+            if (client != null) {
+                ionClient = null;
+                // the channel is gone, and so are the pending confirms:
+                _failPending(new IOException("Channel closed"));
+                try {
+                    client.detach();
+                }
+                catch (RuntimeException e) {
+                    // already closed
+                }
+            }
+            try {
+                ionClient = _connect();
+                if (attempts > 0) {
+                    log.info(getName() + ": connected again to the broker after "
+                            + attempts + " attempt(s)");
+                }
+                attempts = 0;
+                return true;
+            }
+            catch (Exception e) {
+                attempts++;
+                long delay = RETRY_MIN_MS;
+                for (int i = 1; i < attempts && delay < RETRY_MAX_MS; i++) {
+                    delay *= 2;
+                }
+                delay = Math.min(delay, RETRY_MAX_MS);
+                nextAttempt = now + delay;
+                log.warn(getName() + ": cannot connect to the broker (attempt "
+                        + attempts + "), retrying in " + delay + " ms: " + e);
+                return false;
+            }
+        }
+
+        public void run() {
+            List<Outgoing> drained = new ArrayList<Outgoing>(MAX_DRAIN);
+            try {
+                boolean stop = false;
+                while (!stop) {
+                    // blocks until there is work or the stop marker:
+                    drained.add(queue.take());
+                    queue.drainTo(drained, MAX_DRAIN - 1);
+                    for (Outgoing outgoing : drained) {
+                        if (stop) {
+                            // queued while stopping
+                            _failed(outgoing, new Exception("Outbound queue '"
+                                    + name + "' stopped"));
+                        }
+                        else if (outgoing == STOP) {
+                            stop = true;
+                        }
+                        else {
+                            _send(outgoing);
+                        }
+                    }
+                    drained.clear();
+                }
+                if (confirms) {
+                    _awaitConfirms();
+                }
+            }
+            catch (InterruptedException e) {
+                log.warn(getName() + " interrupted");
+            }
+            finally {
+                SenderClient client = ionClient;
+                if (client != null) {
+                    client.detach();
+                }
+            }
+        }
+
+        private void _send(Outgoing outgoing) {
+            if (!_ensureConnected()) {
+                _failed(outgoing, new IOException("Not connected to the broker"));
+                return;
+            }
+            SenderClient client = ionClient;
+            long seqNo = -1;
+            try {
+                if (confirms) {
+                    synchronized (pending) {
+                        seqNo = client.getChannel().getNextPublishSeqNo();
+                        pending.put(seqNo, outgoing);
+                    }
+                    _outstanding(outgoing.routingKey, 1);
+                }
+                if (outgoing.mandatory) {
+                    client.sendMessage(outgoing.msg, true, false);
+                }
+                else {
+                    client.sendMessage(outgoing.msg);
+                }
+            }
+            catch (Throwable e) {
+                if (seqNo >= 0) {
+                    synchronized (pending) {
+                        if (pending.remove(seqNo) == null) {
+                            // already failed by shutdownCompleted
+                            return;
+                        }
+                    }
+                    _outstanding(outgoing.routingKey, -1);
+                }
+                _failed(outgoing, e);
+                return;
+            }
+
+            if (!confirms) {
+                _succeeded(outgoing);
+            }
+        }
+
+        /**
+         * Waits a bit for the outstanding confirms; the messages not confirmed
+         * by then are reported as failed.
+         */
+        private void _awaitConfirms() throws InterruptedException {
+            long limit = System.currentTimeMillis() + CONFIRMS_TIMEOUT_MS;
+            List<Outgoing> unconfirmed = new ArrayList<Outgoing>();
+            synchronized (pending) {
+                long remaining;
+                while (!pending.isEmpty()
+                        && (remaining = limit - System.currentTimeMillis()) > 0) {
+                    pending.wait(remaining);
+                }
+                unconfirmed.addAll(pending.values());
+                pending.clear();
+            }
+            for (Outgoing outgoing : unconfirmed) {
+                _outstanding(outgoing.routingKey, -1);
+                _failed(outgoing, new Exception("No confirm received for message to '"
+                        + outgoing.routingKey + "'"));
+            }
+        }
+
+        /**
+         * Removes and returns the messages covered by the given confirm.
+         */
+        private List<Outgoing> _confirmed(long deliveryTag, boolean multiple) {
+            List<Outgoing> list = new ArrayList<Outgoing>();
+            synchronized (pending) {
+                if (multiple) {
+                    SortedMap<Long, Outgoing> head = pending.headMap(deliveryTag + 1);
+                    list.addAll(head.values());
+                    head.clear();
+                }
+                else {
+                    Outgoing outgoing = pending.remove(deliveryTag);
+                    if (outgoing != null) {
+                        list.add(outgoing);
+                    }
+                }
+                if (pending.isEmpty()) {
+                    pending.notifyAll();
+                }
+            }
+            return list;
+        }
+
+        /**
+         * {@link ShutdownListener} operation, called when the channel is
+         * closed: the messages waiting for confirmation will never be
+         * confirmed, so they are reported as failed.
+         */
+        public void shutdownCompleted(ShutdownSignalException cause) {
+            SenderClient client = ionClient;
+            if (client != null && client.getChannel() != null
+                    && client.getChannel().isOpen()) {
+                // a previous channel, whose messages were already failed
+                return;
+            }
+            _failPending(cause);
+        }
+
+        /**
+         * Reports the messages waiting for confirmation as failed.
+         */
+        private void _failPending(Throwable cause) {
+            List<Outgoing> unconfirmed = new ArrayList<Outgoing>();
+            synchronized (pending) {
+                unconfirmed.addAll(pending.values());
+                pending.clear();
+                pending.notifyAll();
+            }
+            if (!unconfirmed.isEmpty()) {
+                log.warn(getName() + ": channel closed with "
+                        + unconfirmed.size() + " message(s) not confirmed");
+            }
+            for (Outgoing outgoing : unconfirmed) {
+                _outstanding(outgoing.routingKey, -1);
+                _failed(outgoing, cause);
+            }
+        }
+
+        /**
+         * {@link ConfirmListener} operation, called in the connection thread.
+         */
+        public void handleAck(long deliveryTag, boolean multiple) {
+            for (Outgoing outgoing : _confirmed(deliveryTag, multiple)) {
+                _outstanding(outgoing.routingKey, -1);
+                _succeeded(outgoing);
+            }
+        }
+
+        /**
+         * {@link ConfirmListener} operation, called in the connection thread.
+         */
+        public void handleNack(long deliveryTag, boolean multiple) {
+            for (Outgoing outgoing : _confirmed(deliveryTag, multiple)) {
+                _outstanding(outgoing.routingKey, -1);
+                nackCount.incrementAndGet();
+                _failed(outgoing, new NackException(outgoing.routingKey));
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (BlockingQueue<Outgoing> queue : queues) {
+            size += queue.size();
+        }
+        return size;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getNackCount() {
+        return nackCount.get();
+    }
+
+    public String[] getOutstandingConfirms() {
+        List<String> list = new ArrayList<String>();
+        for (String routingKey : outstanding.keySet()) {
+            AtomicInteger count = outstanding.get(routingKey);
+            if (count != null && count.get() > 0) {
+                list.add(routingKey + ": " + count.get());
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    public String getLatency() {
+        return latency.toString();
+    }
+
+    public String toString() {
+        return String.format("%s: senders=%d queued=%d/%d sent=%d failed=%d rejected=%d nacked=%d latency(ms): %s",
+                name,
+                numSenders,
+                getQueueSize(),
+                queueCapacity,
+                getSentCount(),
+                getFailedCount(),
+                getRejectedCount(),
+                getNackCount(),
+                getLatency());
+    }
+}
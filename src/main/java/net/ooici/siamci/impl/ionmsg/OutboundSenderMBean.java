@@ -0,0 +1,37 @@
+package net.ooici.siamci.impl.ionmsg;
+
+/**
+ * JMX management interface of an {@link OutboundSender}.
+ *
+ * @author carueda
+ */
+public interface OutboundSenderMBean {
+
+    /** Name of the sender */
+    public String getName();
+
+    /** Number of messages waiting to be sent, in all the queues */
+    public int getQueueSize();
+
+    /** Total capacity of the queues */
+    public int getQueueCapacity();
+
+    /** Number of messages sent */
+    public long getSentCount();
+
+    /** Number of messages that could not be sent */
+    public long getFailedCount();
+
+    /** Number of messages rejected because the queue was full */
+    public long getRejectedCount();
+
+    /** Number of messages nacked by the broker (confirm mode) */
+    public long getNackCount();
+
+    /** Number of messages waiting for confirmation, per routing key */
+    public String[] getOutstandingConfirms();
+
+    /** Summary of the latency from enqueue to sent (or confirmed), in milliseconds */
+    public String getLatency();
+
+}
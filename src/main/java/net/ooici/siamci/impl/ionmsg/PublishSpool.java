@@ -0,0 +1,441 @@
+package net.ooici.siamci.impl.ionmsg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.SegmentedSpool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the published messages that could not be sent, one
+ * {@link SegmentedSpool} per publish stream, and sends them again, in order,
+ * once the broker accepts them.
+ *
+ * <p>
+ * While the spool of a stream is not empty, new messages for the stream are
+ * also spooled (see {@link #isSpooling(String)}) so they are not sent ahead of
+ * the older ones. The spool is replayed by a single thread in batches of
+ * {@value #REPLAY_BATCH} messages sent back to back; a batch is removed from
+ * the spool up to its first message not sent, and the replay is retried after
+ * "siamci.spool.retryMs" milliseconds (default: 5000). Messages are sent at
+ * least once: a batch that partially fails may send some messages again.
+ *
+ * <p>
+ * Configuration (system properties): the segment size
+ * "siamci.spool.segmentKB" (default: 8192), the maximum size of the spool of
+ * each stream "siamci.spool.maxMB" (default: 256), and the retention
+ * "siamci.spool.retentionHours" (default: 24).
+ *
+ * @author carueda
+ */
+class PublishSpool implements PublishSpoolMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(PublishSpool.class);
+
+    private static final int SEGMENT_SIZE = 1024 * ScUtils.getIntProperty("siamci.spool.segmentKB",
+            8 * 1024);
+
+    private static final long MAX_BYTES = 1024L * 1024 * ScUtils.getIntProperty("siamci.spool.maxMB",
+            256);
+
+    private static final long RETENTION_MILLIS = 3600L * 1000 * ScUtils.getIntProperty("siamci.spool.retentionHours",
+            24);
+
+    private static final long RETRY_MILLIS = ScUtils.getIntProperty("siamci.spool.retryMs",
+            5000);
+
+    /** Maximum number of messages replayed at once */
+    private static final int REPLAY_BATCH = 256;
+
+    /** How long the replay waits for the outcome of a batch */
+    private static final long REPLAY_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Sends a spooled message.
+     */
+    interface Sender {
+        void send(int reqId, String publishId, byte[] content,
+                String encoding, Map<String, String> headers,
+                String streamName, OutboundSender.Listener listener);
+    }
+
+    /** The spool of a stream */
+    private class StreamSpool {
+        final String streamName;
+        final SegmentedSpool spool;
+
+        /** Set while a replay is scheduled or running */
+        final AtomicBoolean replaying = new AtomicBoolean();
+
+        final Runnable replayRunnable = new Runnable() {
+            public void run() {
+                _replay(StreamSpool.this);
+            }
+        };
+
+        StreamSpool(String streamName, SegmentedSpool spool) {
+            this.streamName = streamName;
+            this.spool = spool;
+        }
+    }
+
+    private final File dir;
+    private final Sender sender;
+
+    /** streamName -> spool */
+    private final ConcurrentMap<String, StreamSpool> spools = new ConcurrentHashMap<String, StreamSpool>();
+
+    /** streamName -> lock, see {@link #getStreamLock(String)} */
+    private final ConcurrentMap<String, Object> streamLocks = new ConcurrentHashMap<String, Object>();
+
+    private final ScheduledExecutorService replayService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "publish-spool");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicLong spooledCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+
+    /**
+     * Creates the spool, loading the existing stream spools in the directory.
+     * Call {@link #start()} to replay them.
+     *
+     * @param dir
+     *            base directory; each stream is kept in a subdirectory.
+     * @param sender
+     *            to send the spooled messages
+     */
+    PublishSpool(File dir, Sender sender) {
+        this.dir = dir;
+        this.sender = sender;
+
+        File[] subdirs = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        });
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                try {
+                    String streamName = URLDecoder.decode(subdir.getName(),
+                            "UTF-8");
+                    _getStreamSpool(streamName);
+                }
+                catch (IOException e) {
+                    log.warn("Cannot open spool " + subdir, e);
+                }
+            }
+        }
+
+        ScUtils.registerMBean(this, "PublishSpool", dir.getPath());
+    }
+
+    /**
+     * Starts the replay of the messages already in the spool.
+     */
+    void start() {
+        for (StreamSpool ss : spools.values()) {
+            if (!ss.spool.isEmpty()) {
+                log.info("Spool of '" + ss.streamName + "' has "
+                        + ss.spool.size() + " message(s) to send");
+                _scheduleReplay(ss, 0);
+            }
+        }
+    }
+
+    /**
+     * Stops the replay and writes the spools to the storage device. Messages
+     * can still be spooled, and will be replayed upon the next start.
+     */
+    void stop() {
+        replayService.shutdownNow();
+        for (StreamSpool ss : spools.values()) {
+            ss.spool.force();
+        }
+    }
+
+    /**
+     * Gets the lock under which the publisher decides whether to spool or
+     * send a message of the given stream, and spools the messages that
+     * could not be sent, so the order of the stream is preserved.
+     */
+    Object getStreamLock(String streamName) {
+        Object lock = streamLocks.get(streamName);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = streamLocks.putIfAbsent(streamName, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Tells whether the stream has messages waiting in the spool, in which
+     * case new messages for it should also be spooled.
+     */
+    boolean isSpooling(String streamName) {
+        StreamSpool ss = spools.get(streamName);
+        return ss != null && !ss.spool.isEmpty();
+    }
+
+    /**
+     * Spools a message, and schedules its replay.
+     *
+     * @param headers
+     *            additional headers of the message; can be null.
+     * @return true if spooled; false if the message could not be spooled (the
+     *         reason is logged).
+     */
+    boolean append(int reqId, String publishId, byte[] content,
+            String encoding, Map<String, String> headers, String streamName) {
+        try {
+            StreamSpool ss = _getStreamSpool(streamName);
+            ss.spool.append(_encode(reqId,
+                    publishId,
+                    content,
+                    encoding,
+                    headers));
+            spooledCount.incrementAndGet();
+            _scheduleReplay(ss, RETRY_MILLIS);
+            return true;
+        }
+        catch (IOException e) {
+            log.warn(ScUtils.formatReqId(reqId) + "Cannot spool message for '"
+                    + streamName + "'", e);
+        }
+        catch (IllegalArgumentException e) {
+            log.warn(ScUtils.formatReqId(reqId) + "Cannot spool message for '"
+                    + streamName + "': " + e.getMessage());
+        }
+        return false;
+    }
+
+    private StreamSpool _getStreamSpool(String streamName) throws IOException {
+        StreamSpool ss = spools.get(streamName);
+        if (ss == null) {
+            synchronized (spools) {
+                ss = spools.get(streamName);
+                if (ss == null) {
+                    File streamDir = new File(dir, URLEncoder.encode(streamName,
+                            "UTF-8"));
+                    ss = new StreamSpool(streamName, new SegmentedSpool(streamDir,
+                            SEGMENT_SIZE,
+                            MAX_BYTES,
+                            RETENTION_MILLIS));
+                    spools.put(streamName, ss);
+                }
+            }
+        }
+        return ss;
+    }
+
+    private void _scheduleReplay(StreamSpool ss, long delayMillis) {
+        if (ss.replaying.compareAndSet(false, true)) {
+            try {
+                replayService.schedule(ss.replayRunnable,
+                        delayMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            catch (RejectedExecutionException e) {
+                // stopped: replayed upon the next start
+                ss.replaying.set(false);
+            }
+        }
+    }
+
+    /**
+     * Sends the spooled messages of a stream, batch by batch, until the spool
+     * is empty or a message cannot be sent.
+     */
+    private void _replay(StreamSpool ss) {
+        try {
+            while (true) {
+                SegmentedSpool.Batch batch = ss.spool.peek(REPLAY_BATCH);
+                List<byte[]> records = batch.getRecords();
+                if (records.isEmpty()) {
+                    ss.replaying.set(false);
+                    // a message may have been spooled in the meantime:
+                    if (!ss.spool.isEmpty()) {
+                        _scheduleReplay(ss, 0);
+                    }
+                    return;
+                }
+
+                int sent = _replayBatch(ss, records);
+                ss.spool.commit(batch, sent);
+                replayedCount.addAndGet(sent);
+                if (log.isDebugEnabled()) {
+                    log.debug("Replayed " + sent + "/" + records.size()
+                            + " message(s) to '" + ss.streamName + "'");
+                }
+                if (sent < records.size()) {
+                    ss.replaying.set(false);
+                    _scheduleReplay(ss, RETRY_MILLIS);
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // stopped
+            ss.replaying.set(false);
+        }
+    }
+
+    /**
+     * Sends a batch and waits for the outcome of each message.
+     *
+     * @return number of messages at the beginning of the batch that were
+     *         sent.
+     */
+    private int _replayBatch(StreamSpool ss, List<byte[]> records)
+            throws InterruptedException {
+        final int size = records.size();
+        final CountDownLatch latch = new CountDownLatch(size);
+        final AtomicIntegerArray done = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            final int index = i;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(records.get(i)));
+            try {
+                int reqId = in.readInt();
+                String publishId = in.readUTF();
+                String encoding = in.readUTF();
+                Map<String, String> headers = null;
+                int numHeaders = in.readUnsignedShort();
+                if (numHeaders > 0) {
+                    headers = new LinkedHashMap<String, String>();
+                    for (int h = 0; h < numHeaders; h++) {
+                        String name = in.readUTF();
+                        headers.put(name, in.readUTF());
+                    }
+                }
+                byte[] content = new byte[in.available()];
+                in.readFully(content);
+
+                sender.send(reqId,
+                        publishId,
+                        content,
+                        encoding,
+                        headers,
+                        ss.streamName,
+                        new OutboundSender.Listener() {
+                            public void sent() {
+                                done.set(index, 1);
+                                latch.countDown();
+                            }
+
+                            public void failed(Throwable e) {
+                                latch.countDown();
+                            }
+                        });
+            }
+            catch (IOException e) {
+                log.warn("Discarding unreadable spooled message for '"
+                        + ss.streamName + "'", e);
+                done.set(index, 1);
+                latch.countDown();
+            }
+        }
+        latch.await(REPLAY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        int sent = 0;
+        while (sent < size && done.get(sent) == 1) {
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Encodes a message as: reqId, publishId, encoding, number of headers
+     * (unsigned short) followed by each name and value, and the content.
+     */
+    private static byte[] _encode(int reqId, String publishId,
+            byte[] content, String encoding, Map<String, String> headers)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(reqId);
+        out.writeUTF(publishId == null ? "" : publishId);
+        out.writeUTF(encoding);
+        if (headers == null) {
+            out.writeShort(0);
+        }
+        else {
+            out.writeShort(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                out.writeUTF(header.getKey());
+                out.writeUTF(header.getValue());
+            }
+        }
+        out.write(content);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public long getSpooledCount() {
+        return spooledCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    public long getPendingCount() {
+        long count = 0;
+        for (StreamSpool ss : spools.values()) {
+            count += ss.spool.size();
+        }
+        return count;
+    }
+
+    public long getDroppedCount() {
+        long count = 0;
+        for (StreamSpool ss : spools.values()) {
+            count += ss.spool.getDroppedCount();
+        }
+        return count;
+    }
+
+    public String[] getStreams() {
+        List<String> list = new ArrayList<String>();
+        for (StreamSpool ss : spools.values()) {
+            list.add(ss.streamName + ": pending=" + ss.spool.size()
+                    + " dropped=" + ss.spool.getDroppedCount() + " diskMB="
+                    + ss.spool.getDiskUsage() / (1024 * 1024));
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    public String toString() {
+        return dir + ": streams=" + spools.size() + " pending="
+                + getPendingCount();
+    }
+}
@@ -0,0 +1,24 @@
+package net.ooici.siamci.impl.ionmsg;
+
+/**
+ * JMX management interface of the {@link PublishSpool}.
+ *
+ * @author carueda
+ */
+public interface PublishSpoolMBean {
+
+    /** Number of messages written to the spool */
+    public long getSpooledCount();
+
+    /** Number of spooled messages sent */
+    public long getReplayedCount();
+
+    /** Number of messages in the spool waiting to be sent */
+    public long getPendingCount();
+
+    /** Number of spooled messages discarded by the size or age limits */
+    public long getDroppedCount();
+
+    /** State of the spool of each stream */
+    public String[] getStreams();
+}
@@ -0,0 +1,155 @@
+package net.ooici.siamci.impl.ionmsg;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of the replies recently sent, keyed by the sender and
+ * conv-id of the corresponding requests; the pending entries are never
+ * evicted. Used in the ack-after-reply mode so
+ * a redelivered request is answered with the cached reply instead of being
+ * processed again.
+ *
+ * <p>
+ * An entry is first marked as pending with {@link #start(String)} when the
+ * processing of the request begins, and then either completed with the
+ * encoded reply ({@link #complete(String, byte[])}) or removed if the reply
+ * could not be sent ({@link #abort(String)}).
+ *
+ * <p>
+ * The deliveries of duplicates received while the request is being processed
+ * are held ({@link #hold(String, RequestIntake.Delivery)}) and given back upon
+ * completion or abort, so they are acknowledged only once the original is
+ * replied, or requeued if it fails.
+ *
+ * @author carueda
+ */
+class ReplyCache {
+
+    /** Value of the entries whose reply is not yet available */
+    private static final byte[] PENDING = new byte[0];
+
+    private final Map<String, byte[]> map;
+
+    /** key -> deliveries held while the request is pending */
+    private final Map<String, List<RequestIntake.Delivery>> held = new HashMap<String, List<RequestIntake.Delivery>>();
+
+    /**
+     * @param capacity
+     *            Maximum number of entries
+     */
+    ReplyCache(final int capacity) {
+        map = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                // the pending entries are kept, as they may have deliveries
+                // held; the least recently used of the others is removed:
+                Iterator<Map.Entry<String, byte[]>> it = entrySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getValue() != PENDING) {
+                        it.remove();
+                        break;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the key for a request.
+     *
+     * @return the key, or null if the conv-id is not given (in which case the
+     *         request cannot be identified).
+     */
+    static String getKey(String sender, String convId) {
+        return convId == null ? null : sender + "|" + convId;
+    }
+
+    /**
+     * Gets the cached reply for the given request.
+     *
+     * @return the encoded reply, or null if there is no entry or the entry is
+     *         still pending.
+     */
+    synchronized byte[] getReply(String key) {
+        byte[] content = map.get(key);
+        return content == PENDING ? null : content;
+    }
+
+    /**
+     * Marks the given request as being processed.
+     *
+     * @return true if there was no entry for the request; false if the request
+     *         is already being processed or has been replied.
+     */
+    synchronized boolean start(String key) {
+        if (map.containsKey(key)) {
+            return false;
+        }
+        map.put(key, PENDING);
+        return true;
+    }
+
+    /**
+     * Holds the delivery of a duplicate of a request being processed.
+     *
+     * @return true if held; false if the request is not pending (anymore), in
+     *         which case the caller should check the cache again.
+     */
+    synchronized boolean hold(String key, RequestIntake.Delivery delivery) {
+        if (map.get(key) != PENDING) {
+            return false;
+        }
+        List<RequestIntake.Delivery> list = held.get(key);
+        if (list == null) {
+            list = new ArrayList<RequestIntake.Delivery>();
+            held.put(key, list);
+        }
+        list.add(delivery);
+        return true;
+    }
+
+    /**
+     * Sets the encoded reply for the given request.
+     *
+     * @return the deliveries held for the request; possibly empty.
+     */
+    synchronized List<RequestIntake.Delivery> complete(String key,
+            byte[] content) {
+        map.put(key, content);
+        return _release(key);
+    }
+
+    /**
+     * Removes the entry for the given request, so a redelivery is processed
+     * again.
+     *
+     * @return the deliveries held for the request; possibly empty.
+     */
+    synchronized List<RequestIntake.Delivery> abort(String key) {
+        map.remove(key);
+        return _release(key);
+    }
+
+    private List<RequestIntake.Delivery> _release(String key) {
+        List<RequestIntake.Delivery> list = held.remove(key);
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return list;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+}
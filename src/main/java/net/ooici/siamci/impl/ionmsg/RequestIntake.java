@@ -0,0 +1,315 @@
+package net.ooici.siamci.impl.ionmsg;
+
+import ion.core.messaging.IonMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.ooici.siamci.utils.ScUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Push-based intake of the requests arriving at the service queue.
+ *
+ * <p>
+ * A number of consumers are attached to the queue. Each consumer has its own
+ * broker connection and channel with a basic.qos prefetch window, so the broker
+ * keeps every consumer supplied with requests and no polling is involved. (Note
+ * that the AMQP client dispatches the deliveries of all the channels of a
+ * connection on a single thread, hence the connection per consumer.)
+ *
+ * <p>
+ * A consumer whose connection is lost (eg., the broker is restarted) connects
+ * again and re-attaches to the queue, with an exponential backoff from
+ * {@value #RETRY_MIN_MS} ms up to the system property
+ * "siamci.consumers.retryMaxMs" (default: 30000). The requests it had not
+ * acknowledged are redelivered by the broker.
+ *
+ * @author carueda
+ */
+class RequestIntake {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestIntake.class);
+
+    /** Initial delay before connecting again a consumer */
+    private static final long RETRY_MIN_MS = 500;
+
+    /** Maximum delay before connecting again a consumer */
+    private static final long RETRY_MAX_MS = ScUtils.getIntProperty("siamci.consumers.retryMaxMs",
+            30000);
+
+    /**
+     * Notified about each incoming request.
+     */
+    interface Listener {
+
+        /**
+         * Called in the delivery thread of the consumer that got the request,
+         * so this should return quickly.
+         *
+         * @param reqId
+         *            An ID for the request, unique across all consumers.
+         * @param msgin
+         *            The incoming message
+         * @param delivery
+         *            To acknowledge the message.
+         */
+        void requestReceived(int reqId, IonMessage msgin, Delivery delivery);
+    }
+
+    /**
+     * Allows to acknowledge a request on the channel it was delivered through.
+     */
+    static class Delivery {
+        private final Channel channel;
+        private final long deliveryTag;
+
+        Delivery(Channel channel, long deliveryTag) {
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+        }
+
+        /**
+         * Acknowledges the message. Can be called from any thread.
+         */
+        void ack() throws IOException {
+            synchronized (channel) {
+                channel.basicAck(deliveryTag, false);
+            }
+        }
+
+        /**
+         * Rejects the message, requeuing it so the broker delivers it again.
+         * Can be called from any thread.
+         */
+        void requeue() throws IOException {
+            synchronized (channel) {
+                channel.basicReject(deliveryTag, true);
+            }
+        }
+    }
+
+    private final String brokerHost;
+    private final int brokerPort;
+    private final String queueName;
+    private final int numConsumers;
+    private final int prefetch;
+    private final Listener listener;
+
+    /** Source of request IDs, shared by all consumers */
+    private final AtomicInteger nextReqId = new AtomicInteger();
+
+    private final List<ConsumerSlot> slots = new ArrayList<ConsumerSlot>();
+
+    /** Set while started; guarded by this */
+    private boolean started;
+
+    private final ScheduledExecutorService reconnectService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "request-intake");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Creates the intake. Call {@link #start()} to start consuming.
+     *
+     * @param brokerHost
+     * @param brokerPort
+     * @param queueName
+     *            The queue to consume requests from
+     * @param numConsumers
+     *            Number of consumers
+     * @param prefetch
+     *            basic.qos prefetch count for each consumer
+     * @param listener
+     *            Notified about each request
+     */
+    RequestIntake(String brokerHost, int brokerPort, String queueName,
+            int numConsumers, int prefetch, Listener listener) {
+        this.brokerHost = brokerHost;
+        this.brokerPort = brokerPort;
+        this.queueName = queueName;
+        this.numConsumers = Math.max(1, numConsumers);
+        this.prefetch = Math.max(1, prefetch);
+        this.listener = listener;
+    }
+
+    /**
+     * Opens the connections and attaches the consumers to the queue.
+     */
+    synchronized void start() throws IOException {
+        started = true;
+        for (int i = 0; i < numConsumers; i++) {
+            ConsumerSlot slot = new ConsumerSlot(i);
+            slots.add(slot);
+            slot.connect();
+        }
+
+        log.info("Request intake started: consumers=" + numConsumers
+                + " prefetch=" + prefetch + " queue='" + queueName + "'");
+    }
+
+    /**
+     * Closes all the consumer connections.
+     */
+    synchronized void stop() {
+        started = false;
+        reconnectService.shutdownNow();
+        for (ConsumerSlot slot : slots) {
+            slot.close();
+        }
+        slots.clear();
+    }
+
+    /**
+     * A consumer, connected again whenever its connection is lost.
+     */
+    private class ConsumerSlot implements ShutdownListener, Runnable {
+        private final int index;
+
+        /** Current connection; guarded by RequestIntake.this */
+        private Connection connection;
+
+        /** Failed attempts to connect again */
+        private int attempts;
+
+        ConsumerSlot(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Opens the connection and attaches the consumer to the queue. Called
+         * with the intake lock held.
+         */
+        void connect() throws IOException {
+            ConnectionFactory factory = new ConnectionFactory();
+            factory.setHost(brokerHost);
+            factory.setPort(brokerPort);
+
+            Connection conn = factory.newConnection();
+            try {
+                Channel channel = conn.createChannel();
+                channel.basicQos(prefetch);
+                channel.basicConsume(queueName, false, new RequestConsumer(channel));
+                conn.addShutdownListener(this);
+            }
+            catch (IOException e) {
+                _close(conn);
+                throw e;
+            }
+            connection = conn;
+        }
+
+        /** Called with the intake lock held */
+        void close() {
+            if (connection != null) {
+                connection.removeShutdownListener(this);
+                _close(connection);
+                connection = null;
+            }
+        }
+
+        public void shutdownCompleted(ShutdownSignalException cause) {
+            synchronized (RequestIntake.this) {
+                if (!started || cause.isInitiatedByApplication()) {
+                    return;
+                }
+                log.warn("Consumer " + index
+                        + ": connection lost, connecting again: " + cause);
+                connection = null;
+                _schedule(RETRY_MIN_MS);
+            }
+        }
+
+        /** Connects again */
+        public void run() {
+            synchronized (RequestIntake.this) {
+                if (!started || (connection != null && connection.isOpen())) {
+                    return;
+                }
+                try {
+                    connect();
+                    log.info("Consumer " + index
+                            + ": connected again to the broker after "
+                            + (attempts + 1) + " attempt(s)");
+                    attempts = 0;
+                }
+                catch (Exception e) {
+                    attempts++;
+                    long delay = RETRY_MIN_MS;
+                    for (int i = 0; i < attempts && delay < RETRY_MAX_MS; i++) {
+                        delay *= 2;
+                    }
+                    delay = Math.min(delay, RETRY_MAX_MS);
+                    log.warn("Consumer " + index
+                            + ": cannot connect to the broker (attempt "
+                            + attempts + "), retrying in " + delay + " ms: "
+                            + e);
+                    _schedule(delay);
+                }
+            }
+        }
+
+        private void _schedule(long delayMillis) {
+            reconnectService.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void _close(Connection connection) {
+        try {
+            connection.close();
+        }
+        catch (Exception e) {
+            log.warn("Error closing consumer connection", e);
+        }
+    }
+
+    private class RequestConsumer extends DefaultConsumer {
+
+        RequestConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope,
+                AMQP.BasicProperties properties, byte[] body)
+                throws IOException {
+
+            int reqId = nextReqId.getAndIncrement();
+            Delivery delivery = new Delivery(getChannel(),
+                    envelope.getDeliveryTag());
+
+            IonMessage msgin;
+            try {
+                msgin = new IonMessage(envelope, properties, body);
+            }
+            catch (Throwable e) {
+                log.warn(ScUtils.formatReqId(reqId)
+                        + "Cannot decode incoming message; discarding it", e);
+                delivery.ack();
+                return;
+            }
+
+            listener.requestReceived(reqId, msgin, delivery);
+        }
+    }
+}
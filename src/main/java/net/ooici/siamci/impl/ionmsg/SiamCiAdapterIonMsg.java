@@ -90,11 +90,8 @@ public class SiamCiAdapterIonMsg implements ISiamCiAdapter {
             if (log.isDebugEnabled()) {
                 log.debug("Waiting for process to complete by itself...");
             }
-            // wait a maximum of ~8 seconds
-            for (int remaining = 8 * 1000; remaining > 0
-                    && siamCiProcess.isRunning(); remaining -= 200) {
-                Thread.sleep(200);
-            }
+            // wait a maximum of 8 seconds; returns as soon as the thread ends
+            thread.join(8 * 1000);
         }
         catch (InterruptedException ignore) {
             if (log.isDebugEnabled()) {
@@ -7,27 +7,35 @@ import ion.core.utils.GPBWrapper;
 import ion.core.utils.ProtoUtils;
 import ion.core.utils.StructureManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-import net.ooici.core.container.Container;
 import net.ooici.core.container.Container.Structure;
 import net.ooici.play.InstrDriverInterface.Command;
 import net.ooici.siamci.IPublisher;
 import net.ooici.siamci.IRequestProcessor;
 import net.ooici.siamci.IRequestProcessors;
+import net.ooici.siamci.RequestLane;
 import net.ooici.siamci.event.EventMan;
 import net.ooici.siamci.event.ReturnEvent;
+import net.ooici.siamci.utils.PackedSamples;
+import net.ooici.siamci.utils.RequestStats;
+import net.ooici.siamci.utils.RequestStats.Stage;
 import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.WorkerPool;
+import net.ooici.siamci.utils.WorkerPools;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.GeneratedMessage;
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.ReturnListener;
@@ -35,24 +43,85 @@ import com.rabbitmq.client.ReturnListener;
 /**
  * The actual SIAM-CI service.
  * 
- * In a nutshell, it accepts RPC requests on a given broker queue, uses a
- * {@link IRequestProcessors} object to process the incoming requests, and
- * replies the resulting response to the routingKey indicated in the "reply-to"
- * property of the request. Also handles the asynchronous publish of messages
+ * In a nutshell, it accepts RPC requests on a given broker queue (see
+ * {@link RequestIntake}), uses a {@link IRequestProcessors} object to process
+ * the incoming requests, and replies the resulting response to the routingKey
+ * indicated in the "reply-to" property of the request. Also handles the
+ * asynchronous publish of messages. Replies and published messages are sent
+ * by separate {@link OutboundSender}s so they don't block each other.
  * 
  * @author carueda
  */
-class SiamCiServerIonMsg implements IPublisher, Runnable {
+class SiamCiServerIonMsg implements IPublisher, Runnable,
+        RequestIntake.Listener {
 
     private static final Logger log = LoggerFactory.getLogger(SiamCiServerIonMsg.class);
 
     /**
-     * Timeout while waiting for a request. The timeout allows to periodically
-     * check whether the main loop should finish (because of a call to
-     * {@link #stop()})
+     * Number of consumers attached to the service queue; system property
+     * "siamci.consumers".
      */
-    private static final long TIMEOUT = 3 * 1000;
+    private static final int NUM_CONSUMERS = ScUtils.getIntProperty("siamci.consumers",
+            2);
 
+    /**
+     * basic.qos prefetch count for each consumer; system property
+     * "siamci.prefetch".
+     */
+    private static final int PREFETCH = ScUtils.getIntProperty("siamci.prefetch",
+            8);
+
+    /**
+     * Number of threads (each with its own channel) sending replies; system
+     * property "siamci.senders.replies".
+     */
+    private static final int NUM_REPLY_SENDERS = ScUtils.getIntProperty("siamci.senders.replies",
+            1);
+
+    /**
+     * Number of threads (each with its own channel) sending published
+     * messages; system property "siamci.senders.publishes".
+     */
+    private static final int NUM_PUBLISH_SENDERS = ScUtils.getIntProperty("siamci.senders.publishes",
+            2);
+
+    /**
+     * Capacity of the queue of each of the outbound senders; system property
+     * "siamci.senders.queue".
+     */
+    private static final int SEND_QUEUE_CAPACITY = ScUtils.getIntProperty("siamci.senders.queue",
+            1024);
+
+    /**
+     * If true, a request is acknowledged only after its reply has been sent,
+     * so it gets redelivered if the service dies while processing it; system
+     * property "siamci.ackAfterReply". Otherwise, requests are acknowledged
+     * right away.
+     */
+    private static final boolean ACK_AFTER_REPLY = ScUtils.getBooleanProperty("siamci.ackAfterReply",
+            false);
+
+    /**
+     * Capacity of the cache of replies used in the ack-after-reply mode to
+     * answer redelivered requests; system property "siamci.replyCache.size".
+     */
+    private static final int REPLY_CACHE_SIZE = ScUtils.getIntProperty("siamci.replyCache.size",
+            1024);
+
+    /**
+     * If true, published messages are sent in publisher-confirm mode, so a
+     * message the broker could not handle (nack) is known as failed, and
+     * spooled if enabled; system property "siamci.publishConfirms".
+     */
+    private static final boolean PUBLISH_CONFIRMS = ScUtils.getBooleanProperty("siamci.publishConfirms",
+            true);
+
+    /**
+     * Directory of the spool of published messages that cannot be sent (see
+     * {@link PublishSpool}); system property "siamci.spool.dir". If not given,
+     * such messages are discarded.
+     */
+    private static final String SPOOL_DIR = System.getProperty("siamci.spool.dir");
 
     private final String brokerHost;
 
@@ -70,13 +139,51 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
     /** The processors for the requests */
     private final IRequestProcessors requestProcessors;
 
+    /** To declare and bind the queue, and to create the outgoing messages */
     private final MsgBrokerClient ionClient;
 
-    private volatile boolean keepRunning;
+    /** Sends the replies */
+    private final OutboundSender replySender;
+
+    /** Sends the published messages */
+    private final OutboundSender publishSender;
+
+    /** Keeps the published messages that cannot be sent; null if disabled */
+    private final PublishSpool publishSpool;
+
+    /** Consumes the requests from the queue */
+    private final RequestIntake requestIntake;
+
+    /** Released by {@link #stop()} */
+    private final CountDownLatch stopLatch = new CountDownLatch(1);
+
     private volatile boolean isRunning;
 
-    /** For the dispatch of requests */
-    private final ExecutorService execService = Executors.newCachedThreadPool();
+    /** Recent replies by sender and conv-id, in the ack-after-reply mode */
+    private final ReplyCache replyCache = ACK_AFTER_REPLY ? new ReplyCache(REPLY_CACHE_SIZE)
+            : null;
+
+    /** Latency histograms of the various stages of the requests */
+    private final RequestStats stats = RequestStats.instance();
+
+    /** Number of requests dropped because their deadline had passed */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * For the dispatch of requests, one pool per lane (see
+     * {@link IRequestProcessors#getRequestLane(String)}), so control commands
+     * are not held up behind slow queries. The pools are bounded (see
+     * {@link WorkerPools}, pool names "requests.control",
+     * "requests.acquisition", "requests.status" and "requests.bulk"); if
+     * saturated, a "busy" response is replied right
+     * away.
+     */
+    private final Map<RequestLane, WorkerPool> execServices = _createExecServices();
+
+    /** Dispatches the {@link ReturnEvent}s, see {@link #_notifyReturn(String)} */
+    private final WorkerPool eventService = WorkerPools.getPool("events",
+            1,
+            256);
 
     private final ReturnListener returnListener = new ReturnListener() {
 
@@ -126,56 +233,97 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         this.ionExchange = ionExchange;
         this.requestProcessors = requestProcessors;
 
-        this.ionClient = _createMsgBrokerClient();
+        this.ionClient = new MsgBrokerClient(brokerHost,
+                brokerPort,
+                ionExchange);
+        ionClient.attach();
 
         ionClient.declareQueue(queueName);
 
         ionClient.bindQueue(queueName, new MessagingName(queueName), null);
-        ionClient.attachConsumer(queueName);
-    }
-
-    /**
-     * This creates an instance of (an anonymous subclass of)
-     * {@link MsgBrokerClient} where the {@link MsgBrokerClient#attach()} method
-     * is overriden to set a {@link ReturnListener} to the mDefaultChannel.
-     */
-    private MsgBrokerClient _createMsgBrokerClient() {
 
-        MsgBrokerClient ionClient = new MsgBrokerClient(brokerHost,
+        this.replySender = new OutboundSender("replies",
+                brokerHost,
                 brokerPort,
-                ionExchange) {
-
-            @Override
-            public void attach() {
-                // do the regular attach:
-                super.attach();
-
-                // and set our return listener:
-                mDefaultChannel.setReturnListener(returnListener);
-                if (log.isDebugEnabled()) {
-                    log.debug("Return listener has been set to the channel");
-                }
-            }
-
-        };
-
-        ionClient.attach();
+                ionExchange,
+                NUM_REPLY_SENDERS,
+                SEND_QUEUE_CAPACITY,
+                false,
+                null);
+        this.publishSender = new OutboundSender("publishes",
+                brokerHost,
+                brokerPort,
+                ionExchange,
+                NUM_PUBLISH_SENDERS,
+                SEND_QUEUE_CAPACITY,
+                PUBLISH_CONFIRMS,
+                returnListener);
+
+        this.publishSpool = SPOOL_DIR == null ? null
+                : new PublishSpool(new File(SPOOL_DIR), new PublishSpool.Sender() {
+                    public void send(int reqId, String publishId,
+                            byte[] content, String encoding,
+                            Map<String, String> headers, String streamName,
+                            OutboundSender.Listener listener) {
+                        publishSender.send(_createPublishMessage(publishId,
+                                content,
+                                encoding,
+                                headers,
+                                streamName),
+                                streamName,
+                                true,
+                                listener);
+                    }
+                });
+
+        this.requestIntake = new RequestIntake(brokerHost,
+                brokerPort,
+                queueName,
+                NUM_CONSUMERS,
+                PREFETCH,
+                this);
+    }
 
-        return ionClient;
+    private static Map<RequestLane, WorkerPool> _createExecServices() {
+        Map<RequestLane, WorkerPool> map = new EnumMap<RequestLane, WorkerPool>(RequestLane.class);
+        map.put(RequestLane.CONTROL, WorkerPools.getPool("requests.control",
+                4,
+                16));
+        map.put(RequestLane.ACQUISITION, WorkerPools.getPool("requests.acquisition",
+                4,
+                16));
+        map.put(RequestLane.STATUS, WorkerPools.getPool("requests.status",
+                8,
+                64));
+        map.put(RequestLane.BULK, WorkerPools.getPool("requests.bulk", 4, 32));
+        return map;
     }
 
     /**
-     * Fires a {@link ReturnEvent} with the given routingKey.
+     * Fires a {@link ReturnEvent} with the given routingKey. The event is
+     * dispatched in the "events" pool since this is called in the connection
+     * thread (upon a return), which must not be blocked by the
+     * handling of the event.
      * 
      * @param routingKey
      */
-    private void _notifyReturn(String routingKey) {
+    private void _notifyReturn(final String routingKey) {
 
         if (log.isDebugEnabled()) {
             log.debug("_notifyReturn: routingKey='" + routingKey + "'");
         }
 
-        EventMan.fireEvent(new ReturnEvent(routingKey));
+        try {
+            eventService.execute(new Runnable() {
+                public void run() {
+                    EventMan.fireEvent(new ReturnEvent(routingKey));
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            log.warn("Cannot notify return of '" + routingKey + "': "
+                    + e.getMessage());
+        }
     }
 
     /**
@@ -185,16 +333,27 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         log.info("Running " + getClass().getSimpleName() + " (" + "broker='"
                 + brokerHost + ":" + brokerPort + "'" + ", queue='" + queueName
                 + "'," + " exchange='" + ionExchange + "'" + ")");
-        keepRunning = true;
         isRunning = true;
         try {
-            _run();
+            replySender.start();
+            publishSender.start();
+            if (publishSpool != null) {
+                publishSpool.start();
+            }
+            requestIntake.start();
+            stopLatch.await();
         }
         catch (Throwable e) {
             log.warn("Exception caught while running", e);
         }
         finally {
             log.info("Ending " + getClass().getSimpleName());
+            requestIntake.stop();
+            replySender.stop();
+            publishSender.stop();
+            if (publishSpool != null) {
+                publishSpool.stop();
+            }
             ionClient.detach();
             isRunning = false;
         }
@@ -204,7 +363,7 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
      * Requests that the service stop accepting further requests.
      */
     public void stop() {
-        keepRunning = false;
+        stopLatch.countDown();
     }
 
     boolean isRunning() {
@@ -220,44 +379,19 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
     }
 
     /**
-     * The dispatch loop.
-     * 
-     * @throws InvalidProtocolBufferException
-     */
-    private void _run() throws InvalidProtocolBufferException {
-
-        for (int reqId = 0; keepRunning; reqId++) {
-            log.info(_rid(reqId) + "Waiting for request ...");
-
-            IonMessage msgin = null;
-            while (keepRunning
-                    && null == (msgin = ionClient.consumeMessage(queueName,
-                            TIMEOUT))) {
-                //
-                // timeout -- just try again
-                //
-                // Note: consumeMessage should throw an exception when there is
-                // a non-timeout problem with getting the message. Email sent to
-                // OOI folks about this (2011-03-22).
-            }
-
-            if (keepRunning && msgin != null) {
-                _dispatchIncomingRequest(reqId, msgin);
-            }
-        }
-    }
-
-    /**
-     * Dispatches the incoming request. Basic steps are performed in the current
-     * thread, while the main processing is started in a different thread.
+     * {@link RequestIntake.Listener} operation. Dispatches the incoming
+     * request. Basic steps are performed in the current (delivery) thread,
+     * while the main processing is started in a different thread.
      * 
      * @param reqId
      *            An ID for the request
      * @param msgin
      *            the incoming message
+     * @param delivery
+     *            to acknowledge the message
      */
-    private void _dispatchIncomingRequest(final int reqId,
-            final IonMessage msgin) {
+    public void requestReceived(final int reqId, final IonMessage msgin,
+            final RequestIntake.Delivery delivery) {
 
         //
         // Do some immediate steps in current thread, in particular
@@ -265,17 +399,29 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         // launch a different thread from the pool for the main processing.
         //
 
+        final long receivedAt = System.nanoTime();
+        if (!ACK_AFTER_REPLY && !_ack(reqId, delivery)) {
+            return;
+        }
+        final long ackNanos = System.nanoTime() - receivedAt;
+
+        final Completion completion = ACK_AFTER_REPLY ? new Completion(reqId,
+                delivery) : null;
         try {
-            ionClient.ackMessage(msgin);
+            _receive(reqId, msgin, receivedAt, ackNanos, completion);
         }
         catch (Throwable e) {
-            Map<String, String> headers = _getIonHeaders(msgin);
-            log.warn(_rid(reqId)
-                    + "error while acknowledging message. headers = " + headers,
-                    e);
-            return;
+            _discard(reqId, e, completion);
         }
+    }
+
+    /**
+     * Does the steps of {@link #requestReceived} after the ack, if any.
+     */
+    private void _receive(final int reqId, final IonMessage msgin,
+            final long receivedAt, long ackNanos, final Completion completion) {
 
+        final long decodeStart = System.nanoTime();
         final Map<String, String> receivedHeaders = _getIonHeaders(msgin);
         final Command cmd = _getCommand(msgin);
 
@@ -285,7 +431,21 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         String sender = receivedHeaders.get("sender");
         String convId = receivedHeaders.get("conv-id");
 
-        String cmdName = cmd.hasCommand() ? cmd.getCommand() : "?";
+        if (cmd == null) {
+            log.warn(_rid(reqId) + "No command in request from '" + sender
+                    + "'; discarding it");
+            if (completion != null) {
+                completion.dropped();
+            }
+            return;
+        }
+
+        final String cmdName = cmd.hasCommand() ? cmd.getCommand() : "?";
+
+        if (!ACK_AFTER_REPLY) {
+            stats.record(cmdName, Stage.ACK, ackNanos);
+        }
+        stats.recordSince(cmdName, Stage.DECODE, decodeStart);
 
         log.info(_rid(reqId) + "Request <" + cmdName + "> received from '"
                 + sender + "' conv-id="
@@ -295,27 +455,245 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         if (toName == null) {
             // nobody to reply to?
             log.warn(_rid(reqId) + "NOT REPLYING as reply-to is null");
+            if (completion != null) {
+                completion.dropped();
+            }
             return;
         }
+
+        if (completion != null) {
+            String replyKey = ReplyCache.getKey(sender, convId);
+            while (replyKey != null) {
+                byte[] content = replyCache.getReply(replyKey);
+                if (content != null) {
+                    log.info(_rid(reqId) + "Request <" + cmdName
+                            + "> already replied; replaying cached reply");
+                    _sendEncodedReply(reqId,
+                            receivedHeaders,
+                            content,
+                            new OutboundSender.Listener() {
+                                public void sent() {
+                                    completion.dropped();
+                                }
+
+                                public void failed(Throwable e) {
+                                    log.warn(_rid(reqId)
+                                            + "Cannot replay reply", e);
+                                    completion.failed();
+                                }
+                            });
+                    return;
+                }
+                if (replyCache.start(replyKey)) {
+                    completion.setReplyKey(replyKey);
+                    break;
+                }
+                if (completion.hold(replyKey)) {
+                    log.info(_rid(reqId) + "Request <" + cmdName
+                            + "> already in progress; duplicate held until"
+                            + " it completes");
+                    return;
+                }
+                // completed or aborted in the meantime: check again
+            }
+        }
+
+        final long deadline = _getDeadline(reqId, receivedHeaders.get("expiry"));
+        if (_isExpired(deadline)) {
+            _dropExpired(reqId, cmdName, "on arrival", completion);
+            return;
+        }
+
         //
         // Dispatch remaining, potentially long-running part in a different
-        // thread from the pool:
+        // thread from the pool of the corresponding lane:
         //
-        execService.submit(new Runnable() {
-            public void run() {
-                _doDispatchIncomingRequest(reqId, msgin, receivedHeaders, cmd);
+        RequestLane lane = requestProcessors.getRequestLane(cmdName);
+        WorkerPool execService = execServices.get(lane);
+        if (log.isDebugEnabled()) {
+            log.debug(_rid(reqId) + "Dispatching in lane " + lane);
+        }
+        final long submittedAt = System.nanoTime();
+        try {
+            execService.submit(new Runnable() {
+                public void run() {
+                    stats.recordSince(cmdName, Stage.QUEUE, submittedAt);
+                    try {
+                        _doDispatchIncomingRequest(reqId,
+                                msgin,
+                                receivedHeaders,
+                                cmd,
+                                deadline,
+                                receivedAt,
+                                completion);
+                    }
+                    catch (Throwable e) {
+                        _discard(reqId, e, completion);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            String description = _rid(reqId) + "Busy: request <" + cmdName
+                    + "> rejected (" + execService + ")";
+            log.warn(description);
+            _reply(reqId,
+                    receivedHeaders,
+                    ScUtils.createFailResponse(description),
+                    cmdName,
+                    receivedAt,
+                    completion);
+        }
+    }
+
+    /**
+     * Discards a request whose handling failed unexpectedly. In the
+     * ack-after-reply mode, it is dropped (not requeued, as it would most
+     * likely fail again) so neither its delivery nor its duplicates are left
+     * unacknowledged.
+     */
+    private void _discard(int reqId, Throwable e, Completion completion) {
+        log.warn(_rid(reqId) + "Unexpected error handling request; discarding it",
+                e);
+        if (completion != null) {
+            completion.dropped();
+        }
+    }
+
+    /**
+     * Acknowledges a request.
+     * 
+     * @return true if OK; false if the ack failed (the error is logged).
+     */
+    private boolean _ack(int reqId, RequestIntake.Delivery delivery) {
+        try {
+            delivery.ack();
+            return true;
+        }
+        catch (Throwable e) {
+            log.warn(_rid(reqId) + "error while acknowledging message", e);
+            return false;
+        }
+    }
+
+    /**
+     * Rejects a request so the broker delivers it again.
+     */
+    private void _requeue(int reqId, RequestIntake.Delivery delivery) {
+        try {
+            delivery.requeue();
+        }
+        catch (Throwable e) {
+            log.warn(_rid(reqId) + "error while requeuing message", e);
+        }
+    }
+
+    /**
+     * In the ack-after-reply mode, completes the handling of a request once it
+     * has been replied or dropped: the message is acknowledged only at this
+     * point, and the reply cache is updated accordingly. Only the first of
+     * these outcomes takes effect.
+     */
+    private class Completion {
+        private final int reqId;
+        private final RequestIntake.Delivery delivery;
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        /** Key of the reply cache entry started for the request, if any */
+        private volatile String replyKey;
+
+        Completion(int reqId, RequestIntake.Delivery delivery) {
+            this.reqId = reqId;
+            this.delivery = delivery;
+        }
+
+        void setReplyKey(String replyKey) {
+            this.replyKey = replyKey;
+        }
+
+        /**
+         * Holds the delivery until the request being processed with the
+         * given key completes, see {@link ReplyCache#hold}.
+         * 
+         * @return true if held
+         */
+        boolean hold(String key) {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            if (replyCache.hold(key, delivery)) {
+                return true;
+            }
+            finished.set(false);
+            return false;
+        }
+
+        /**
+         * The reply has been sent; the duplicates held meanwhile are also
+         * acknowledged.
+         */
+        void replied(String cmdName, byte[] content) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (replyKey != null) {
+                for (RequestIntake.Delivery duplicate : replyCache.complete(replyKey,
+                        content)) {
+                    _ack(reqId, duplicate);
+                }
+            }
+            _ack(reqId, delivery);
+            stats.recordSince(cmdName, Stage.ACK, startedAt);
+        }
+
+        /**
+         * The request has been handled without a new reply (dropped on
+         * purpose, or answered with the cached reply), as its duplicates.
+         */
+        void dropped() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            if (replyKey != null) {
+                for (RequestIntake.Delivery duplicate : replyCache.abort(replyKey)) {
+                    _ack(reqId, duplicate);
+                }
+            }
+            _ack(reqId, delivery);
+        }
+
+        /**
+         * The reply could not be sent; the message (and any duplicate held
+         * meanwhile) is requeued so the broker delivers it again, and its
+         * prefetch slot is released.
+         */
+        void failed() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
             }
-        });
+            if (replyKey != null) {
+                for (RequestIntake.Delivery duplicate : replyCache.abort(replyKey)) {
+                    _requeue(reqId, duplicate);
+                }
+            }
+            _requeue(reqId, delivery);
+        }
     }
 
     private void _doDispatchIncomingRequest(final int reqId, IonMessage msgin,
-            Map<String, String> receivedHeaders, final Command cmd) {
+            Map<String, String> receivedHeaders, final Command cmd,
+            long deadline, long receivedAt, Completion completion) {
+
+        if (_isExpired(deadline)) {
+            _dropExpired(reqId, cmd.getCommand(), "before dispatch", completion);
+            return;
+        }
+
         if (log.isTraceEnabled()) {
             _unpack(reqId, msgin);
         }
 
-        final String convId = receivedHeaders.get("conv-id");
-
         final String publishStreamName = ScUtils.getPublishStreamName(cmd);
         if (publishStreamName != null) {
             log.info(_rid(reqId) + "Command with publish stream name: '"
@@ -326,13 +704,107 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
             log.debug(_showMessage(cmd, _rid(reqId) + "Command received:"));
         }
 
-        GeneratedMessage response = _dispatchRequest(reqId, cmd);
+        final String cmdName = cmd.getCommand();
+
+        RequestStats.resetSiamTime();
+        long processStart = System.nanoTime();
+        GeneratedMessage response;
+        try {
+            response = _dispatchRequest(reqId, cmd, deadline);
+        }
+        catch (RuntimeException e) {
+            log.warn(_rid(reqId) + "Unexpected exception processing request", e);
+            response = ScUtils.createFailResponse(_rid(reqId)
+                    + e.getClass().getName() + ": " + e.getMessage());
+        }
+        long processNanos = System.nanoTime() - processStart;
+        long siamNanos = RequestStats.getSiamTime();
+        if (siamNanos > 0) {
+            stats.record(cmdName, Stage.SIAM, siamNanos);
+        }
+        stats.record(cmdName, Stage.BUILD, processNanos - siamNanos);
+
+        if (_isExpired(deadline)) {
+            // the requester is no longer waiting for the response
+            _dropExpired(reqId, cmd.getCommand(), "after processing", completion);
+            return;
+        }
 
         if (log.isDebugEnabled()) {
             log.debug(_showMessage(response, _rid(reqId)
                     + "Response to be replied:"));
         }
 
+        _reply(reqId, receivedHeaders, response, cmdName, receivedAt, completion);
+    }
+
+    /**
+     * Replies the given response to the originator of a request.
+     * 
+     * @param reqId
+     * @param receivedHeaders
+     *            headers of the request
+     * @param response
+     *            the response
+     * @param cmdName
+     *            name of the command, for the stats
+     * @param receivedAt
+     *            {@link System#nanoTime()} when the request was received
+     * @param completion
+     *            to complete the handling of the request in the
+     *            ack-after-reply mode; null otherwise.
+     */
+    private void _reply(final int reqId, Map<String, String> receivedHeaders,
+            GeneratedMessage response, final String cmdName,
+            final long receivedAt, final Completion completion) {
+
+        // TODO what name and identity?
+        long encodeStart = System.nanoTime();
+        final byte[] content = ProtoUtils.addIonMessageContent(null,
+                "myName",
+                "Identity",
+                response).build().toByteArray();
+        stats.recordSince(cmdName, Stage.ENCODE, encodeStart);
+
+        final long sendStart = System.nanoTime();
+        _sendEncodedReply(reqId,
+                receivedHeaders,
+                content,
+                new OutboundSender.Listener() {
+                    public void sent() {
+                        stats.recordSince(cmdName, Stage.SEND, sendStart);
+                        stats.recordSince(cmdName, Stage.TOTAL, receivedAt);
+                        if (completion != null) {
+                            completion.replied(cmdName, content);
+                        }
+                    }
+
+                    public void failed(Throwable e) {
+                        log.warn(_rid(reqId) + "Cannot send reply", e);
+                        if (completion != null) {
+                            completion.failed();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Sends an already encoded reply to the originator of a request.
+     * 
+     * @param reqId
+     * @param receivedHeaders
+     *            headers of the request
+     * @param content
+     *            the encoded structure with the response
+     * @param listener
+     *            notified about the outcome of the send
+     */
+    private void _sendEncodedReply(final int reqId,
+            Map<String, String> receivedHeaders, byte[] content,
+            final OutboundSender.Listener listener) {
+
+        final String convId = receivedHeaders.get("conv-id");
+
         if (log.isDebugEnabled()) {
             if (convId == null) {
                 log.debug(_rid(reqId)
@@ -359,21 +831,26 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
 
         final String toName = receivedHeaders.get("reply-to");
 
-        // TODO what name and identity?
-        Container.Structure.Builder structureBuilder = ProtoUtils.addIonMessageContent(null,
-                "myName",
-                "Identity",
-                response);
+        final String logMsg = _rid(reqId) + "Reply sent to '" + toName
+                + "' conv-id:'" + convId + "' user-id:'" + userId
+                + "' expiry:" + expiry + "\n";
 
         _sendReply(reqId,
                 toName,
                 convId,
                 userId,
                 expiry,
-                structureBuilder.build());
-
-        log.info(_rid(reqId) + "Reply sent to '" + toName + "' conv-id:'"
-                + convId + "' user-id:'" + userId + "' expiry:" + expiry + "\n");
+                content,
+                new OutboundSender.Listener() {
+                    public void sent() {
+                        log.info(logMsg);
+                        listener.sent();
+                    }
+
+                    public void failed(Throwable e) {
+                        listener.failed(e);
+                    }
+                });
     }
 
     /**
@@ -382,12 +859,63 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
      * 
      * @param reqId
      * @param cmd
+     * @param deadline
      * @return
      */
-    private GeneratedMessage _dispatchRequest(int reqId, Command cmd) {
+    private GeneratedMessage _dispatchRequest(int reqId, Command cmd,
+            long deadline) {
         final String cmdName = cmd.getCommand();
         IRequestProcessor reqProc = requestProcessors.getRequestProcessor(cmdName);
-        return reqProc.processRequest(reqId, cmd);
+        return reqProc.processRequest(reqId, cmd, deadline);
+    }
+
+    /**
+     * Gets the deadline of a request from the value of its "expiry" header.
+     * The value is an absolute time; it is taken as seconds since the epoch
+     * if it looks like so (as sent by ioncore-python), otherwise as
+     * milliseconds. A missing, zero or unparseable value means no deadline.
+     * 
+     * @param reqId
+     * @param expiry
+     *            value of the "expiry" header
+     * @return the deadline in milliseconds since the epoch; 0 if none.
+     */
+    private static long _getDeadline(int reqId, String expiry) {
+        if (expiry == null) {
+            return 0;
+        }
+        double value;
+        try {
+            value = Double.parseDouble(expiry.trim());
+        }
+        catch (NumberFormatException e) {
+            log.warn(_rid(reqId) + "Ignoring unparseable expiry: '" + expiry
+                    + "'");
+            return 0;
+        }
+        if (value <= 0) {
+            return 0;
+        }
+        // 1e11 seconds is way in the future, while 1e11 ms was in 1973
+        if (value < 1e11) {
+            value *= 1000;
+        }
+        return (long) value;
+    }
+
+    private static boolean _isExpired(long deadline) {
+        return deadline > 0 && System.currentTimeMillis() >= deadline;
+    }
+
+    private void _dropExpired(int reqId, String cmdName, String when,
+            Completion completion) {
+        long count = expiredCount.incrementAndGet();
+        log.info(_rid(reqId) + "Request <" + cmdName + "> dropped " + when
+                + ": deadline has passed (expired requests so far: " + count
+                + ")");
+        if (completion != null) {
+            completion.dropped();
+        }
     }
 
     /**
@@ -401,21 +929,24 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
      *            property is set
      * @param userId
      * @param expiry
-     * @param structure
-     *            See
+     * @param content
+     *            Encoded structure, see
      *            ProtoUtils.addIonMessageContent(Container.Structure.Builder
      *            structure, String name, String identity, GeneratedMessage
      *            content)
+     * @param listener
+     *            notified about the outcome of the send
      */
     private void _sendReply(int reqId, String toName, String convId,
-            String userId, String expiry, Container.Structure structure) {
+            String userId, String expiry, byte[] content,
+            OutboundSender.Listener listener) {
 
         MessagingName to = new MessagingName(toName);
 
         IonMessage msg = ionClient.createMessage(from,
                 to,
                 "noop",
-                structure.toByteArray());
+                content);
 
         Map<String, String> headers = _getIonHeaders(msg);
 
@@ -449,18 +980,27 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         headers.put("reply-to", queueName);
         headers.put("sender-name", queueName);
 
-        ionClient.sendMessage(msg);
-
         if (log.isDebugEnabled()) {
-            log.debug(_rid(reqId) + "headers of message sent: " + headers);
+            log.debug(_rid(reqId) + "headers of message to be sent: " + headers);
         }
+
+        replySender.send(msg, toName, false, listener);
     }
 
     /**
      * {@link IPublisher} operation.
      */
-    public void publish(int reqId, String publishId, GeneratedMessage response,
-            String streamName) {
+    public void publish(int reqId, String publishId,
+            GeneratedMessage response, String streamName) {
+        publish(reqId, publishId, response, streamName, null);
+    }
+
+    /**
+     * {@link IPublisher} operation.
+     */
+    public void publish(int reqId, String publishId,
+            GeneratedMessage response, String streamName,
+            Map<String, String> headers) {
         if (log.isDebugEnabled()) {
             log.debug(_rid(reqId) + "Publishing with publishId='" + publishId
                     + "' to queue='" + streamName + "'" + " reponse='"
@@ -473,17 +1013,165 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
                 "Identity",
                 response).build();
 
+        _publish(reqId,
+                publishId,
+                structure.toByteArray(),
+                "ION R1 GPB",
+                headers,
+                streamName);
+    }
+
+    /**
+     * {@link IPublisher} operation.
+     */
+    public void publishPacked(int reqId, String publishId, byte[] payload,
+            String streamName) {
+        publishPacked(reqId, publishId, payload, streamName, null);
+    }
+
+    /**
+     * {@link IPublisher} operation.
+     */
+    public void publishPacked(int reqId, String publishId, byte[] payload,
+            String streamName, Map<String, String> headers) {
+        if (log.isDebugEnabled()) {
+            log.debug(_rid(reqId) + "Publishing packed payload with publishId='"
+                    + publishId + "' to queue='" + streamName + "'"
+                    + " size=" + payload.length);
+        }
+
+        _publish(reqId,
+                publishId,
+                payload,
+                PackedSamples.ENCODING,
+                headers,
+                streamName);
+    }
+
+    /**
+     * Publishes an already encoded content. If the message cannot be sent
+     * (including a nack from the broker, which is a temporary failure), it is
+     * put in the spool, if enabled.
+     * While the spool of the stream is not empty, the message is directly put
+     * there to preserve the order. The decision to spool or send, and the
+     * spooling of a failed message, are made under the lock of the stream
+     * (see {@link PublishSpool#getStreamLock(String)}), so a newer message
+     * cannot be sent while an older one is being spooled.
+     */
+    private void _publish(final int reqId, final String publishId,
+            final byte[] content, final String encoding,
+            final Map<String, String> headers, final String streamName) {
+
+        IonMessage msg = _createPublishMessage(publishId,
+                content,
+                encoding,
+                headers,
+                streamName);
+
+        /*
+         * mandatory, so an unroutable stream is reported via the return
+         * listener; the immediate flag is not used: the consumer of a stream
+         * need not be ready at the moment of the publish. A nack, in confirm
+         * mode, does not mean the stream is unroutable, so it is handled as
+         * any other failure to send (see failed below).
+         */
+        OutboundSender.Listener listener = new OutboundSender.Listener() {
+            public void sent() {
+                // this could be a log.debug instead of log.info
+                log.info(_rid(reqId) + "Publish message sent. publishId='"
+                        + publishId + "' to queue='" + streamName + "'");
+            }
+
+            public void failed(Throwable e) {
+                if (publishSpool != null
+                        && _spool(reqId,
+                                publishId,
+                                content,
+                                encoding,
+                                headers,
+                                streamName)) {
+                    log.warn(_rid(reqId)
+                            + "Cannot send publish message; spooled. publishId='"
+                            + publishId + "' to queue='" + streamName + "': "
+                            + e);
+                }
+                else {
+                    log.warn(_rid(reqId)
+                            + "Cannot send publish message. publishId='"
+                            + publishId + "' to queue='" + streamName + "'",
+                            e);
+                }
+            }
+        };
+
+        if (publishSpool == null) {
+            publishSender.send(msg, streamName, true, listener);
+            return;
+        }
+
+        synchronized (publishSpool.getStreamLock(streamName)) {
+            if (publishSpool.isSpooling(streamName)
+                    && publishSpool.append(reqId,
+                            publishId,
+                            content,
+                            encoding,
+                            headers,
+                            streamName)) {
+                if (log.isDebugEnabled()) {
+                    log.debug(_rid(reqId) + "Publish message spooled. publishId='"
+                            + publishId + "' to queue='" + streamName + "'");
+                }
+                return;
+            }
+            /*
+             * without waiting for room in the queue while holding the lock,
+             * which the sender thread may need to spool a failed message; if
+             * the queue is full, the message is spooled right away.
+             */
+            publishSender.trySend(msg, streamName, true, listener);
+        }
+    }
+
+    /**
+     * Spools a message under the lock of its stream.
+     */
+    private boolean _spool(int reqId, String publishId, byte[] content,
+            String encoding, Map<String, String> headers, String streamName) {
+        synchronized (publishSpool.getStreamLock(streamName)) {
+            return publishSpool.append(reqId,
+                    publishId,
+                    content,
+                    encoding,
+                    headers,
+                    streamName);
+        }
+    }
+
+    /**
+     * Creates a message to publish an already encoded content.
+     * 
+     * @param extraHeaders
+     *            additional headers, if not null; the standard ones take
+     *            precedence.
+     */
+    private IonMessage _createPublishMessage(String publishId, byte[] content,
+            String encoding, Map<String, String> extraHeaders,
+            String streamName) {
+
         String toName = streamName;
         MessagingName to = new MessagingName(toName);
 
         IonMessage msg = ionClient.createMessage(from,
                 to,
                 "acceptResponse",
-                structure.toByteArray());
+                content);
 
         Map<String, String> headers = _getIonHeaders(msg);
+        if (extraHeaders != null) {
+            headers.putAll(extraHeaders);
+        }
         headers.remove("accept-encoding");
-        headers.put("encoding", "ION R1 GPB");
+        headers.put("encoding", encoding);
 
         // TODO proper values for user-id, expiry
         headers.put("user-id", "ANONYMOUS");
@@ -497,25 +1185,7 @@ class SiamCiServerIonMsg implements IPublisher, Runnable {
         headers.put("reply-to", queueName);
         headers.put("sender-name", queueName);
 
-        try {
-            /*
-             * use my new method in MsgBrokerClient: TODO: I'm setting both
-             * flags (mandatory and immediate) as true; probably not both are
-             * necessary. See various relevant items in the
-             * http://www.rabbitmq.com/faq.html, for example
-             * http://www.rabbitmq.com/faq.html#immediate-flat-routing
-             */
-            ionClient.sendMessage(msg, true, true);
-
-            // this could be a log.debug instead of log.info
-            log.info(_rid(reqId) + "Publish message sent. publishId='"
-                    + publishId + "' to queue='" + streamName + "'");
-        }
-        catch (IOException e) {
-            log.warn(_rid(reqId) + "Cannot send publish message. publishId='"
-                    + publishId + "' to queue='" + streamName + "'", e);
-        }
-
+        return msg;
     }
 
     /**
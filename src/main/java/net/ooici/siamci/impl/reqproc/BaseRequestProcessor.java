@@ -1,11 +1,21 @@
 package net.ooici.siamci.impl.reqproc;
 
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.ooici.siamci.IPublisher;
 import net.ooici.siamci.IRequestProcessor;
 import net.ooici.siamci.SiamCi;
+import net.ooici.siamci.utils.RequestStats;
 import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.WorkerPool;
+import net.ooici.siamci.utils.WorkerPools;
 import siam.IAsyncSiam;
 import siam.ISiam;
 
@@ -16,6 +26,26 @@ import siam.ISiam;
  */
 public abstract class BaseRequestProcessor implements IRequestProcessor {
 
+    /**
+     * Where synchronous SIAM calls with a deadline are run; apart from the
+     * "siam" pool so the threads held by abandoned calls cannot starve the
+     * asynchronous calls.
+     */
+    private static final WorkerPool deadlinePool = WorkerPools.getPool("siam.deadline",
+            8,
+            16);
+
+    /**
+     * Maximum number of abandoned calls still running in the deadline pool;
+     * while reached, new calls with a deadline are rejected. System property
+     * "siamci.siam.maxAbandoned".
+     */
+    private static final int MAX_ABANDONED = ScUtils.getIntProperty("siamci.siam.maxAbandoned",
+            4);
+
+    /** Abandoned calls that have not returned yet */
+    private static final AtomicInteger abandonedCalls = new AtomicInteger();
+
     protected ISiam siam;
     protected IAsyncSiam asyncSiam;
 
@@ -73,4 +103,117 @@ public abstract class BaseRequestProcessor implements IRequestProcessor {
         }
     }
 
+    /**
+     * Makes a synchronous call to SIAM honoring the given deadline. With no
+     * deadline, the call is made in the current thread. Otherwise, it is run
+     * in the "siam.deadline" pool and abandoned if it does not complete in
+     * time; in this case the worker thread is interrupted, but note that an
+     * RMI call in progress will still run to completion in that thread; only
+     * the requester stops waiting for it. Such calls are counted until they
+     * return, and new calls are rejected while there are "maxAbandoned" of
+     * them. The time spent is accounted as SIAM time of the current request
+     * (see {@link RequestStats}).
+     * 
+     * @param callable
+     *            the call
+     * @param deadline
+     *            Deadline in milliseconds since the epoch; 0 means no deadline.
+     * @return the result of the call
+     * @throws TimeoutException
+     *             if the deadline has passed
+     * @throws RejectedExecutionException
+     *             if too many abandoned calls are still running, or the pool
+     *             is saturated
+     * @throws Exception
+     *             as thrown by the call, or if the call cannot be submitted.
+     */
+    protected <T> T _call(Callable<T> callable, long deadline)
+            throws Exception {
+        long start = System.nanoTime();
+        try {
+            return _doCall(callable, deadline);
+        }
+        finally {
+            RequestStats.addSiamTime(System.nanoTime() - start);
+        }
+    }
+
+    private <T> T _doCall(Callable<T> callable, long deadline)
+            throws Exception {
+        if (deadline <= 0) {
+            return callable.call();
+        }
+
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new TimeoutException("Deadline exceeded before calling SIAM");
+        }
+
+        if (abandonedCalls.get() >= MAX_ABANDONED) {
+            throw new RejectedExecutionException("Busy: "
+                    + abandonedCalls.get()
+                    + " abandoned SIAM calls still running");
+        }
+
+        DeadlineCall<T> call = new DeadlineCall<T>(callable);
+        Future<T> future = deadlinePool.submit(call);
+        try {
+            return future.get(remaining, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            call.abandon();
+            future.cancel(true);
+            throw new TimeoutException("Deadline exceeded; SIAM call abandoned after "
+                    + remaining + " ms");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps a call made with a deadline so it is counted in
+     * {@link #abandonedCalls} from the moment it is abandoned until it
+     * actually returns. A call abandoned before it starts is not counted, as
+     * the cancellation prevents it from running.
+     */
+    private static class DeadlineCall<T> implements Callable<T> {
+        private final Callable<T> callable;
+        private boolean started;
+        private boolean done;
+        private boolean abandoned;
+
+        DeadlineCall(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        synchronized void abandon() {
+            if (started && !done && !abandoned) {
+                abandoned = true;
+                abandonedCalls.incrementAndGet();
+            }
+        }
+
+        public T call() throws Exception {
+            synchronized (this) {
+                started = true;
+            }
+            try {
+                return callable.call();
+            }
+            finally {
+                synchronized (this) {
+                    done = true;
+                    if (abandoned) {
+                        abandonedCalls.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
 }
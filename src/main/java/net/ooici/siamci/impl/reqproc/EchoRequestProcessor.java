@@ -11,7 +11,8 @@ import com.google.protobuf.GeneratedMessage;
  */
 public class EchoRequestProcessor extends BaseRequestProcessor {
 	
-	public GeneratedMessage processRequest(int reqId, Command cmd) {
+	public GeneratedMessage processRequest(int reqId, Command cmd,
+			long deadline) {
 		return cmd;
 	}
 
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import net.ooici.play.InstrDriverInterface.ChannelParameterPair;
 import net.ooici.play.InstrDriverInterface.Command;
@@ -38,7 +39,8 @@ public class FetchParamsRequestProcessor extends BaseRequestProcessor {
      */
     private static final Object INSTRUMENT = "CHANNEL_INSTRUMENT";
 
-    public GeneratedMessage processRequest(int reqId, Command cmd) {
+    public GeneratedMessage processRequest(int reqId, Command cmd,
+            long deadline) {
 
         if (cmd.getArgsCount() == 0) {
             String msg = _rid(reqId) + CMD_NAME
@@ -72,7 +74,11 @@ public class FetchParamsRequestProcessor extends BaseRequestProcessor {
              */
             Map<String, String> props = null;
             try {
-                props = siam.getPortProperties(port);
+                props = _call(new Callable<Map<String, String>>() {
+                    public Map<String, String> call() throws Exception {
+                        return siam.getPortProperties(port);
+                    }
+                }, deadline);
             }
             catch (Exception e) {
                 log.warn(_rid(reqId) + "getPortProperties exception", e);
@@ -106,7 +112,7 @@ public class FetchParamsRequestProcessor extends BaseRequestProcessor {
          */
         final String publishId = CMD_NAME + ";port=" + port;
 
-        asyncSiam.getPortProperties(port,
+        String error = asyncSiam.getPortProperties(port,
                 new AsyncCallback<Map<String, String>>() {
 
                     public void onSuccess(Map<String, String> result) {
@@ -132,6 +138,12 @@ public class FetchParamsRequestProcessor extends BaseRequestProcessor {
                     }
                 });
 
+        if (error != null) {
+            String msg = _rid(reqId) + CMD_NAME + ": " + error;
+            log.warn(msg);
+            return ScUtils.createFailResponse(msg);
+        }
+
         // respond with OK, ie., sucessfully submitted request:
         GeneratedMessage response = ScUtils.createSuccessResponse(null);
         return response;
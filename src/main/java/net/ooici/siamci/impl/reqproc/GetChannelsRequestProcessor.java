@@ -1,6 +1,7 @@
 package net.ooici.siamci.impl.reqproc;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import net.ooici.play.InstrDriverInterface.ChannelParameterPair;
 import net.ooici.play.InstrDriverInterface.Command;
@@ -28,7 +29,8 @@ public class GetChannelsRequestProcessor extends BaseRequestProcessor {
 
     private static final String CMD_NAME = "get_channels";
 
-    public GeneratedMessage processRequest(int reqId, Command cmd) {
+    public GeneratedMessage processRequest(int reqId, Command cmd,
+            long deadline) {
         
         if (cmd.getArgsCount() == 0) {
             String msg = _rid(reqId) + CMD_NAME
@@ -69,7 +71,11 @@ public class GetChannelsRequestProcessor extends BaseRequestProcessor {
              */
             List<String> channels = null;
             try {
-                channels = siam.getPortChannels(port);
+                channels = _call(new Callable<List<String>>() {
+                    public List<String> call() throws Exception {
+                        return siam.getPortChannels(port);
+                    }
+                }, deadline);
             }
             catch (Exception e) {
                 log.warn(_rid(reqId) + "getPortChannels exception", e);
@@ -104,7 +110,7 @@ public class GetChannelsRequestProcessor extends BaseRequestProcessor {
          */
         final String publishId = CMD_NAME + ";port=" + port;
 
-        asyncSiam.getPortChannels(port, new AsyncCallback<List<String>>() {
+        String error = asyncSiam.getPortChannels(port, new AsyncCallback<List<String>>() {
 
             public void onSuccess(List<String> result) {
                 GeneratedMessage response = _createResultResponse(reqId,
@@ -129,6 +135,12 @@ public class GetChannelsRequestProcessor extends BaseRequestProcessor {
             }
         });
 
+        if (error != null) {
+            String msg = _rid(reqId) + CMD_NAME + ": " + error;
+            log.warn(msg);
+            return ScUtils.createFailResponse(msg);
+        }
+
         // respond with OK, ie., sucessfully submitted request:
         GeneratedMessage response = ScUtils.createSuccessResponse(null);
         return response;
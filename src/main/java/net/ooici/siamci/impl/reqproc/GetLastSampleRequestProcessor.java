@@ -2,6 +2,7 @@ package net.ooici.siamci.impl.reqproc;
 
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import net.ooici.play.InstrDriverInterface.ChannelParameterPair;
 import net.ooici.play.InstrDriverInterface.Command;
@@ -32,7 +33,8 @@ public class GetLastSampleRequestProcessor extends BaseRequestProcessor {
 
     private static final String CMD_NAME = "get_last_sample";
 
-    public GeneratedMessage processRequest(int reqId, Command cmd) {
+    public GeneratedMessage processRequest(int reqId, Command cmd,
+            long deadline) {
         if (cmd.getArgsCount() == 0) {
             String msg = _rid(reqId) + CMD_NAME
                     + ": command requires at least an argument";
@@ -62,7 +64,11 @@ public class GetLastSampleRequestProcessor extends BaseRequestProcessor {
             //
             InstrumentSample sample;
             try {
-                sample = siam.getPortLastSample(port);
+                sample = _call(new Callable<InstrumentSample>() {
+                    public InstrumentSample call() throws Exception {
+                        return siam.getPortLastSample(port);
+                    }
+                }, deadline);
             }
             catch (Exception e) {
                 log.warn(_rid(reqId) + "getPortLastSample exception", e);
@@ -93,7 +99,7 @@ public class GetLastSampleRequestProcessor extends BaseRequestProcessor {
         //
         final String publishId = CMD_NAME + ";port=" + port;
 
-        asyncSiam.getPortLastSample(port,
+        String error = asyncSiam.getPortLastSample(port,
                 new AsyncCallback<InstrumentSample>() {
 
                     public void onSuccess(InstrumentSample result) {
@@ -116,6 +122,12 @@ public class GetLastSampleRequestProcessor extends BaseRequestProcessor {
                     }
                 });
 
+        if (error != null) {
+            String msg = _rid(reqId) + CMD_NAME + ": " + error;
+            log.warn(msg);
+            return ScUtils.createFailResponse(msg);
+        }
+
         // respond with OK, ie., sucessfully submitted request:
         GeneratedMessage response = ScUtils.createSuccessResponse(null);
         return response;
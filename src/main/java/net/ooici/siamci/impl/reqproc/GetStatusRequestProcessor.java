@@ -1,5 +1,7 @@
 package net.ooici.siamci.impl.reqproc;
 
+import java.util.concurrent.Callable;
+
 import net.ooici.play.InstrDriverInterface.ChannelParameterPair;
 import net.ooici.play.InstrDriverInterface.Command;
 import net.ooici.play.InstrDriverInterface.SuccessFail;
@@ -24,7 +26,8 @@ public class GetStatusRequestProcessor extends BaseRequestProcessor {
 	private static final Logger log = LoggerFactory
 			.getLogger(GetStatusRequestProcessor.class);
 
-	public GeneratedMessage processRequest(int reqId, Command cmd) {
+	public GeneratedMessage processRequest(int reqId, Command cmd,
+			long deadline) {
 		if (cmd.getArgsCount() == 0) {
 			String msg = _rid(reqId) + CMD_NAME+ ": command requires at least an argument";
 			log.warn(msg);
@@ -51,7 +54,11 @@ public class GetStatusRequestProcessor extends BaseRequestProcessor {
 			//
 			String status = null;
 			try {
-				status = siam.getPortStatus(port);
+				status = _call(new Callable<String>() {
+					public String call() throws Exception {
+						return siam.getPortStatus(port);
+					}
+				}, deadline);
 			}
 			catch (Exception e) {
 				log.warn(_rid(reqId) + "getPortStatus exception", e);
@@ -82,7 +89,7 @@ public class GetStatusRequestProcessor extends BaseRequestProcessor {
 		//
 		final String publishId = CMD_NAME+ ";port=" + port;
 
-		asyncSiam.getPortStatus(port, new AsyncCallback<String>() {
+		String error = asyncSiam.getPortStatus(port, new AsyncCallback<String>() {
 
 			public void onSuccess(String result) {
 				GeneratedMessage response = _createResultResponse(reqId, result);
@@ -97,6 +104,12 @@ public class GetStatusRequestProcessor extends BaseRequestProcessor {
 			}
 		});
 
+		if (error != null) {
+			String msg = _rid(reqId) + CMD_NAME + ": " + error;
+			log.warn(msg);
+			return ScUtils.createFailResponse(msg);
+		}
+
 		// respond with OK, ie., sucessfully submitted request:
 		GeneratedMessage response = ScUtils.createSuccessResponse(null);
 		return response;
@@ -1,6 +1,7 @@
 package net.ooici.siamci.impl.reqproc;
 
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import net.ooici.play.InstrDriverInterface.Command;
 import net.ooici.play.InstrDriverInterface.Result;
@@ -30,7 +31,8 @@ public class ListPortsRequestProcessor extends BaseRequestProcessor {
 	private static final Logger log = LoggerFactory
 			.getLogger(ListPortsRequestProcessor.class);
 
-	public GeneratedMessage processRequest(int reqId, Command cmd) {
+	public GeneratedMessage processRequest(int reqId, Command cmd,
+			long deadline) {
 
 		final String publishStream = ScUtils.getPublishStreamName(cmd);
 		if (publishStream != null) {
@@ -44,7 +46,11 @@ public class ListPortsRequestProcessor extends BaseRequestProcessor {
 			//
 			List<PortItem> ports = null;
 			try {
-				ports = siam.listPorts();
+				ports = _call(new Callable<List<PortItem>>() {
+					public List<PortItem> call() throws Exception {
+						return siam.listPorts();
+					}
+				}, deadline);
 			}
 			catch (Exception e) {
 				log.warn(_rid(reqId) + "getPortStatus exception", e);
@@ -74,7 +80,7 @@ public class ListPortsRequestProcessor extends BaseRequestProcessor {
 		//
 		final String publishId = CMD_NAME + ";";
 
-		asyncSiam.listPorts(new AsyncCallback<List<PortItem>>() {
+		String error = asyncSiam.listPorts(new AsyncCallback<List<PortItem>>() {
 
 			public void onSuccess(List<PortItem> result) {
 				GeneratedMessage response = _createResultResponse(reqId, result);
@@ -89,6 +95,12 @@ public class ListPortsRequestProcessor extends BaseRequestProcessor {
 			}
 		});
 
+		if (error != null) {
+			String msg = _rid(reqId) + CMD_NAME + ": " + error;
+			log.warn(msg);
+			return ScUtils.createFailResponse(msg);
+		}
+
 		// respond with OK, ie., sucessfully submitted request:
 		GeneratedMessage response = ScUtils.createSuccessResponse(null);
 		return response;
@@ -3,6 +3,7 @@ package net.ooici.siamci.impl.reqproc;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 
 import net.ooici.play.InstrDriverInterface.ChannelParameterPair;
 import net.ooici.play.InstrDriverInterface.Command;
@@ -32,7 +33,8 @@ public class SetParamsRequestProcessor extends BaseRequestProcessor {
 
 	private static final String CMD_NAME = "set_params";
 
-	public GeneratedMessage processRequest(int reqId, Command cmd) {
+	public GeneratedMessage processRequest(int reqId, Command cmd,
+			long deadline) {
 
 		if (cmd.getArgsCount() < 2) {
 			String msg = _rid(reqId) + CMD_NAME + ": command requires at least two arguments";
@@ -67,8 +69,13 @@ public class SetParamsRequestProcessor extends BaseRequestProcessor {
 		else {
 			// synchronous response.
 			//
+			final Map<String, String> toSet = params;
 			try {
-				params = siam.setPortProperties(port, params);
+				params = _call(new Callable<Map<String, String>>() {
+					public Map<String, String> call() throws Exception {
+						return siam.setPortProperties(port, toSet);
+					}
+				}, deadline);
 			}
 			catch (Exception e) {
 				log.warn(_rid(reqId) + "setPortProperties exception", e);
@@ -103,7 +110,7 @@ public class SetParamsRequestProcessor extends BaseRequestProcessor {
 		//
 		final String publishId = CMD_NAME + ";port=" + port;
 
-		asyncSiam.setPortProperties(port, params,
+		String error = asyncSiam.setPortProperties(port, params,
 				new AsyncCallback<Map<String, String>>() {
 
 					public void onSuccess(Map<String, String> result) {
@@ -120,6 +127,12 @@ public class SetParamsRequestProcessor extends BaseRequestProcessor {
 					}
 				});
 
+		if (error != null) {
+			String msg = _rid(reqId) + CMD_NAME + ": " + error;
+			log.warn(msg);
+			return ScUtils.createFailResponse(msg);
+		}
+
 		// respond with OK, ie., sucessfully submitted request:
 		GeneratedMessage response = ScUtils.createSuccessResponse(null);
 		return response;
@@ -5,6 +5,7 @@ import java.util.Map;
 import net.ooici.play.InstrDriverInterface.ChannelParameterPair;
 import net.ooici.play.InstrDriverInterface.Command;
 import net.ooici.play.InstrDriverInterface.SuccessFail;
+import net.ooici.siamci.AcquisitionOptions;
 import net.ooici.siamci.IDataManager;
 import net.ooici.siamci.utils.ScUtils;
 
@@ -43,7 +44,8 @@ public class StartOrStopAcquisitionRequestProcessor extends
         this.start = start;
     }
 
-    public GeneratedMessage processRequest(int reqId, Command cmd) {
+    public GeneratedMessage processRequest(int reqId, Command cmd,
+            long deadline) {
         if (cmd.getArgsCount() == 0) {
             String msg = _rid(reqId) + CMD_NAME
                     + ": command requires at least a 'port' argument";
@@ -71,6 +73,19 @@ public class StartOrStopAcquisitionRequestProcessor extends
         }
         final String channel = cp.getParameter();
 
+        // optional publication options
+        AcquisitionOptions options = AcquisitionOptions.NONE;
+        if (start) {
+            try {
+                options = _getAcquisitionOptions(cmd);
+            }
+            catch (IllegalArgumentException e) {
+                String msg = _rid(reqId) + CMD_NAME + ": " + e.getMessage();
+                log.warn(msg);
+                return ScUtils.createFailResponse(msg);
+            }
+        }
+
         // publish_stream
         final String publishStream = ScUtils.getPublishStreamName(cmd);
         if (publishStream == null) {
@@ -122,10 +137,82 @@ public class StartOrStopAcquisitionRequestProcessor extends
                 turbineName,
                 port,
                 channel,
-                publishStream);
+                publishStream,
+                options);
         return response;
     }
 
+    /**
+     * Gets the {@link AcquisitionOptions} given by the arguments after the
+     * port and channel.
+     * 
+     * @throws IllegalArgumentException
+     *             if an argument is not recognized or has an invalid value.
+     */
+    private static AcquisitionOptions _getAcquisitionOptions(Command cmd) {
+        AcquisitionOptions.Builder builder = AcquisitionOptions.newBuilder();
+        for (int i = 2; i < cmd.getArgsCount(); i++) {
+            ChannelParameterPair cp = cmd.getArgs(i);
+            String name = cp.getChannel();
+            String value = cp.getParameter();
+            try {
+                if (AcquisitionOptions.BATCH_MAX_SAMPLES.equals(name)) {
+                    builder.setBatchMaxSamples(Integer.parseInt(value.trim()));
+                }
+                else if (AcquisitionOptions.BATCH_MAX_LATENCY.equals(name)) {
+                    builder.setBatchMaxLatency(Long.parseLong(value.trim()));
+                }
+                else if (AcquisitionOptions.ENCODING.equals(name)) {
+                    if (AcquisitionOptions.ENCODING_PACKED.equals(value)) {
+                        builder.setPacked(true);
+                    }
+                    else if (!AcquisitionOptions.ENCODING_MAP.equals(value)) {
+                        throw new IllegalArgumentException("invalid value for '"
+                                + name + "': '" + value + "'");
+                    }
+                }
+                else if (AcquisitionOptions.OVERFLOW.equals(name)) {
+                    builder.setOverflow(AcquisitionOptions.Overflow.fromArgValue(value));
+                }
+                else if (AcquisitionOptions.BACKFILL_START.equals(name)) {
+                    builder.setBackfillStart(Double.parseDouble(value.trim()));
+                }
+                else if (AcquisitionOptions.BACKFILL_DURATION.equals(name)) {
+                    builder.setBackfillDuration(Double.parseDouble(value.trim()));
+                }
+                else if (AcquisitionOptions.AGGREGATE_WINDOW.equals(name)) {
+                    builder.setAggregateWindow(Double.parseDouble(value.trim()));
+                }
+                else if (AcquisitionOptions.AGGREGATE_SLIDE.equals(name)) {
+                    builder.setAggregateSlide(Double.parseDouble(value.trim()));
+                }
+                else if (AcquisitionOptions.DEADBAND.equals(name)) {
+                    double deadband = Double.parseDouble(value.trim());
+                    if (!(deadband >= 0)) {
+                        throw new IllegalArgumentException(name
+                                + " cannot be negative");
+                    }
+                    builder.setDeadband(deadband);
+                }
+                else if (AcquisitionOptions.DEADBAND_RELATIVE.equals(name)) {
+                    builder.setDeadbandRelative(Double.parseDouble(value.trim()));
+                }
+                else if (AcquisitionOptions.HEARTBEAT.equals(name)) {
+                    builder.setHeartbeat(Double.parseDouble(value.trim()));
+                }
+                else {
+                    throw new IllegalArgumentException("unrecognized argument '"
+                            + name + "'");
+                }
+            }
+            catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid value for '"
+                        + name + "': '" + value + "'");
+            }
+        }
+        return builder.build();
+    }
+
     /**
      * Does the asynchronous dispatch of this operation
      * 
@@ -140,11 +227,14 @@ public class StartOrStopAcquisitionRequestProcessor extends
      *            channel name
      * @param publishStream
      *            the queue (rounting key) to publish the data.
+     * @param options
+     *            publication options (only used to start)
      * @return The {@link SuccessFail} result of the submission of the request.
      */
     private GeneratedMessage _getAndPublishResult(final int reqId,
             String rbnbHost, String turbineName, final String port,
-            final String channel, final String publishStream) {
+            final String channel, final String publishStream,
+            AcquisitionOptions options) {
 
         _checkAsyncSetup();
 
@@ -174,7 +264,8 @@ public class StartOrStopAcquisitionRequestProcessor extends
                 dataManager.startDataNotifier(turbineName,
                         reqId,
                         publishId,
-                        publishStream);
+                        publishStream,
+                        options);
             }
             catch (Exception e) {
                 String description = _rid(reqId)
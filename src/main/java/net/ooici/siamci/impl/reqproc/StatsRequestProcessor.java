@@ -0,0 +1,35 @@
+package net.ooici.siamci.impl.reqproc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.ooici.play.InstrDriverInterface.Command;
+import net.ooici.siamci.utils.RequestStats;
+import net.ooici.siamci.utils.ScUtils;
+import net.ooici.siamci.utils.WorkerPool;
+import net.ooici.siamci.utils.WorkerPools;
+
+import com.google.protobuf.GeneratedMessage;
+
+/**
+ * stats processor. Responds with the latency summary of each command and
+ * stage with recorded values (see {@link RequestStats}), as pairs
+ * "command.stage" -> "n=.. mean=.. p50=.. p90=.. p99=.. max=.." (in
+ * milliseconds), followed by the state of each worker pool, as pairs
+ * "pool.NAME" -> description.
+ * 
+ * @author carueda
+ */
+public class StatsRequestProcessor extends BaseRequestProcessor {
+
+    public GeneratedMessage processRequest(int reqId, Command cmd,
+            long deadline) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.putAll(RequestStats.instance().getSummaryMap());
+        for (WorkerPool pool : WorkerPools.getPools()) {
+            map.put("pool." + pool.getName(), pool.toString());
+        }
+        return ScUtils.createSuccessResponseWithMap(map);
+    }
+
+}
@@ -0,0 +1,107 @@
+package net.ooici.siamci.utils;
+
+/**
+ * Change-only filter for slowly varying signals. A sample passes if its value
+ * moves beyond the deadband with respect to the last sample that passed, or
+ * if the heartbeat interval has elapsed since then; the first sample always
+ * passes. The deadband can be absolute, relative to the magnitude of the last
+ * passed value, or both (a sample passes if it exceeds either one).
+ *
+ * <p>
+ * Not thread-safe.
+ *
+ * @author carueda
+ */
+public class DeadbandFilter {
+
+    private final double absolute;
+    private final double relative;
+    private final double heartbeat;
+
+    private boolean hasLast;
+    private double lastValue;
+    private double lastTime;
+
+    private long passedCount;
+    private long suppressedCount;
+
+    /**
+     * Creates a filter.
+     *
+     * @param absolute
+     *            absolute deadband; 0 for none.
+     * @param relative
+     *            deadband as a fraction of the last passed value; 0 for none.
+     * @param heartbeat
+     *            maximum interval, in the units of the sample times, between
+     *            passed samples; 0 for none.
+     * @throws IllegalArgumentException
+     *             if any of the values is negative.
+     */
+    public DeadbandFilter(double absolute, double relative, double heartbeat) {
+        if (absolute < 0 || relative < 0 || heartbeat < 0) {
+            throw new IllegalArgumentException("deadband and heartbeat cannot be negative");
+        }
+        this.absolute = absolute;
+        this.relative = relative;
+        this.heartbeat = heartbeat;
+    }
+
+    /**
+     * Tells whether the given sample passes the filter, in which case it
+     * becomes the reference for the next samples.
+     */
+    public boolean accept(double time, double value) {
+        boolean pass;
+        if (!hasLast || Double.isNaN(value) != Double.isNaN(lastValue)) {
+            pass = true;
+        }
+        else {
+            double delta = Math.abs(value - lastValue);
+            pass = (absolute == 0 && relative == 0 && delta > 0)
+                    || (absolute > 0 && delta > absolute)
+                    || (relative > 0 && delta > relative * Math.abs(lastValue))
+                    || (heartbeat > 0 && time - lastTime >= heartbeat);
+        }
+        if (pass) {
+            hasLast = true;
+            lastValue = value;
+            lastTime = time;
+            passedCount++;
+        }
+        else {
+            suppressedCount++;
+        }
+        return pass;
+    }
+
+    /**
+     * Filters samples into the given output arrays, which can be the input
+     * arrays.
+     *
+     * @return the number of samples that passed, which are placed at the
+     *         beginning of the output arrays.
+     */
+    public int filter(double[] times, double[] values, int count,
+            double[] outTimes, double[] outValues) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (accept(times[i], values[i])) {
+                outTimes[n] = times[i];
+                outValues[n] = values[i];
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /** Number of samples that passed the filter */
+    public long getPassedCount() {
+        return passedCount;
+    }
+
+    /** Number of samples suppressed by the filter */
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+}
@@ -0,0 +1,162 @@
+package net.ooici.siamci.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: values (in
+ * microseconds) are counted in log-linear buckets, that is, each power-of-two
+ * range is split into {@value #SUB_BUCKETS} linear sub-buckets, which gives a
+ * relative error below 1/{@value #SUB_BUCKETS} for any value while using a
+ * small fixed amount of memory. Recording a value is wait-free except for the
+ * maximum, which is updated with a CAS loop.
+ *
+ * @author carueda
+ */
+public class LatencyHistogram {
+
+    /** log2 of {@link #SUB_BUCKETS} */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /** Number of linear sub-buckets per power of two */
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values are capped to 2^MAX_BITS - 1 microseconds (about 19 hours) */
+    private static final int MAX_BITS = 36;
+
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private static final int NUM_BUCKETS = _index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Gets the bucket index for the given value.
+     */
+    static int _index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the highest value that falls in the given bucket.
+     */
+    static long _highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param micros
+     *            the value in microseconds; negative values are recorded as
+     *            zero.
+     */
+    public void record(long micros) {
+        long value = micros < 0 ? 0 : Math.min(micros, MAX_VALUE);
+        counts.incrementAndGet(_index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given start time.
+     *
+     * @param startNanos
+     *            start time as given by {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Number of recorded values */
+    public long getCount() {
+        return count.get();
+    }
+
+    /** Mean of the recorded values in microseconds; 0 if none */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /** Maximum recorded value in microseconds */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets the value at the given percentile.
+     *
+     * @param percentile
+     *            a number in [0, 100]
+     * @return the value in microseconds (upper end of the corresponding
+     *         bucket, but never greater than the maximum recorded value); 0 if
+     *         no values have been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(n * Math.min(100, percentile) / 100);
+        if (target < 1) {
+            target = 1;
+        }
+        long accumulated = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            accumulated += counts.get(i);
+            if (accumulated >= target) {
+                return Math.min(_highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Clears all the recorded values. Values being recorded concurrently may
+     * or may not be cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * A one-line summary with the count and the mean, p50, p90, p99 and max
+     * values in milliseconds.
+     */
+    public String toString() {
+        return String.format("n=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f max=%.3f",
+                getCount(),
+                getMean() / 1000,
+                getPercentile(50) / 1000.0,
+                getPercentile(90) / 1000.0,
+                getPercentile(99) / 1000.0,
+                getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,182 @@
+package net.ooici.siamci.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of a set of samples of a channel, used as the
+ * payload of published data messages when the "packed" encoding is requested
+ * (the "encoding" header of such messages is {@value #ENCODING}).
+ *
+ * <p>
+ * Layout (big-endian):
+ *
+ * <pre>
+ *   byte[2]   magic: 'S' 'P'
+ *   byte      version: 1
+ *   byte      flags: bit 0 set if times are given as absolute doubles
+ *   short     length of the channel name in bytes, followed by the name (UTF-8)
+ *   int       count: number of samples
+ *   double    base time: time of the first sample, in seconds since the epoch
+ *   count x   time: int offset from the base time in microseconds or,
+ *             if flag bit 0 is set, double time in seconds since the epoch
+ *   count x   double value
+ * </pre>
+ *
+ * Times are given as offsets unless some offset does not fit in an int (about
+ * 35 minutes).
+ *
+ * @author carueda
+ */
+public class PackedSamples {
+
+    /** Value of the "encoding" header of packed messages */
+    public static final String ENCODING = "SIAM-CI packed samples 1";
+
+    private static final byte MAGIC_0 = 'S';
+    private static final byte MAGIC_1 = 'P';
+    private static final byte VERSION = 1;
+
+    private static final byte FLAG_ABSOLUTE_TIMES = 1;
+
+    private static final int HEADER_SIZE = 2 + 1 + 1 + 2 + 4 + 8;
+
+    /**
+     * Decoded contents of a packed payload.
+     */
+    public static class Samples {
+        public final String channel;
+        public final double[] times;
+        public final double[] values;
+
+        Samples(String channel, double[] times, double[] values) {
+            this.channel = channel;
+            this.times = times;
+            this.values = values;
+        }
+    }
+
+    private PackedSamples() {
+    }
+
+    /**
+     * Gets the UTF-8 bytes of a channel name, to be passed to
+     * {@link #encode(ByteBuffer, byte[], double[], double[], int)}.
+     */
+    public static byte[] channelBytes(String channel) {
+        try {
+            return channel.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // should not happen
+        }
+    }
+
+    /**
+     * Encodes samples.
+     *
+     * @param buffer
+     *            buffer to reuse; can be null. A new buffer is allocated if
+     *            this one is too small.
+     * @param channel
+     *            channel name, see {@link #channelBytes(String)}
+     * @param values
+     *            the values
+     * @param times
+     *            the times in seconds since the epoch
+     * @param count
+     *            number of samples to take from the arrays
+     * @return the buffer with the encoded samples, ready to be read (ie., with
+     *         position 0 and limit at the end of the encoded data).
+     */
+    public static ByteBuffer encode(ByteBuffer buffer, byte[] channel,
+            double[] values, double[] times, int count) {
+
+        if (channel.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("channel name too long");
+        }
+        final double baseTime = count > 0 ? times[0] : 0;
+        boolean absoluteTimes = false;
+        for (int i = 0; i < count; i++) {
+            double offset = (times[i] - baseTime) * 1e6;
+            if (offset > Integer.MAX_VALUE || offset < Integer.MIN_VALUE) {
+                absoluteTimes = true;
+                break;
+            }
+        }
+
+        int size = HEADER_SIZE + channel.length + count
+                * ((absoluteTimes ? 8 : 4) + 8);
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size,
+                    buffer == null ? 0 : 2 * buffer.capacity()));
+        }
+        buffer.clear();
+
+        buffer.put(MAGIC_0).put(MAGIC_1).put(VERSION);
+        buffer.put(absoluteTimes ? FLAG_ABSOLUTE_TIMES : 0);
+        buffer.putShort((short) channel.length).put(channel);
+        buffer.putInt(count);
+        buffer.putDouble(baseTime);
+        for (int i = 0; i < count; i++) {
+            if (absoluteTimes) {
+                buffer.putDouble(times[i]);
+            }
+            else {
+                buffer.putInt((int) Math.round((times[i] - baseTime) * 1e6));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.putDouble(values[i]);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes a packed payload.
+     *
+     * @throws IllegalArgumentException
+     *             if the content is not a valid packed payload.
+     */
+    public static Samples decode(byte[] content) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            if (buffer.get() != MAGIC_0 || buffer.get() != MAGIC_1) {
+                throw new IllegalArgumentException("not a packed payload");
+            }
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported version: "
+                        + version);
+            }
+            boolean absoluteTimes = (buffer.get() & FLAG_ABSOLUTE_TIMES) != 0;
+            byte[] channel = new byte[buffer.getShort()];
+            buffer.get(channel);
+            int count = buffer.getInt();
+            double baseTime = buffer.getDouble();
+
+            double[] times = new double[count];
+            double[] values = new double[count];
+            for (int i = 0; i < count; i++) {
+                times[i] = absoluteTimes ? buffer.getDouble() : baseTime
+                        + buffer.getInt() / 1e6;
+            }
+            for (int i = 0; i < count; i++) {
+                values[i] = buffer.getDouble();
+            }
+            return new Samples(new String(channel, "UTF-8"), times, values);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // should not happen
+        }
+        catch (RuntimeException e) {
+            if (e instanceof IllegalArgumentException) {
+                throw e;
+            }
+            throw new IllegalArgumentException("malformed packed payload: "
+                    + e);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package net.ooici.siamci.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Per-command, per-stage latency histograms of the requests processed by the
+ * service. A single instance is available via {@link #instance()}, which is
+ * also registered as an MBean (net.ooici.siamci:type=RequestStats).
+ *
+ * <p>
+ * The time spent in synchronous SIAM calls made while processing a request
+ * is accumulated per thread (see {@link #addSiamTime(long)}) so the
+ * processing stage can be split into {@link Stage#SIAM} and
+ * {@link Stage#BUILD}.
+ *
+ * @author carueda
+ */
+public class RequestStats implements RequestStatsMBean {
+
+    /**
+     * The stages of a request.
+     */
+    public enum Stage {
+        /** acknowledgment of the incoming message */
+        ACK,
+        /** decoding of the headers and command */
+        DECODE,
+        /** waiting in the queue of the dispatch pool */
+        QUEUE,
+        /** synchronous SIAM calls */
+        SIAM,
+        /** processing other than SIAM calls (mainly building the response) */
+        BUILD,
+        /** encoding of the response */
+        ENCODE,
+        /** sending of the reply */
+        SEND,
+        /** from arrival to reply sent */
+        TOTAL,
+    }
+
+    /** Commands beyond this number are all accounted under {@link #OTHER} */
+    private static final int MAX_COMMANDS = 64;
+
+    private static final String OTHER = "(other)";
+
+    private static final RequestStats instance = new RequestStats();
+
+    static {
+        ScUtils.registerMBean(instance, "RequestStats", "requests");
+    }
+
+    /**
+     * @return the single instance.
+     */
+    public static RequestStats instance() {
+        return instance;
+    }
+
+    /** accumulated SIAM time in nanoseconds for the request in the thread */
+    private static final ThreadLocal<long[]> siamNanos = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /** command -> histograms */
+    private final ConcurrentMap<String, Map<Stage, LatencyHistogram>> commands = new ConcurrentHashMap<String, Map<Stage, LatencyHistogram>>();
+
+    private RequestStats() {
+    }
+
+    private Map<Stage, LatencyHistogram> _getHistograms(String command) {
+        if (command == null) {
+            command = "?";
+        }
+        Map<Stage, LatencyHistogram> histograms = commands.get(command);
+        if (histograms == null) {
+            if (commands.size() >= MAX_COMMANDS) {
+                command = OTHER;
+                histograms = commands.get(command);
+                if (histograms != null) {
+                    return histograms;
+                }
+            }
+            Map<Stage, LatencyHistogram> newHistograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+            for (Stage stage : Stage.values()) {
+                newHistograms.put(stage, new LatencyHistogram());
+            }
+            histograms = commands.putIfAbsent(command, newHistograms);
+            if (histograms == null) {
+                histograms = newHistograms;
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Gets the histogram for the given command and stage.
+     */
+    public LatencyHistogram getHistogram(String command, Stage stage) {
+        return _getHistograms(command).get(stage);
+    }
+
+    /**
+     * Records the time elapsed since the given start.
+     *
+     * @param command
+     *            name of the command
+     * @param stage
+     *            the stage
+     * @param startNanos
+     *            start of the stage as given by {@link System#nanoTime()}
+     */
+    public void recordSince(String command, Stage stage, long startNanos) {
+        getHistogram(command, stage).recordSince(startNanos);
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param command
+     *            name of the command
+     * @param stage
+     *            the stage
+     * @param nanos
+     *            the duration in nanoseconds
+     */
+    public void record(String command, Stage stage, long nanos) {
+        getHistogram(command, stage).record(nanos / 1000);
+    }
+
+    /**
+     * Resets the SIAM time accumulated in the current thread. To be called
+     * before the processing of a request.
+     */
+    public static void resetSiamTime() {
+        siamNanos.get()[0] = 0;
+    }
+
+    /**
+     * Adds to the SIAM time accumulated in the current thread.
+     *
+     * @param nanos
+     *            duration of a SIAM call in nanoseconds
+     */
+    public static void addSiamTime(long nanos) {
+        siamNanos.get()[0] += nanos;
+    }
+
+    /**
+     * @return the SIAM time in nanoseconds accumulated in the current thread
+     *         since the last call to {@link #resetSiamTime()}.
+     */
+    public static long getSiamTime() {
+        return siamNanos.get()[0];
+    }
+
+    /**
+     * Gets a summary line for each command and stage with recorded values,
+     * in the form "command.stage" -> histogram summary.
+     */
+    public Map<String, String> getSummaryMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        List<String> names = new ArrayList<String>(commands.keySet());
+        Collections.sort(names);
+        for (String command : names) {
+            Map<Stage, LatencyHistogram> histograms = commands.get(command);
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram histogram = histograms.get(stage);
+                if (histogram.getCount() > 0) {
+                    map.put(command + "." + stage.name().toLowerCase(),
+                            histogram.toString());
+                }
+            }
+        }
+        return map;
+    }
+
+    public String[] getSummaries() {
+        List<String> list = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : getSummaryMap().entrySet()) {
+            list.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    public void reset() {
+        for (Map<Stage, LatencyHistogram> histograms : commands.values()) {
+            for (LatencyHistogram histogram : histograms.values()) {
+                histogram.reset();
+            }
+        }
+    }
+}
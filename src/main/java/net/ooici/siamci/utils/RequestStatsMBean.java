@@ -0,0 +1,19 @@
+package net.ooici.siamci.utils;
+
+/**
+ * JMX management interface of {@link RequestStats}.
+ *
+ * @author carueda
+ */
+public interface RequestStatsMBean {
+
+    /**
+     * One line per command and stage with the count and the mean, p50, p90,
+     * p99 and max latencies in milliseconds.
+     */
+    public String[] getSummaries();
+
+    /** Clears all the histograms */
+    public void reset();
+
+}
@@ -1,9 +1,12 @@
 package net.ooici.siamci.utils;
 
+import java.lang.management.ManagementFactory;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
 
+import javax.management.ObjectName;
+
 import net.ooici.play.InstrDriverInterface.Command;
 import net.ooici.play.InstrDriverInterface.Result;
 import net.ooici.play.InstrDriverInterface.StringPair;
@@ -11,6 +14,9 @@ import net.ooici.play.InstrDriverInterface.SuccessFail;
 import net.ooici.play.InstrDriverInterface.SuccessFail.Builder;
 import net.ooici.play.InstrDriverInterface.SuccessFail.Item;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.protobuf.GeneratedMessage;
 
 /**
@@ -20,6 +26,11 @@ import com.google.protobuf.GeneratedMessage;
  */
 public class ScUtils {
 
+    private static final Logger log = LoggerFactory.getLogger(ScUtils.class);
+
+    /** Domain for the MBeans registered by {@link #registerMBean} */
+    public static final String JMX_DOMAIN = "net.ooici.siamci";
+
     /**
      * Formats a request id: helps identify the specific request among the
      * various possible concurrent log messages.
@@ -28,6 +39,74 @@ public class ScUtils {
         return "[" + reqId + "] ";
     }
 
+    /**
+     * Gets an integer configuration value given by a system property.
+     *
+     * @param name
+     *            Name of the system property.
+     * @param defaultValue
+     *            Value to return if the property is not set or cannot be
+     *            parsed as an integer.
+     * @return the value
+     */
+    public static int getIntProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException ignore) {
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Gets a boolean configuration value given by a system property.
+     *
+     * @param name
+     *            Name of the system property.
+     * @param defaultValue
+     *            Value to return if the property is not set.
+     * @return true if the property is set to "true" (ignoring case) or is set
+     *         with no value; false if set to any other value; the default
+     *         value if not set.
+     */
+    public static boolean getBooleanProperty(String name, boolean defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        value = value.trim();
+        return value.length() == 0 || Boolean.valueOf(value);
+    }
+
+    /**
+     * Registers the given object in the platform MBean server under the name
+     * "net.ooici.siamci:type=TYPE,name=NAME". Any error is just logged as a
+     * warning since monitoring is not essential for the operation of the
+     * service.
+     *
+     * @param mbean
+     *            The object to register
+     * @param type
+     *            Value for the "type" key
+     * @param name
+     *            Value for the "name" key
+     */
+    public static void registerMBean(Object mbean, String type, String name) {
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type="
+                    + type + ",name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(mbean, objectName);
+        }
+        catch (Exception e) {
+            log.warn("Cannot register MBean type='" + type + "' name='"
+                    + name + "': " + e.getMessage());
+        }
+    }
+
     /**
      * Gets the value of the "publish_stream" field, if any.
      * 
@@ -0,0 +1,412 @@
+package net.ooici.siamci.utils;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A durable, append-only queue of records kept in a directory as a sequence
+ * of fixed-size segment files, each one memory-mapped, so the records are
+ * neither held in the heap nor lost if the process dies.
+ *
+ * <p>
+ * Each segment starts with the time of its last write (long). Each record is
+ * stored as its length (int) followed by its bytes; the length is written
+ * last, so a partially written record is never seen. Consumed records are
+ * marked by negating their length; a segment is deleted once all its records
+ * are consumed. Upon creation, the existing segments in the directory are
+ * scanned to resume from the first record not consumed.
+ *
+ * <p>
+ * Records are read with {@link #peek(int)} and consumed with
+ * {@link #commit(Batch, int)}, which only affects the records actually
+ * returned by the peek: those discarded in the meantime because of the limits
+ * below are not consumed twice, and the following ones are not consumed at
+ * all.
+ *
+ * <p>
+ * The disk usage is bounded: when a new segment would exceed the maximum
+ * size, the oldest segment is discarded with its pending records. Segments
+ * last written longer than the retention period ago are also discarded. The
+ * number of records discarded is given by {@link #getDroppedCount()}.
+ *
+ * <p>
+ * Thread-safe.
+ *
+ * @author carueda
+ */
+public class SegmentedSpool {
+
+    private static final String SUFFIX = ".seg";
+
+    /** size of the segment header: the time of the last write */
+    private static final int HEADER_SIZE = 8;
+
+    /** A segment file */
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+
+        /** position of the next record to write */
+        int writePos = HEADER_SIZE;
+
+        /** position of the next record to read */
+        int readPos = HEADER_SIZE;
+
+        /** records not consumed yet */
+        int pending;
+
+        long lastWrite;
+
+        /** no more records are to be written to this segment */
+        boolean sealed;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        void setLastWrite(long time) {
+            lastWrite = time;
+            buffer.putLong(0, time);
+        }
+    }
+
+    /**
+     * Records returned by {@link SegmentedSpool#peek(int)}, with the position
+     * of each one in the spool.
+     */
+    public static class Batch {
+        private final List<byte[]> records = new ArrayList<byte[]>();
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private final List<Integer> positions = new ArrayList<Integer>();
+
+        private void add(byte[] record, Segment segment, int pos) {
+            records.add(record);
+            segments.add(segment);
+            positions.add(pos);
+        }
+
+        /** The records, oldest first */
+        public List<byte[]> getRecords() {
+            return records;
+        }
+
+        public int size() {
+            return records.size();
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long retentionMillis;
+
+    /** the segments, oldest first; the last one is written */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private long nextSeqNo;
+    private long pendingCount;
+    private long droppedCount;
+
+    /**
+     * Opens or creates a spool.
+     *
+     * @param dir
+     *            directory of the spool, created if needed.
+     * @param segmentSize
+     *            size in bytes of each segment file, which is also the
+     *            maximum size of a record (minus 12).
+     * @param maxBytes
+     *            maximum disk usage; at least one segment is always allowed.
+     * @param retentionMillis
+     *            maximum age of a segment since its last write; 0 for no
+     *            limit.
+     * @throws IOException
+     *             if the directory or a segment cannot be accessed.
+     */
+    public SegmentedSpool(File dir, int segmentSize, long maxBytes,
+            long retentionMillis) throws IOException {
+        if (segmentSize < 64) {
+            throw new IllegalArgumentException("segment size too small: "
+                    + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                maxBytes / segmentSize));
+        this.retentionMillis = retentionMillis;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        _recover();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @throws IllegalArgumentException
+     *             if the record does not fit in a segment.
+     * @throws IOException
+     *             if a new segment cannot be created.
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        if (record.length == 0
+                || record.length > segmentSize - HEADER_SIZE - 4) {
+            throw new IllegalArgumentException("invalid record size: "
+                    + record.length);
+        }
+        _expire();
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || segment.sealed
+                || segment.writePos + 4 + record.length > segmentSize) {
+            segment = _newSegment();
+        }
+        int pos = segment.writePos;
+        segment.buffer.position(pos + 4);
+        segment.buffer.put(record);
+        // the length last, so the record is only visible once complete:
+        segment.buffer.putInt(pos, record.length);
+        segment.writePos = pos + 4 + record.length;
+        segment.pending++;
+        segment.setLastWrite(System.currentTimeMillis());
+        pendingCount++;
+    }
+
+    /**
+     * Gets the oldest records not consumed, without consuming them.
+     *
+     * @param max
+     *            maximum number of records to return
+     * @return the records, oldest first; empty if none.
+     */
+    public synchronized Batch peek(int max) {
+        _expire();
+        Batch batch = new Batch();
+        for (Segment segment : segments) {
+            int pos = segment.readPos;
+            while (batch.size() < max && pos < segment.writePos) {
+                int length = segment.buffer.getInt(pos);
+                if (length > 0) {
+                    byte[] record = new byte[length];
+                    segment.buffer.position(pos + 4);
+                    segment.buffer.get(record);
+                    batch.add(record, segment, pos);
+                }
+                pos += 4 + Math.abs(length);
+            }
+            if (batch.size() >= max) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Consumes the first records of a batch returned by {@link #peek(int)}.
+     * Records whose segment has been discarded since the peek are ignored.
+     * Segments with no records left are deleted, except the one being
+     * written.
+     *
+     * @param batch
+     *            the batch
+     * @param count
+     *            number of records to consume from the beginning of the
+     *            batch
+     */
+    public synchronized void commit(Batch batch, int count) {
+        count = Math.min(count, batch.size());
+        for (int i = 0; i < count; i++) {
+            Segment segment = batch.segments.get(i);
+            if (!segments.contains(segment)) {
+                // discarded because of the size or age limits
+                continue;
+            }
+            int pos = batch.positions.get(i);
+            int length = segment.buffer.getInt(pos);
+            if (length > 0) {
+                segment.buffer.putInt(pos, -length);
+                segment.pending--;
+                pendingCount--;
+            }
+            segment.readPos = Math.max(segment.readPos, pos + 4
+                    + Math.abs(length));
+        }
+        while (segments.size() > 1 && segments.getFirst().pending == 0) {
+            _remove(segments.removeFirst());
+        }
+    }
+
+    /** Number of records not consumed */
+    public synchronized long size() {
+        return pendingCount;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingCount == 0;
+    }
+
+    /** Number of records discarded because of the size or age limits */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Disk space used by the segments, in bytes */
+    public synchronized long getDiskUsage() {
+        return (long) segments.size() * segmentSize;
+    }
+
+    /**
+     * Writes the changes to the storage device.
+     */
+    public synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    private Segment _newSegment() throws IOException {
+        while (!segments.isEmpty() && segments.getFirst().pending == 0) {
+            _remove(segments.removeFirst());
+        }
+        while (segments.size() >= maxSegments) {
+            Segment oldest = segments.removeFirst();
+            droppedCount += oldest.pending;
+            pendingCount -= oldest.pending;
+            _remove(oldest);
+        }
+        File file = new File(dir, String.format("%020d%s", nextSeqNo++, SUFFIX));
+        Segment segment = new Segment(file, _map(file));
+        segment.setLastWrite(System.currentTimeMillis());
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Discards the segments not written within the retention period.
+     */
+    private void _expire() {
+        if (retentionMillis <= 0) {
+            return;
+        }
+        long limit = System.currentTimeMillis() - retentionMillis;
+        while (!segments.isEmpty() && segments.getFirst().lastWrite < limit) {
+            Segment oldest = segments.removeFirst();
+            droppedCount += oldest.pending;
+            pendingCount -= oldest.pending;
+            _remove(oldest);
+        }
+    }
+
+    private void _remove(Segment segment) {
+        // the mapping is released when the buffer is garbage collected
+        _removeFile(segment.file);
+    }
+
+    private MappedByteBuffer _map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                    0,
+                    segmentSize);
+        }
+        finally {
+            // the mapping remains valid after closing the file
+            raf.close();
+        }
+    }
+
+    /**
+     * Loads the existing segments.
+     */
+    private void _recover() throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                long seqNo = Long.parseLong(name.substring(0, name.length()
+                        - SUFFIX.length()));
+                nextSeqNo = Math.max(nextSeqNo, seqNo + 1);
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            if (file.length() != segmentSize) {
+                // written with another segment size; cannot be trusted
+                droppedCount++;
+                _removeFile(file);
+                continue;
+            }
+            Segment segment = new Segment(file, _map(file));
+            // not the file modification time, which writes through the
+            // mapping may not update:
+            segment.lastWrite = segment.buffer.getLong(0);
+            segment.readPos = -1;
+            int pos = HEADER_SIZE;
+            while (pos + 4 <= segmentSize) {
+                int length = segment.buffer.getInt(pos);
+                if (length == 0 || length == Integer.MIN_VALUE
+                        || Math.abs(length) > segmentSize - pos - 4) {
+                    // end of data, or a corrupted length
+                    break;
+                }
+                if (length > 0) {
+                    segment.pending++;
+                    if (segment.readPos < 0) {
+                        segment.readPos = pos;
+                    }
+                }
+                pos += 4 + Math.abs(length);
+            }
+            segment.writePos = pos;
+            if (segment.readPos < 0) {
+                segment.readPos = pos;
+            }
+            if (segment.pending == 0) {
+                _remove(segment);
+                continue;
+            }
+            pendingCount += segment.pending;
+            segments.addLast(segment);
+        }
+        // new records always go to a new segment:
+        if (!segments.isEmpty()) {
+            segments.getLast().sealed = true;
+        }
+    }
+
+    private void _removeFile(File file) {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    public String toString() {
+        return dir + ": records=" + size() + " dropped=" + getDroppedCount();
+    }
+}
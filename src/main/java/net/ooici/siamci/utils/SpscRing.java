@@ -0,0 +1,122 @@
+package net.ooici.siamci.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, single-producer/single-consumer ring buffer.
+ * {@link #offer(Object)} and {@link #dropOldest()} must be called
+ * from a single producer thread, and {@link #poll()} from a single consumer
+ * thread at a time.
+ *
+ * <p>
+ * Besides the regular offer, the producer can drop the oldest element to make
+ * room for a new one ({@link #dropOldest()}), so a slow consumer never stalls
+ * the producer. Both sides take elements with a CAS on the head index, so an
+ * element dropped by the producer is never also returned to the consumer.
+ * Taken slots are not cleared, so up to {@link #capacity()} elements may be
+ * kept reachable.
+ *
+ * @author carueda
+ */
+public class SpscRing<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+
+    /** index of the next element to take; advanced by consumer and producer */
+    private final AtomicLong head = new AtomicLong();
+
+    /** index of the next free slot; only advanced by the producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity
+     *            Requested capacity; rounded up to a power of two.
+     */
+    public SpscRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int actual = Integer.highestOneBit(capacity);
+        if (actual < capacity) {
+            actual <<= 1;
+        }
+        slots = new AtomicReferenceArray<E>(actual);
+        mask = actual - 1;
+    }
+
+    /** The capacity of the buffer */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /** Number of elements in the buffer */
+    public int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Adds an element if there is room. Producer only.
+     *
+     * @return true if added; false if the buffer is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long t = tail.get();
+        if (t - head.get() > mask) {
+            return false;
+        }
+        slots.set((int) t & mask, element);
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element to make room for a new one. Producer only.
+     *
+     * @return the removed element, or null if the buffer is empty.
+     */
+    public E dropOldest() {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return null;
+            }
+            // only the producer writes the slots, so this is stable:
+            E element = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                return element;
+            }
+            // the consumer took it: retry with the next one
+        }
+    }
+
+    /**
+     * Takes the oldest element. Consumer only.
+     *
+     * @return the element, or null if the buffer is empty.
+     */
+    public E poll() {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return null;
+            }
+            E element = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                return element;
+            }
+            // the producer dropped this element: retry with the next one
+        }
+    }
+}
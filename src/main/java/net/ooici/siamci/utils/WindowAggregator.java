@@ -0,0 +1,236 @@
+package net.ooici.siamci.utils;
+
+/**
+ * Streaming min/max/mean/count aggregation of timestamped samples over
+ * tumbling or sliding windows. No objects are allocated per sample: the
+ * window is kept as a ring of panes (one per slide step) with primitive
+ * partial aggregates, which are combined when a window closes.
+ *
+ * <p>
+ * Windows are aligned to multiples of the slide, and a window is emitted when
+ * the first sample past its end arrives, so the samples are expected in
+ * increasing time order; samples older than the current pane are counted as
+ * late (see {@link #getLateCount()}) and ignored. Windows without samples are
+ * not emitted.
+ *
+ * <p>
+ * Not thread-safe.
+ *
+ * @author carueda
+ */
+public class WindowAggregator {
+
+    /**
+     * Receives the aggregates of the closed windows.
+     */
+    public interface Listener {
+        /**
+         * Called for each closed window with at least one sample.
+         *
+         * @param start
+         *            start time of the window (inclusive)
+         * @param end
+         *            end time of the window (exclusive)
+         */
+        void windowClosed(double start, double end, int count, double min,
+                double max, double mean);
+    }
+
+    /** Maximum number of panes (window / slide) */
+    public static final int MAX_PANES = 3600;
+
+    private final double window;
+    private final double slide;
+    private final int numPanes;
+
+    private final int[] counts;
+    private final double[] mins;
+    private final double[] maxs;
+    private final double[] sums;
+
+    /** index of the current pane; Long.MIN_VALUE before the first sample */
+    private long current = Long.MIN_VALUE;
+
+    private long lateCount;
+
+    /**
+     * Creates an aggregator.
+     *
+     * @param window
+     *            length of the window, in the units of the sample times
+     * @param slide
+     *            step between consecutive windows; equal to the window for
+     *            tumbling windows. The window must be a multiple of it.
+     * @throws IllegalArgumentException
+     *             if the arguments are not positive, if the window is not a
+     *             multiple of the slide, or if the ratio exceeds
+     *             {@link #MAX_PANES}.
+     */
+    public WindowAggregator(double window, double slide) {
+        this.window = window;
+        this.slide = slide;
+        this.numPanes = getNumPanes(window, slide);
+        this.counts = new int[numPanes];
+        this.mins = new double[numPanes];
+        this.maxs = new double[numPanes];
+        this.sums = new double[numPanes];
+    }
+
+    /**
+     * Checks the arguments of the constructor.
+     *
+     * @return the number of panes, window / slide.
+     * @throws IllegalArgumentException
+     *             under the conditions given in the constructor.
+     */
+    public static int getNumPanes(double window, double slide) {
+        if (!(window > 0) || !(slide > 0)) {
+            throw new IllegalArgumentException("window and slide must be positive");
+        }
+        long panes = Math.round(window / slide);
+        if (panes < 1 || Math.abs(panes * slide - window) > 1e-9 * window) {
+            throw new IllegalArgumentException("window must be a multiple of the slide");
+        }
+        if (panes > MAX_PANES) {
+            throw new IllegalArgumentException("window / slide cannot exceed "
+                    + MAX_PANES);
+        }
+        return (int) panes;
+    }
+
+    public double getWindow() {
+        return window;
+    }
+
+    public double getSlide() {
+        return slide;
+    }
+
+    /** Number of samples ignored for being older than the current pane */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * Adds a sample, first emitting the windows closed by its time.
+     */
+    public void add(double time, double value, Listener listener) {
+        long pane = (long) Math.floor(time / slide);
+        if (current == Long.MIN_VALUE) {
+            current = pane;
+            _resetPane(pane);
+        }
+        else if (pane < current) {
+            lateCount++;
+            return;
+        }
+        else if (pane > current) {
+            _advance(pane, listener);
+        }
+
+        int slot = _slot(pane);
+        if (counts[slot] == 0) {
+            mins[slot] = value;
+            maxs[slot] = value;
+            sums[slot] = value;
+        }
+        else {
+            if (value < mins[slot]) {
+                mins[slot] = value;
+            }
+            if (value > maxs[slot]) {
+                maxs[slot] = value;
+            }
+            sums[slot] += value;
+        }
+        counts[slot]++;
+    }
+
+    /**
+     * Adds the first count samples of the given arrays.
+     */
+    public void add(double[] times, double[] values, int count,
+            Listener listener) {
+        for (int i = 0; i < count; i++) {
+            add(times[i], values[i], listener);
+        }
+    }
+
+    /**
+     * Emits the window ending with the current pane, even if incomplete, and
+     * resets the aggregator.
+     */
+    public void flush(Listener listener) {
+        if (current != Long.MIN_VALUE) {
+            _emit(current, listener);
+            for (int i = 0; i < numPanes; i++) {
+                counts[i] = 0;
+            }
+            current = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Closes the panes before the given one, emitting the corresponding
+     * windows, and makes it the current pane.
+     */
+    private void _advance(long pane, Listener listener) {
+        // after numPanes steps all the panes are empty: no more windows
+        long last = Math.min(pane - 1, current + numPanes - 1);
+        for (long p = current; p <= last; p++) {
+            _emit(p, listener);
+            _resetPane(p + 1);
+        }
+        if (pane > last + 1) {
+            // skipped ahead over empty panes
+            for (int i = 0; i < numPanes; i++) {
+                counts[i] = 0;
+            }
+        }
+        current = pane;
+    }
+
+    /**
+     * Emits the window ending with the given pane, if not empty.
+     */
+    private void _emit(long pane, Listener listener) {
+        int count = 0;
+        double min = 0;
+        double max = 0;
+        double sum = 0;
+        for (long p = pane - numPanes + 1; p <= pane; p++) {
+            int slot = _slot(p);
+            if (counts[slot] == 0) {
+                continue;
+            }
+            if (count == 0) {
+                min = mins[slot];
+                max = maxs[slot];
+            }
+            else {
+                if (mins[slot] < min) {
+                    min = mins[slot];
+                }
+                if (maxs[slot] > max) {
+                    max = maxs[slot];
+                }
+            }
+            count += counts[slot];
+            sum += sums[slot];
+        }
+        if (count > 0) {
+            double end = (pane + 1) * slide;
+            listener.windowClosed(end - window, end, count, min, max, sum
+                    / count);
+        }
+    }
+
+    private void _resetPane(long pane) {
+        counts[_slot(pane)] = 0;
+    }
+
+    private int _slot(long pane) {
+        int slot = (int) (pane % numPanes);
+        return slot < 0 ? slot + numPanes : slot;
+    }
+}
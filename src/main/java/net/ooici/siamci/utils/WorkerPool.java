@@ -0,0 +1,129 @@
+package net.ooici.siamci.utils;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded thread pool with a bounded queue. When both the threads and the
+ * queue are exhausted, a submission is rejected with a
+ * {@link RejectedExecutionException} so the caller can respond right away (eg.,
+ * with a "busy" response) instead of piling up threads. Instances are obtained
+ * via {@link WorkerPools}.
+ *
+ * <p>
+ * Threads idle for {@value #KEEP_ALIVE_SECONDS} seconds end, so the many
+ * pools, which are mostly idle, do not hold their threads for the life of the
+ * JVM. (This uses {@link ThreadPoolExecutor#allowCoreThreadTimeOut(boolean)},
+ * from Java 6, as are other library calls already made in this project;
+ * the sources otherwise remain at the 1.5 level.)
+ *
+ * @author carueda
+ */
+public class WorkerPool extends ThreadPoolExecutor implements WorkerPoolMBean {
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final String name;
+    private final int queueCapacity;
+    private final AtomicLong rejectedCount;
+
+    /**
+     * Creates a pool.
+     *
+     * @param name
+     *            Name of the pool, also used to name the threads.
+     * @param maxThreads
+     *            Maximum number of threads.
+     * @param queueCapacity
+     *            Capacity of the queue of waiting tasks; if 0, tasks are only
+     *            accepted when a thread is available.
+     */
+    WorkerPool(String name, int maxThreads, int queueCapacity) {
+        this(name,
+                Math.max(1, maxThreads),
+                Math.max(0, queueCapacity),
+                new AtomicLong());
+    }
+
+    private WorkerPool(final String name, int maxThreads,
+            final int queueCapacity, final AtomicLong rejectedCount) {
+
+        super(maxThreads,
+                maxThreads,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                _createQueue(queueCapacity),
+                _createThreadFactory(name),
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r,
+                            ThreadPoolExecutor executor) {
+                        rejectedCount.incrementAndGet();
+                        throw new RejectedExecutionException("Pool '" + name
+                                + "' saturated");
+                    }
+                });
+
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.rejectedCount = rejectedCount;
+        allowCoreThreadTimeOut(true);
+    }
+
+    private static BlockingQueue<Runnable> _createQueue(int queueCapacity) {
+        if (queueCapacity == 0) {
+            return new SynchronousQueue<Runnable>();
+        }
+        return new LinkedBlockingQueue<Runnable>(queueCapacity);
+    }
+
+    private static ThreadFactory _createThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name + "-"
+                        + threadNumber.getAndIncrement());
+            }
+        };
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxThreads() {
+        return getMaximumPoolSize();
+    }
+
+    public int getQueueSize() {
+        return getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public String toString() {
+        return String.format("%s: threads=%d/%d active=%d queued=%d/%d completed=%d rejected=%d",
+                name,
+                getPoolSize(),
+                getMaxThreads(),
+                getActiveCount(),
+                getQueueSize(),
+                queueCapacity,
+                getCompletedTaskCount(),
+                getRejectedCount());
+    }
+}
@@ -0,0 +1,34 @@
+package net.ooici.siamci.utils;
+
+/**
+ * JMX management interface of a {@link WorkerPool}.
+ *
+ * @author carueda
+ */
+public interface WorkerPoolMBean {
+
+    /** Name of the pool */
+    public String getName();
+
+    /** Maximum number of threads */
+    public int getMaxThreads();
+
+    /** Current number of threads */
+    public int getPoolSize();
+
+    /** Approximate number of threads actively executing tasks */
+    public int getActiveCount();
+
+    /** Number of tasks waiting in the queue */
+    public int getQueueSize();
+
+    /** Capacity of the queue (0 means no queueing at all) */
+    public int getQueueCapacity();
+
+    /** Approximate number of completed tasks */
+    public long getCompletedTaskCount();
+
+    /** Number of tasks rejected because the pool was saturated */
+    public long getRejectedCount();
+
+}
@@ -0,0 +1,74 @@
+package net.ooici.siamci.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Central place where the {@link WorkerPool}s of the application are created
+ * and kept. The size of each pool can be set with the system properties
+ * "siamci.pool.NAME.threads" and "siamci.pool.NAME.queue", where NAME is the
+ * name of the pool. Each pool is also registered as an MBean, so its queue
+ * depth and active count can be monitored with any JMX console.
+ *
+ * @author carueda
+ */
+public class WorkerPools {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerPools.class);
+
+    /** name -> pool */
+    private static final Map<String, WorkerPool> pools = new LinkedHashMap<String, WorkerPool>();
+
+    /**
+     * Gets the pool with the given name, creating it if necessary.
+     *
+     * @param name
+     *            Name of the pool
+     * @param defaultThreads
+     *            Maximum number of threads, unless overriden by the system
+     *            property "siamci.pool.NAME.threads".
+     * @param defaultQueueCapacity
+     *            Capacity of the queue, unless overriden by the system property
+     *            "siamci.pool.NAME.queue".
+     * @return the pool
+     */
+    public static WorkerPool getPool(String name, int defaultThreads,
+            int defaultQueueCapacity) {
+
+        synchronized (pools) {
+            WorkerPool pool = pools.get(name);
+            if (pool == null) {
+                int threads = ScUtils.getIntProperty("siamci.pool." + name
+                        + ".threads", defaultThreads);
+                int queueCapacity = ScUtils.getIntProperty("siamci.pool."
+                        + name + ".queue", defaultQueueCapacity);
+
+                pool = new WorkerPool(name, threads, queueCapacity);
+                pools.put(name, pool);
+                ScUtils.registerMBean(pool, "WorkerPool", name);
+
+                if (log.isDebugEnabled()) {
+                    log.debug("Pool created: " + pool);
+                }
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * @return the pools created so far.
+     */
+    public static List<WorkerPool> getPools() {
+        synchronized (pools) {
+            return new ArrayList<WorkerPool>(pools.values());
+        }
+    }
+
+    private WorkerPools() {
+    }
+}
@@ -4,6 +4,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,18 +19,46 @@ public class AsyncSiam implements IAsyncSiam {
     private static Logger log = LoggerFactory.getLogger(AsyncSiam.class);
 
     private final ISiam siam;
-    private final ExecutorService es = Executors.newCachedThreadPool();
+    private final ExecutorService es;
 
     /**
-     * Creates an asynchronous SIAM dispatcher
+     * Creates an asynchronous SIAM dispatcher using an unbounded thread pool.
      * 
      * @param siam
      *            the object to access the SIAM library.
-     * 
-     * @throws Exception
      */
     public AsyncSiam(ISiam siam) {
+        this(siam, Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Creates an asynchronous SIAM dispatcher
+     * 
+     * @param siam
+     *            the object to access the SIAM library.
+     * @param es
+     *            executor for the requests. If it rejects a submission, the
+     *            corresponding method returns an error message.
+     */
+    public AsyncSiam(ISiam siam, ExecutorService es) {
         this.siam = siam;
+        this.es = es;
+    }
+
+    /**
+     * Submits the given task.
+     * 
+     * @return null if the task was submitted; otherwise an error message.
+     */
+    private String _submit(Runnable task) {
+        try {
+            es.submit(task);
+            return null;
+        }
+        catch (RejectedExecutionException e) {
+            log.warn("Request rejected: " + e.getMessage());
+            return "Busy: SIAM request rejected (" + e.getMessage() + ")";
+        }
     }
 
     public String listPorts(final AsyncCallback<List<PortItem>> callback) {
@@ -41,7 +70,7 @@ public class AsyncSiam implements IAsyncSiam {
             log.debug("submitting request for listPorts");
         }
 
-        es.submit(new Runnable() {
+        return _submit(new Runnable() {
             public void run() {
                 try {
                     List<PortItem> result = siam.listPorts();
@@ -60,9 +89,6 @@ public class AsyncSiam implements IAsyncSiam {
                 }
             }
         });
-
-        // we always return null assuming the submission is always successful.
-        return null;
     }
 
     public String getPortStatus(final String port,
@@ -76,7 +102,7 @@ public class AsyncSiam implements IAsyncSiam {
             log.debug("submitting request for port status. port=" + port);
         }
 
-        es.submit(new Runnable() {
+        return _submit(new Runnable() {
             public void run() {
                 try {
                     String result = siam.getPortStatus(port);
@@ -96,9 +122,6 @@ public class AsyncSiam implements IAsyncSiam {
                 }
             }
         });
-
-        // we always return null assuming the submission is always successful.
-        return null;
     }
 
     public String getPortLastSample(final String port,
@@ -112,7 +135,7 @@ public class AsyncSiam implements IAsyncSiam {
             log.debug("submitting request for port last sample. port=" + port);
         }
 
-        es.submit(new Runnable() {
+        return _submit(new Runnable() {
             public void run() {
                 try {
                     InstrumentSample result = siam.getPortLastSample(port);
@@ -132,9 +155,6 @@ public class AsyncSiam implements IAsyncSiam {
                 }
             }
         });
-
-        // we always return null assuming the submission is always successful.
-        return null;
     }
 
     public String getPortChannels(final String port,
@@ -148,7 +168,7 @@ public class AsyncSiam implements IAsyncSiam {
             log.debug("submitting request for port channels. port=" + port);
         }
 
-        es.submit(new Runnable() {
+        return _submit(new Runnable() {
             public void run() {
                 try {
                     List<String> result = siam.getPortChannels(port);
@@ -168,9 +188,6 @@ public class AsyncSiam implements IAsyncSiam {
                 }
             }
         });
-
-        // we always return null assuming the submission is always successful.
-        return null;
     }
 
     public String getPortProperties(final String port,
@@ -184,7 +201,7 @@ public class AsyncSiam implements IAsyncSiam {
             log.debug("submitting request for port properties. port=" + port);
         }
 
-        es.submit(new Runnable() {
+        return _submit(new Runnable() {
             public void run() {
                 try {
                     Map<String, String> result = siam.getPortProperties(port);
@@ -204,9 +221,6 @@ public class AsyncSiam implements IAsyncSiam {
                 }
             }
         });
-
-        // we always return null assuming the submission is always successful.
-        return null;
     }
 
     public String setPortProperties(final String port,
@@ -222,7 +236,7 @@ public class AsyncSiam implements IAsyncSiam {
                     + port);
         }
 
-        es.submit(new Runnable() {
+        return _submit(new Runnable() {
             public void run() {
                 try {
                     Map<String, String> result = siam.setPortProperties(port,
@@ -243,9 +257,6 @@ public class AsyncSiam implements IAsyncSiam {
                 }
             }
         });
-
-        // we always return null assuming the submission is always successful.
-        return null;
     }
 
 }
@@ -0,0 +1,268 @@
+package siam;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.ooici.siamci.utils.ScUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ISiam} decorator that keeps the results of the read operations
+ * that change rarely for a configurable time-to-live (TTL):
+ * <ul>
+ * <li>{@link #listPorts()}: system property "siamci.cache.listPorts.ttl"
+ * (milliseconds, default {@value #DEFAULT_LIST_PORTS_TTL})
+ * <li>{@link #getPortChannels(String)}: "siamci.cache.getPortChannels.ttl"
+ * (default {@value #DEFAULT_PORT_CHANNELS_TTL})
+ * <li>{@link #getPortProperties(String)}: "siamci.cache.getPortProperties.ttl"
+ * (default {@value #DEFAULT_PORT_PROPERTIES_TTL})
+ * </ul>
+ * A TTL of zero disables the caching of the corresponding operation.
+ *
+ * <p>
+ * {@link #setPortProperties(String, Map)} invalidates all entries associated
+ * with the port, as well as the port list. A per-port generation number
+ * prevents a read that was started before the invalidation from storing its
+ * (possibly stale) result afterwards.
+ *
+ * <p>
+ * The status and last sample operations are not cached. The returned lists
+ * and maps are unmodifiable since they are shared by all callers.
+ *
+ * @author carueda
+ */
+public class CachingSiam implements ISiam, CachingSiamMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingSiam.class);
+
+    static final long DEFAULT_LIST_PORTS_TTL = 5 * 1000;
+    static final long DEFAULT_PORT_CHANNELS_TTL = 60 * 1000;
+    static final long DEFAULT_PORT_PROPERTIES_TTL = 30 * 1000;
+
+    /** Key used for the generation of operations not associated with a port */
+    private static final String NODE = "";
+
+    private static class Entry {
+        final Object value;
+        final long expiresAt;
+
+        Entry(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ISiam siam;
+
+    private final long listPortsTtl;
+    private final long portChannelsTtl;
+    private final long portPropertiesTtl;
+
+    /** "operation|port" -> entry */
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+    /** port -> generation; incremented upon each invalidation */
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates the cache with the TTLs given by the system properties.
+     *
+     * @param siam
+     *            The object to delegate the actual operations to.
+     */
+    public CachingSiam(ISiam siam) {
+        this(siam,
+                _getTtl("listPorts", DEFAULT_LIST_PORTS_TTL),
+                _getTtl("getPortChannels", DEFAULT_PORT_CHANNELS_TTL),
+                _getTtl("getPortProperties", DEFAULT_PORT_PROPERTIES_TTL));
+    }
+
+    /**
+     * Creates the cache with the given TTLs (milliseconds).
+     */
+    public CachingSiam(ISiam siam, long listPortsTtl, long portChannelsTtl,
+            long portPropertiesTtl) {
+        this.siam = siam;
+        this.listPortsTtl = listPortsTtl;
+        this.portChannelsTtl = portChannelsTtl;
+        this.portPropertiesTtl = portPropertiesTtl;
+
+        if (log.isDebugEnabled()) {
+            log.debug("TTLs: listPorts=" + listPortsTtl + " getPortChannels="
+                    + portChannelsTtl + " getPortProperties="
+                    + portPropertiesTtl);
+        }
+    }
+
+    private static long _getTtl(String operation, long defaultValue) {
+        return ScUtils.getIntProperty("siamci.cache." + operation + ".ttl",
+                (int) defaultValue);
+    }
+
+    private AtomicLong _generation(String port) {
+        AtomicLong generation = generations.get(port);
+        if (generation == null) {
+            AtomicLong newGeneration = new AtomicLong();
+            generation = generations.putIfAbsent(port, newGeneration);
+            if (generation == null) {
+                generation = newGeneration;
+            }
+        }
+        return generation;
+    }
+
+    /**
+     * @return the cached value for the key, or null if missing or expired.
+     */
+    private Object _get(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && System.currentTimeMillis() < entry.expiresAt) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the value unless the port has been invalidated since the given
+     * generation was read.
+     */
+    private void _put(String key, String port, long generation, Object value,
+            long ttl) {
+        cache.put(key, new Entry(value, System.currentTimeMillis() + ttl));
+        if (_generation(port).get() != generation) {
+            // invalidated while we were reading: don't keep the value
+            cache.remove(key);
+        }
+    }
+
+    private void _invalidate(String port) {
+        _generation(port).incrementAndGet();
+        _generation(NODE).incrementAndGet();
+        String suffix = "|" + port;
+        for (String key : cache.keySet()) {
+            if (key.endsWith(suffix)) {
+                cache.remove(key);
+            }
+        }
+        cache.remove("listPorts");
+        invalidations.incrementAndGet();
+
+        if (log.isDebugEnabled()) {
+            log.debug("Invalidated entries for port '" + port + "'");
+        }
+    }
+
+    public void start() throws Exception {
+        siam.start();
+    }
+
+    public long getNodeId() {
+        return siam.getNodeId();
+    }
+
+    public String getNodeInfo() {
+        return siam.getNodeInfo();
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<PortItem> listPorts() throws Exception {
+        if (listPortsTtl <= 0) {
+            return siam.listPorts();
+        }
+        String key = "listPorts";
+        List<PortItem> result = (List<PortItem>) _get(key);
+        if (result == null) {
+            long generation = _generation(NODE).get();
+            result = Collections.unmodifiableList(siam.listPorts());
+            _put(key, NODE, generation, result, listPortsTtl);
+        }
+        return result;
+    }
+
+    public String getPortStatus(String port) throws Exception {
+        return siam.getPortStatus(port);
+    }
+
+    public InstrumentSample getPortLastSample(String port) throws Exception {
+        return siam.getPortLastSample(port);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<String> getPortChannels(String portName) throws Exception {
+        if (portChannelsTtl <= 0) {
+            return siam.getPortChannels(portName);
+        }
+        String key = "getPortChannels|" + portName;
+        List<String> result = (List<String>) _get(key);
+        if (result == null) {
+            long generation = _generation(portName).get();
+            result = Collections.unmodifiableList(siam.getPortChannels(portName));
+            _put(key, portName, generation, result, portChannelsTtl);
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, String> getPortProperties(String port)
+            throws Exception {
+        if (portPropertiesTtl <= 0) {
+            return siam.getPortProperties(port);
+        }
+        String key = "getPortProperties|" + port;
+        Map<String, String> result = (Map<String, String>) _get(key);
+        if (result == null) {
+            long generation = _generation(port).get();
+            result = Collections.unmodifiableMap(siam.getPortProperties(port));
+            _put(key, port, generation, result, portPropertiesTtl);
+        }
+        return result;
+    }
+
+    public Map<String, String> setPortProperties(String port,
+            Map<String, String> params) throws Exception {
+        try {
+            return siam.setPortProperties(port, params);
+        }
+        finally {
+            // even on failure, some of the properties may have been set
+            _invalidate(port);
+        }
+    }
+
+    public String getTurbineName(String portName, String channelName)
+            throws Exception {
+        return siam.getTurbineName(portName, channelName);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+}
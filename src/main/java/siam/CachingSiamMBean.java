@@ -0,0 +1,25 @@
+package siam;
+
+/**
+ * JMX management interface of a {@link CachingSiam}.
+ *
+ * @author carueda
+ */
+public interface CachingSiamMBean {
+
+    /** Number of requests served from the cache */
+    public long getHits();
+
+    /** Number of requests that had to go to the SIAM node */
+    public long getMisses();
+
+    /** Number of port invalidations due to set operations */
+    public long getInvalidations();
+
+    /** Current number of entries, including expired ones not yet replaced */
+    public int getSize();
+
+    /** Removes all entries */
+    public void clear();
+
+}
@@ -0,0 +1,159 @@
+package siam;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link ISiam} decorator that coalesces identical concurrent read
+ * operations ("single-flight"): while a call for a given (operation, port) is
+ * in progress, any other caller requesting the same (operation, port) waits
+ * for and shares the result of that pending call instead of doing its own
+ * round trip to the SIAM node. Once the call completes, the next request
+ * starts a new call.
+ *
+ * <p>
+ * Only the read operations are coalesced; {@link #setPortProperties} and the
+ * rest of the operations are passed through to the underlying object. The
+ * returned lists and maps are unmodifiable since they are shared by all the
+ * callers of a coalesced call.
+ *
+ * @author carueda
+ */
+public class CoalescingSiam implements ISiam {
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescingSiam.class);
+
+    private final ISiam siam;
+
+    /** "operation|port" -> pending call */
+    private final ConcurrentMap<String, FutureTask<?>> inFlight = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    /**
+     * @param siam
+     *            The object to delegate the actual operations to.
+     */
+    public CoalescingSiam(ISiam siam) {
+        this.siam = siam;
+    }
+
+    /**
+     * Runs the given call, or joins the pending one with the same key.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T _call(String key, Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        FutureTask<T> pending = (FutureTask<T>) inFlight.putIfAbsent(key, task);
+        if (pending == null) {
+            // we are the leader: do the actual call
+            try {
+                task.run();
+            }
+            finally {
+                inFlight.remove(key, task);
+            }
+        }
+        else {
+            if (log.isDebugEnabled()) {
+                log.debug("Joining in-flight call: " + key);
+            }
+            task = pending;
+        }
+
+        try {
+            return task.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    private static <T> List<T> _unmodifiable(List<T> list) {
+        return list == null ? null : Collections.unmodifiableList(list);
+    }
+
+    public void start() throws Exception {
+        siam.start();
+    }
+
+    public long getNodeId() {
+        return siam.getNodeId();
+    }
+
+    public String getNodeInfo() {
+        return siam.getNodeInfo();
+    }
+
+    public List<PortItem> listPorts() throws Exception {
+        return _call("listPorts", new Callable<List<PortItem>>() {
+            public List<PortItem> call() throws Exception {
+                return _unmodifiable(siam.listPorts());
+            }
+        });
+    }
+
+    public String getPortStatus(final String port) throws Exception {
+        return _call("getPortStatus|" + port, new Callable<String>() {
+            public String call() throws Exception {
+                return siam.getPortStatus(port);
+            }
+        });
+    }
+
+    public InstrumentSample getPortLastSample(final String port)
+            throws Exception {
+        return _call("getPortLastSample|" + port,
+                new Callable<InstrumentSample>() {
+                    public InstrumentSample call() throws Exception {
+                        return siam.getPortLastSample(port);
+                    }
+                });
+    }
+
+    public List<String> getPortChannels(final String portName)
+            throws Exception {
+        return _call("getPortChannels|" + portName,
+                new Callable<List<String>>() {
+                    public List<String> call() throws Exception {
+                        return _unmodifiable(siam.getPortChannels(portName));
+                    }
+                });
+    }
+
+    public Map<String, String> getPortProperties(final String port)
+            throws Exception {
+        return _call("getPortProperties|" + port,
+                new Callable<Map<String, String>>() {
+                    public Map<String, String> call() throws Exception {
+                        Map<String, String> props = siam.getPortProperties(port);
+                        return props == null ? null
+                                : Collections.unmodifiableMap(props);
+                    }
+                });
+    }
+
+    public Map<String, String> setPortProperties(String port,
+            Map<String, String> params) throws Exception {
+        return siam.setPortProperties(port, params);
+    }
+
+    public String getTurbineName(String portName, String channelName)
+            throws Exception {
+        return siam.getTurbineName(portName, channelName);
+    }
+}
@@ -4,14 +4,23 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.rmi.Naming;
 import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 import java.rmi.server.RMISocketFactory;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.ooici.siamci.utils.WorkerPools;
 
 import org.mbari.siam.distributed.Device;
 import org.mbari.siam.distributed.DeviceNotFound;
@@ -39,6 +48,20 @@ import siam.InstrumentSample.SampleDatum;
  * >the SIAM utility reference</a> for a general description of the operations.
  * 
  * <p>
+ * The {@link Instrument} stub of each port is obtained from the node once and
+ * kept for subsequent operations, so each operation costs a single RMI call
+ * on the instrument. A stub is discarded when a call on it fails with a
+ * {@link RemoteException} (eg., the service was restarted), and it is
+ * refreshed in the background when {@link #listPorts()} shows a different
+ * device on its port.
+ * 
+ * <p>
+ * The {@link PacketParser} of each instrument, which is a serializable
+ * object parsing locally, is also kept with its stub, and obtained again
+ * when the metadata reference of a sample differs from the one of the
+ * sample it was obtained with.
+ * 
+ * <p>
  * Note: this implementation is very preliminary and can certainly be improved;
  * it is just a quick basis for the prototype.
  * 
@@ -100,6 +123,36 @@ public class Siam implements ISiam {
         log.error(sb.toString());
     }
 
+    /** Refreshes the instrument stubs whose device has changed */
+    private static final ExecutorService refreshService = WorkerPools.getPool("siam.refresh",
+            1,
+            64);
+
+    /** An instrument stub, and the ID of its device when it was obtained */
+    private static class CachedInstrument {
+        final Instrument instrument;
+        final long deviceId;
+
+        /** null until a sample is parsed */
+        volatile CachedParser parser;
+
+        CachedInstrument(Instrument instrument, long deviceId) {
+            this.instrument = instrument;
+            this.deviceId = deviceId;
+        }
+    }
+
+    /** A parser, and the metadata reference of the sample it was obtained with */
+    private static class CachedParser {
+        final PacketParser parser;
+        final long metadataRef;
+
+        CachedParser(PacketParser parser, long metadataRef) {
+            this.parser = parser;
+            this.metadataRef = metadataRef;
+        }
+    }
+
     // /////////
     // Instance.
     // /////////
@@ -111,6 +164,9 @@ public class Siam implements ISiam {
     private long nodeId;
     private NodeInfo nodeInfo;
 
+    /** portName -> instrument stub */
+    private final ConcurrentMap<String, CachedInstrument> instruments = new ConcurrentHashMap<String, CachedInstrument>();
+
     /**
      * Creates a point of access to a SIAM node instance. To actually enable the
      * connection, call {@link #start()}.
@@ -154,19 +210,126 @@ public class Siam implements ISiam {
 
     public List<PortItem> listPorts() throws Exception {
         _checkConnection();
-        return new PortLister(node).listPorts();
+        List<PortItem> list = new PortLister(node).listPorts();
+        _checkDevices(list);
+        return list;
+    }
+
+    /**
+     * Discards the cached stubs of the ports no longer listed, and refreshes
+     * in the background those whose device has changed.
+     */
+    private void _checkDevices(List<PortItem> list) {
+        Set<String> listed = new HashSet<String>();
+        for (PortItem pi : list) {
+            listed.add(pi.portName);
+            CachedInstrument cached = instruments.get(pi.portName);
+            if (cached != null && cached.deviceId != pi.deviceId
+                    && instruments.remove(pi.portName, cached)) {
+                log.info("Device on port '" + pi.portName + "' changed: "
+                        + cached.deviceId + " -> " + pi.deviceId);
+                _refreshInstrument(pi.portName);
+            }
+        }
+        for (String portName : instruments.keySet()) {
+            if (!listed.contains(portName)) {
+                instruments.remove(portName);
+                if (log.isDebugEnabled()) {
+                    log.debug("Port '" + portName + "' no longer listed");
+                }
+            }
+        }
+    }
+
+    private void _refreshInstrument(final String portName) {
+        try {
+            refreshService.execute(new Runnable() {
+                public void run() {
+                    try {
+                        CachedInstrument cached = _loadInstrument(portName);
+                        instruments.putIfAbsent(portName, cached);
+                        if (log.isDebugEnabled()) {
+                            log.debug("Refreshed instrument on port '"
+                                    + portName + "'");
+                        }
+                    }
+                    catch (Exception e) {
+                        // obtained again upon the next operation, if possible
+                        log.warn("Cannot refresh instrument on port '"
+                                + portName + "': " + e.getMessage());
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // obtained upon the next operation
+        }
     }
 
     /**
-     * helper
+     * Gets the instrument on the given port, from the cache if available.
      */
     private Instrument _getInstrument(String portName) throws Exception {
+        CachedInstrument cached = instruments.get(portName);
+        if (cached == null) {
+            cached = _loadInstrument(portName);
+            instruments.put(portName, cached);
+        }
+        return cached.instrument;
+    }
+
+    /**
+     * Discards the cached stub, if it is the given one, after a failed call.
+     */
+    private void _invalidate(String portName, Instrument instrument,
+            RemoteException e) {
+        CachedInstrument cached = instruments.get(portName);
+        if (cached != null && cached.instrument == instrument
+                && instruments.remove(portName, cached)) {
+            log.info("Discarded instrument stub for port '" + portName
+                    + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a sample of the instrument on the given port with its parser,
+     * from the cache if still valid for the sample.
+     */
+    private Field[] _parseFields(String portName, Instrument instrument,
+            SensorDataPacket sdp) throws Exception {
+        CachedInstrument cached = instruments.get(portName);
+        if (cached != null && cached.instrument != instrument) {
+            cached = null;
+        }
+        CachedParser cachedParser = cached != null ? cached.parser : null;
+        if (cachedParser == null
+                || cachedParser.metadataRef != sdp.metadataRef()) {
+            cachedParser = new CachedParser(instrument.getParser(),
+                    sdp.metadataRef());
+            if (cached != null) {
+                cached.parser = cachedParser;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Got parser for port '" + portName + "' mdref="
+                        + sdp.metadataRef());
+            }
+        }
+        // a parser instance is not assumed to be thread-safe:
+        synchronized (cachedParser.parser) {
+            return cachedParser.parser.parseFields(sdp);
+        }
+    }
+
+    /**
+     * Obtains the instrument on the given port from the node.
+     */
+    private CachedInstrument _loadInstrument(String portName) throws Exception {
         try {
             Device device = node.getDevice(portName.getBytes());
 
             if (device instanceof Instrument) {
                 Instrument instrument = (Instrument) device;
-                return instrument;
+                return new CachedInstrument(instrument, instrument.getId());
             }
             else {
                 throw new Exception("Device on port " + portName
@@ -187,45 +350,58 @@ public class Siam implements ISiam {
     public String getPortStatus(String port) throws Exception {
         _checkConnection();
         Instrument instrument = _getInstrument(port);
-        return SiamUtils.statusMnem(instrument.getStatus());
+        try {
+            return SiamUtils.statusMnem(instrument.getStatus());
+        }
+        catch (RemoteException e) {
+            _invalidate(port, instrument, e);
+            throw e;
+        }
     }
 
     /**
-     * Adapted from SIAM's GetLastSample
+     * Adapted from SIAM's GetLastSample. The metadata and the data come from
+     * the same sample, fetched once.
      */
     public InstrumentSample getPortLastSample(String portName) throws Exception {
         _checkConnection();
         Instrument instrument = _getInstrument(portName);
-        SensorDataPacket sdp = instrument.getLastSample();
-
-        // get metadata
-        HashMap<String, String> md = new HashMap<String, String>();
-        md.put("parentId", String.valueOf(sdp.getParentId()));
-        md.put("recordType", String.valueOf(sdp.getRecordType()));
-        md.put("systemTime", String.valueOf(sdp.systemTime()));
-        md.put("seqNo", String.valueOf(sdp.sequenceNo()));
-        md.put("mdref", String.valueOf(sdp.metadataRef()));
-        md.put("nBytes", String.valueOf(sdp.dataBuffer().length));
-        md.put("buffer", PrintUtils.getAscii(sdp.dataBuffer(), 0, 0));
-
-        InstrumentSample sample = new InstrumentSample(md);
-
-        // get data
-        SensorDataPacket packet = instrument.getLastSample();
-        PacketParser parser = instrument.getParser();
-        PacketParser.Field[] fields = parser.parseFields(packet);
-        for (int j = 0; j < fields.length; j++) {
-            if (fields[j] == null) {
-                continue;
+        try {
+            SensorDataPacket sdp = instrument.getLastSample();
+
+            // get metadata
+            HashMap<String, String> md = new HashMap<String, String>();
+            md.put("parentId", String.valueOf(sdp.getParentId()));
+            md.put("recordType", String.valueOf(sdp.getRecordType()));
+            md.put("systemTime", String.valueOf(sdp.systemTime()));
+            md.put("seqNo", String.valueOf(sdp.sequenceNo()));
+            md.put("mdref", String.valueOf(sdp.metadataRef()));
+            md.put("nBytes", String.valueOf(sdp.dataBuffer().length));
+            md.put("buffer", PrintUtils.getAscii(sdp.dataBuffer(), 0, 0));
+
+            InstrumentSample sample = new InstrumentSample(md);
+
+            // get data, from the same sample
+            PacketParser.Field[] fields = _parseFields(portName,
+                    instrument,
+                    sdp);
+            for (int j = 0; j < fields.length; j++) {
+                if (fields[j] == null) {
+                    continue;
+                }
+                String name = fields[j].getName();
+                Object value = fields[j].getValue();
+                String units = fields[j].getUnits();
+                SampleDatum datum = new SampleDatum(name, value, units);
+                sample.addDatum(datum);
             }
-            String name = fields[j].getName();
-            Object value = fields[j].getValue();
-            String units = fields[j].getUnits();
-            SampleDatum datum = new SampleDatum(name, value, units);
-            sample.addDatum(datum);
-        }
 
-        return sample;
+            return sample;
+        }
+        catch (RemoteException e) {
+            _invalidate(portName, instrument, e);
+            throw e;
+        }
     }
 
     /**
@@ -238,15 +414,21 @@ public class Siam implements ISiam {
          * the parser.
          */
         Instrument instrument = _getInstrument(portName);
-        SensorDataPacket sdp = instrument.getLastSample();
-        Field[] fields = instrument.getParser().parseFields(sdp);
-        List<String> result = new ArrayList<String>();
-        for (Field field : fields) {
-            String name = field.getName();
-            result.add(name);
-        }
+        try {
+            SensorDataPacket sdp = instrument.getLastSample();
+            Field[] fields = _parseFields(portName, instrument, sdp);
+            List<String> result = new ArrayList<String>();
+            for (Field field : fields) {
+                String name = field.getName();
+                result.add(name);
+            }
 
-        return result;
+            return result;
+        }
+        catch (RemoteException e) {
+            _invalidate(portName, instrument, e);
+            throw e;
+        }
     }
 
     /**
@@ -258,20 +440,25 @@ public class Siam implements ISiam {
         _checkConnection();
 
         Instrument instrument = _getInstrument(portName);
+        try {
+            HashMap<String, String> result = new LinkedHashMap<String, String>();
+            @SuppressWarnings("unchecked")
+            Vector<byte[]> properties = instrument.getProperties();
+            for (int j = 0; j < properties.size(); j++) {
+                byte[] property = properties.elementAt(j);
+                String entry = new String(property);
+                String[] toks = entry.split("=", 2);
+                String key = toks[0].trim();
+                String value = toks.length == 2 ? toks[1].trim() : "??";
+                result.put(key, value);
+            }
 
-        HashMap<String, String> result = new LinkedHashMap<String, String>();
-        @SuppressWarnings("unchecked")
-        Vector<byte[]> properties = instrument.getProperties();
-        for (int j = 0; j < properties.size(); j++) {
-            byte[] property = properties.elementAt(j);
-            String entry = new String(property);
-            String[] toks = entry.split("=", 2);
-            String key = toks[0].trim();
-            String value = toks.length == 2 ? toks[1].trim() : "??";
-            result.put(key, value);
+            return result;
+        }
+        catch (RemoteException e) {
+            _invalidate(portName, instrument, e);
+            throw e;
         }
-
-        return result;
     }
     
     public String getTurbineName(String portName, String channelName) throws Exception {
@@ -319,7 +506,13 @@ public class Siam implements ISiam {
         // TODO: How to (easily) discriminate which properties are actually set
         // and which are not?
         //
-        instrument.setProperty(string.getBytes(), new byte[0]);
+        try {
+            instrument.setProperty(string.getBytes(), new byte[0]);
+        }
+        catch (RemoteException e) {
+            _invalidate(portName, instrument, e);
+            throw e;
+        }
 
         // everything OK. For each param, indicate "OK"
         for (Entry<String, String> e : params.entrySet()) {
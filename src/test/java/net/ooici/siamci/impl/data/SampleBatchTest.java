@@ -0,0 +1,45 @@
+package net.ooici.siamci.impl.data;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link SampleBatch}.
+ * 
+ * @author carueda
+ */
+public class SampleBatchTest extends BaseTestCase {
+
+    @Test
+    public void testAddAndDrain() {
+        SampleBatch batch = new SampleBatch(2);
+        Assert.assertTrue(batch.isEmpty());
+
+        batch.add(new double[] { 1, 2 }, new double[] { 10, 20 });
+        batch.add(new double[] { 3, 4, 5 }, new double[] { 30, 40, 50 });
+        Assert.assertEquals(batch.size(), 5);
+
+        double[][] samples = batch.drain();
+        Assert.assertEquals(samples[0], new double[] { 1, 2, 3, 4, 5 });
+        Assert.assertEquals(samples[1], new double[] { 10, 20, 30, 40, 50 });
+        Assert.assertTrue(batch.isEmpty());
+
+        batch.add(new double[] { 6 }, new double[] { 60 });
+        samples = batch.drain();
+        Assert.assertEquals(samples[0], new double[] { 6 });
+        Assert.assertEquals(samples[1], new double[] { 60 });
+    }
+
+    @Test
+    public void testMissingTimes() {
+        SampleBatch batch = new SampleBatch(4);
+        batch.add(new double[] { 1, 2, 3 }, new double[] { 10 });
+        batch.add(new double[] { 4 }, null);
+
+        double[][] samples = batch.drain();
+        Assert.assertEquals(samples[0], new double[] { 1, 2, 3, 4 });
+        Assert.assertEquals(samples[1], new double[] { 10, 0, 0, 0 });
+    }
+}
@@ -0,0 +1,47 @@
+package net.ooici.siamci.impl.ionmsg;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link ReplyCache}.
+ *
+ * @author carueda
+ */
+public class ReplyCacheTest extends BaseTestCase {
+
+    @Test
+    public void testPendingNotEvicted() {
+        ReplyCache cache = new ReplyCache(2);
+        Assert.assertTrue(cache.start("a"));
+        RequestIntake.Delivery duplicate = new RequestIntake.Delivery(null, 1);
+        Assert.assertTrue(cache.hold("a", duplicate));
+
+        Assert.assertTrue(cache.start("b"));
+        cache.complete("b", new byte[] { 1 });
+        Assert.assertTrue(cache.start("c"));
+        cache.complete("c", new byte[] { 2 });
+
+        // "b" evicted instead of the pending "a":
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertFalse(cache.start("a"));
+        Assert.assertNull(cache.getReply("b"));
+        Assert.assertNotNull(cache.getReply("c"));
+
+        Assert.assertEquals(cache.complete("a", new byte[] { 3 }).size(), 1);
+        Assert.assertNotNull(cache.getReply("a"));
+    }
+
+    @Test
+    public void testOnlyPendingHeld() {
+        ReplyCache cache = new ReplyCache(4);
+        RequestIntake.Delivery duplicate = new RequestIntake.Delivery(null, 1);
+        Assert.assertFalse(cache.hold("a", duplicate));
+        cache.start("a");
+        Assert.assertTrue(cache.hold("a", duplicate));
+        Assert.assertEquals(cache.abort("a").size(), 1);
+        Assert.assertFalse(cache.hold("a", duplicate));
+    }
+}
@@ -0,0 +1,63 @@
+package net.ooici.siamci.utils;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link DeadbandFilter}.
+ *
+ * @author carueda
+ */
+public class DeadbandFilterTest extends BaseTestCase {
+
+    @Test
+    public void testAbsolute() {
+        DeadbandFilter filter = new DeadbandFilter(0.5, 0, 0);
+        Assert.assertTrue(filter.accept(0, 10.0));
+        Assert.assertFalse(filter.accept(1, 10.4));
+        Assert.assertFalse(filter.accept(2, 9.6));
+        Assert.assertTrue(filter.accept(3, 10.6));
+        // the reference is now 10.6:
+        Assert.assertFalse(filter.accept(4, 10.2));
+        Assert.assertTrue(filter.accept(5, 10.0));
+        Assert.assertEquals(filter.getPassedCount(), 3);
+        Assert.assertEquals(filter.getSuppressedCount(), 3);
+    }
+
+    @Test
+    public void testRelative() {
+        DeadbandFilter filter = new DeadbandFilter(0, 0.1, 0);
+        Assert.assertTrue(filter.accept(0, 100));
+        Assert.assertFalse(filter.accept(1, 109));
+        Assert.assertTrue(filter.accept(2, 111));
+        Assert.assertFalse(filter.accept(3, 100.5));
+        Assert.assertTrue(filter.accept(4, 99));
+    }
+
+    @Test
+    public void testHeartbeat() {
+        DeadbandFilter filter = new DeadbandFilter(1, 0, 60);
+        Assert.assertTrue(filter.accept(0, 5));
+        Assert.assertFalse(filter.accept(30, 5));
+        Assert.assertTrue(filter.accept(60, 5));
+        Assert.assertFalse(filter.accept(119, 5));
+        Assert.assertTrue(filter.accept(120, 5));
+    }
+
+    @Test
+    public void testChangeOnly() {
+        DeadbandFilter filter = new DeadbandFilter(0, 0, 0);
+        double[] times = { 1, 2, 3, 4, 5 };
+        double[] values = { 7, 7, 8, 8, 7 };
+        double[] outTimes = new double[5];
+        double[] outValues = new double[5];
+        int n = filter.filter(times, values, 5, outTimes, outValues);
+        Assert.assertEquals(n, 3);
+        Assert.assertEquals(outTimes[0], 1.0, 0);
+        Assert.assertEquals(outTimes[1], 3.0, 0);
+        Assert.assertEquals(outTimes[2], 5.0, 0);
+        Assert.assertEquals(outValues[2], 7.0, 0);
+    }
+}
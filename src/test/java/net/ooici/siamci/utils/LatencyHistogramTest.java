@@ -0,0 +1,47 @@
+package net.ooici.siamci.utils;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link LatencyHistogram}.
+ * 
+ * @author carueda
+ */
+public class LatencyHistogramTest extends BaseTestCase {
+
+    @Test
+    public void testBucketsAreContiguous() {
+        for (long value = 0; value < 1000000; value++) {
+            int index = LatencyHistogram._index(value);
+            Assert.assertTrue(value <= LatencyHistogram._highestValue(index));
+            if (index > 0) {
+                Assert.assertTrue(value > LatencyHistogram._highestValue(index - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.getPercentile(99), 0);
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(histogram.getCount(), 1000);
+        Assert.assertEquals(histogram.getMean(), 500500.0, 0.001);
+        Assert.assertEquals(histogram.getMax(), 1000000);
+
+        // relative error below 1/SUB_BUCKETS
+        double tolerance = 1.0 / LatencyHistogram.SUB_BUCKETS;
+        Assert.assertEquals(histogram.getPercentile(50), 500000, 500000 * tolerance);
+        Assert.assertEquals(histogram.getPercentile(90), 900000, 900000 * tolerance);
+        Assert.assertEquals(histogram.getPercentile(100), 1000000);
+
+        histogram.reset();
+        Assert.assertEquals(histogram.getCount(), 0);
+    }
+}
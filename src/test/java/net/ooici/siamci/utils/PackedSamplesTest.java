@@ -0,0 +1,71 @@
+package net.ooici.siamci.utils;
+
+import java.nio.ByteBuffer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link PackedSamples}.
+ * 
+ * @author carueda
+ */
+public class PackedSamplesTest extends BaseTestCase {
+
+    private static byte[] _bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        double[] values = { 1.5, -2.25, 3e10, 0 };
+        double[] times = { 1300000000.0, 1300000000.25, 1300000001.5, 1300000010.0 };
+        ByteBuffer buffer = PackedSamples.encode(null,
+                PackedSamples.channelBytes("src/val"),
+                values,
+                times,
+                values.length);
+
+        PackedSamples.Samples samples = PackedSamples.decode(_bytes(buffer));
+        Assert.assertEquals(samples.channel, "src/val");
+        Assert.assertEquals(samples.values, values);
+        for (int i = 0; i < times.length; i++) {
+            Assert.assertEquals(samples.times[i], times[i], 1e-6);
+        }
+    }
+
+    @Test
+    public void testAbsoluteTimesAndBufferReuse() {
+        double[] values = { 1, 2, 3 };
+        // offsets beyond the int range in microseconds:
+        double[] times = { 1000.0, 5000.0, 1000000.0 };
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer = PackedSamples.encode(buffer,
+                PackedSamples.channelBytes("ch"),
+                values,
+                times,
+                2);
+
+        PackedSamples.Samples samples = PackedSamples.decode(_bytes(buffer));
+        Assert.assertEquals(samples.values, new double[] { 1, 2 });
+        Assert.assertEquals(samples.times, new double[] { 1000.0, 5000.0 });
+
+        ByteBuffer reused = PackedSamples.encode(buffer,
+                PackedSamples.channelBytes("ch"),
+                values,
+                times,
+                1);
+        Assert.assertSame(reused, buffer);
+        Assert.assertEquals(PackedSamples.decode(_bytes(reused)).values,
+                new double[] { 1 });
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testMalformed() {
+        PackedSamples.decode(new byte[] { 'S', 'P', 1, 0, 0 });
+    }
+}
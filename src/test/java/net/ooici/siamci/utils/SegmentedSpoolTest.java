@@ -0,0 +1,143 @@
+package net.ooici.siamci.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link SegmentedSpool}.
+ *
+ * @author carueda
+ */
+public class SegmentedSpoolTest extends BaseTestCase {
+
+    private File dir;
+
+    @BeforeMethod
+    public void createDir() throws IOException {
+        dir = File.createTempFile("spooltest", "");
+        dir.delete();
+    }
+
+    @AfterMethod
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] _record(int i) {
+        return String.format("record-%02d", i).getBytes();
+    }
+
+    private static String _first(SegmentedSpool spool) {
+        return new String(spool.peek(1).getRecords().get(0));
+    }
+
+    @Test
+    public void testAppendPeekCommit() throws IOException {
+        SegmentedSpool spool = new SegmentedSpool(dir, 64, 1024, 0);
+        Assert.assertTrue(spool.isEmpty());
+
+        // 13 bytes per record: 4 per segment of 64
+        for (int i = 0; i < 10; i++) {
+            spool.append(_record(i));
+        }
+        Assert.assertEquals(spool.size(), 10);
+        Assert.assertEquals(spool.getDiskUsage(), 3 * 64);
+
+        SegmentedSpool.Batch batch = spool.peek(6);
+        List<byte[]> records = batch.getRecords();
+        Assert.assertEquals(records.size(), 6);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(new String(records.get(i)), String.format("record-%02d", i));
+        }
+
+        // peeking does not consume:
+        Assert.assertEquals(_first(spool), "record-00");
+
+        spool.commit(batch, 5);
+        Assert.assertEquals(spool.size(), 5);
+        Assert.assertEquals(_first(spool), "record-05");
+        // the first segment was deleted:
+        Assert.assertEquals(spool.getDiskUsage(), 2 * 64);
+
+        spool.commit(spool.peek(5), 5);
+        Assert.assertTrue(spool.isEmpty());
+        Assert.assertTrue(spool.peek(10).isEmpty());
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        SegmentedSpool spool = new SegmentedSpool(dir, 64, 1024, 0);
+        for (int i = 0; i < 6; i++) {
+            spool.append(_record(i));
+        }
+        spool.commit(spool.peek(2), 2);
+        spool.force();
+
+        SegmentedSpool reopened = new SegmentedSpool(dir, 64, 1024, 0);
+        Assert.assertEquals(reopened.size(), 4);
+        reopened.append(_record(6));
+        List<byte[]> records = reopened.peek(10).getRecords();
+        Assert.assertEquals(records.size(), 5);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(new String(records.get(i)), String.format("record-%02d", i + 2));
+        }
+    }
+
+    @Test
+    public void testBoundedSize() throws IOException {
+        // two segments of 4 records at most
+        SegmentedSpool spool = new SegmentedSpool(dir, 64, 128, 0);
+        for (int i = 0; i < 12; i++) {
+            spool.append(_record(i));
+        }
+        Assert.assertEquals(spool.getDiskUsage(), 128);
+        Assert.assertEquals(spool.getDroppedCount(), 4);
+        Assert.assertEquals(spool.size(), 8);
+        Assert.assertEquals(_first(spool), "record-04");
+    }
+
+    @Test
+    public void testCommitAfterEviction() throws IOException {
+        // two segments of 4 records at most
+        SegmentedSpool spool = new SegmentedSpool(dir, 64, 128, 0);
+        for (int i = 0; i < 8; i++) {
+            spool.append(_record(i));
+        }
+        SegmentedSpool.Batch batch = spool.peek(2);
+
+        // evicts the first segment, with the peeked records:
+        spool.append(_record(8));
+        Assert.assertEquals(spool.getDroppedCount(), 4);
+        Assert.assertEquals(spool.size(), 5);
+
+        // nothing from the next segment is consumed:
+        spool.commit(batch, 2);
+        Assert.assertEquals(spool.size(), 5);
+        Assert.assertEquals(_first(spool), "record-04");
+
+        batch = spool.peek(3);
+        spool.commit(batch, 3);
+        Assert.assertEquals(spool.size(), 2);
+        Assert.assertEquals(_first(spool), "record-07");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRecordTooLarge() throws IOException {
+        SegmentedSpool spool = new SegmentedSpool(dir, 64, 1024, 0);
+        spool.append(new byte[61]);
+    }
+}
@@ -0,0 +1,79 @@
+package net.ooici.siamci.utils;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link SpscRing}.
+ * 
+ * @author carueda
+ */
+public class SpscRingTest extends BaseTestCase {
+
+    @Test
+    public void testOfferAndPoll() {
+        SpscRing<Integer> ring = new SpscRing<Integer>(3);
+        Assert.assertEquals(ring.capacity(), 4);
+        Assert.assertNull(ring.poll());
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(ring.offer(i));
+        }
+        Assert.assertFalse(ring.offer(4));
+        Assert.assertEquals(ring.size(), 4);
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(ring.poll(), Integer.valueOf(i));
+        }
+        Assert.assertNull(ring.poll());
+        Assert.assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void testDropOldest() {
+        SpscRing<Integer> ring = new SpscRing<Integer>(2);
+        ring.offer(0);
+        ring.offer(1);
+        Assert.assertEquals(ring.dropOldest(), Integer.valueOf(0));
+        Assert.assertTrue(ring.offer(2));
+        Assert.assertEquals(ring.poll(), Integer.valueOf(1));
+        Assert.assertEquals(ring.poll(), Integer.valueOf(2));
+        Assert.assertNull(ring.dropOldest());
+    }
+
+    @Test
+    public void testConcurrentDropOldest() throws Exception {
+        final int n = 200000;
+        final SpscRing<Integer> ring = new SpscRing<Integer>(16);
+        final int[] dropped = new int[1];
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < n; i++) {
+                    Integer element = Integer.valueOf(i);
+                    while (!ring.offer(element)) {
+                        if (ring.dropOldest() != null) {
+                            dropped[0]++;
+                        }
+                    }
+                }
+            }
+        };
+        producer.start();
+
+        int taken = 0;
+        int last = -1;
+        while (producer.isAlive() || !ring.isEmpty()) {
+            Integer element = ring.poll();
+            if (element != null) {
+                // strictly increasing: no duplicates, no reordering
+                Assert.assertTrue(element.intValue() > last);
+                last = element.intValue();
+                taken++;
+            }
+        }
+        producer.join();
+        Assert.assertEquals(taken + dropped[0], n);
+    }
+}
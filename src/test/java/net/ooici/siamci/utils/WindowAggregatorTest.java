@@ -0,0 +1,91 @@
+package net.ooici.siamci.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link WindowAggregator}.
+ *
+ * @author carueda
+ */
+public class WindowAggregatorTest extends BaseTestCase {
+
+    /** Collects the windows as {start, end, count, min, max, mean} */
+    private static class Collector implements WindowAggregator.Listener {
+        final List<double[]> windows = new ArrayList<double[]>();
+
+        public void windowClosed(double start, double end, int count,
+                double min, double max, double mean) {
+            windows.add(new double[] { start, end, count, min, max, mean });
+        }
+    }
+
+    @Test
+    public void testTumbling() {
+        WindowAggregator agg = new WindowAggregator(1, 1);
+        Collector c = new Collector();
+
+        agg.add(new double[] { 10.0, 10.5, 10.9, 11.2, 13.1 },
+                new double[] { 1, 3, 2, 5, 7 },
+                5,
+                c);
+
+        // 13.1 closes [10,11) and [11,12); [12,13) is empty
+        Assert.assertEquals(c.windows.size(), 2);
+        Assert.assertEquals(c.windows.get(0), new double[] { 10, 11, 3, 1, 3, 2 });
+        Assert.assertEquals(c.windows.get(1), new double[] { 11, 12, 1, 5, 5, 5 });
+
+        agg.flush(c);
+        Assert.assertEquals(c.windows.size(), 3);
+        Assert.assertEquals(c.windows.get(2), new double[] { 13, 14, 1, 7, 7, 7 });
+    }
+
+    @Test
+    public void testSliding() {
+        // window of 3, emitted every 1
+        WindowAggregator agg = new WindowAggregator(3, 1);
+        Collector c = new Collector();
+
+        agg.add(0.5, 1, c);
+        agg.add(1.5, 2, c);
+        agg.add(2.5, 3, c);
+        agg.add(3.5, 4, c);
+
+        Assert.assertEquals(c.windows.size(), 3);
+        Assert.assertEquals(c.windows.get(0), new double[] { -2, 1, 1, 1, 1, 1 });
+        Assert.assertEquals(c.windows.get(1), new double[] { -1, 2, 2, 1, 2, 1.5 });
+        Assert.assertEquals(c.windows.get(2), new double[] { 0, 3, 3, 1, 3, 2 });
+
+        // a jump ahead closes the windows still containing samples
+        agg.add(10.5, 9, c);
+        Assert.assertEquals(c.windows.size(), 6);
+        Assert.assertEquals(c.windows.get(3), new double[] { 1, 4, 3, 2, 4, 3 });
+        Assert.assertEquals(c.windows.get(4), new double[] { 2, 5, 2, 3, 4, 3.5 });
+        Assert.assertEquals(c.windows.get(5), new double[] { 3, 6, 1, 4, 4, 4 });
+
+        agg.flush(c);
+        Assert.assertEquals(c.windows.get(6), new double[] { 8, 11, 1, 9, 9, 9 });
+    }
+
+    @Test
+    public void testLateSamples() {
+        WindowAggregator agg = new WindowAggregator(1, 1);
+        Collector c = new Collector();
+        agg.add(5.5, 1, c);
+        agg.add(6.5, 2, c);
+        agg.add(5.9, 3, c);
+        Assert.assertEquals(agg.getLateCount(), 1);
+        agg.flush(c);
+        Assert.assertEquals(c.windows.get(1), new double[] { 6, 7, 1, 2, 2, 2 });
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testWindowNotMultipleOfSlide() {
+        new WindowAggregator(2.5, 1);
+    }
+}
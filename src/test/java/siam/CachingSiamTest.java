@@ -0,0 +1,69 @@
+package siam;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link CachingSiam}.
+ * 
+ * @author carueda
+ */
+public class CachingSiamTest extends BaseTestCase {
+
+    /** Counts the calls to getPortProperties */
+    private static class CountingSiam extends FakeSiam {
+        final AtomicInteger calls = new AtomicInteger();
+
+        public Map<String, String> getPortProperties(String port)
+                throws Exception {
+            Map<String, String> props = new HashMap<String, String>();
+            props.put("call", String.valueOf(calls.incrementAndGet()));
+            return props;
+        }
+    }
+
+    @Test
+    public void testHitsAndInvalidation() throws Exception {
+        CountingSiam fake = new CountingSiam();
+        CachingSiam siam = new CachingSiam(fake, 60000, 60000, 60000);
+
+        Assert.assertEquals(siam.getPortProperties("p1").get("call"), "1");
+        Assert.assertEquals(siam.getPortProperties("p1").get("call"), "1");
+        Assert.assertEquals(siam.getPortProperties("p2").get("call"), "2");
+        Assert.assertEquals(siam.getHits(), 1);
+        Assert.assertEquals(siam.getMisses(), 2);
+
+        // set on p1 only invalidates p1
+        siam.setPortProperties("p1", new HashMap<String, String>());
+        Assert.assertEquals(siam.getPortProperties("p1").get("call"), "3");
+        Assert.assertEquals(siam.getPortProperties("p2").get("call"), "2");
+        Assert.assertEquals(siam.getInvalidations(), 1);
+    }
+
+    @Test
+    public void testExpiration() throws Exception {
+        CountingSiam fake = new CountingSiam();
+        CachingSiam siam = new CachingSiam(fake, 0, 0, 50);
+
+        Assert.assertEquals(siam.getPortProperties("p1").get("call"), "1");
+        Thread.sleep(100);
+        Assert.assertEquals(siam.getPortProperties("p1").get("call"), "2");
+    }
+
+    @Test
+    public void testZeroTtlDisablesCaching() throws Exception {
+        CountingSiam fake = new CountingSiam();
+        CachingSiam siam = new CachingSiam(fake, 0, 0, 0);
+
+        siam.getPortProperties("p1");
+        siam.getPortProperties("p1");
+        Assert.assertEquals(fake.calls.get(), 2);
+        Assert.assertEquals(siam.getSize(), 0);
+    }
+}
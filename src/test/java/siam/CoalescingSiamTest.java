@@ -0,0 +1,135 @@
+package siam;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import siamcitest.BaseTestCase;
+
+/**
+ * Tests for {@link CoalescingSiam}.
+ * 
+ * @author carueda
+ */
+public class CoalescingSiamTest extends BaseTestCase {
+
+    /**
+     * A fake ISiam whose getPortStatus blocks until released, and tells when
+     * the expected number of callers have entered the decorator.
+     */
+    private static class BlockingSiam extends FakeSiam {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public String getPortStatus(String port) throws Exception {
+            calls.incrementAndGet();
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "OK-" + port;
+        }
+    }
+
+    @Test
+    public void testConcurrentCallsAreCoalesced() throws Exception {
+        final BlockingSiam fake = new BlockingSiam();
+        final ISiam siam = new CoalescingSiam(fake);
+
+        // the leader, blocked in the underlying call:
+        final List<String> results = new ArrayList<String>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(_startCaller(siam, results, errors));
+        Assert.assertTrue(fake.started.await(5, TimeUnit.SECONDS));
+
+        // the followers, which find the call in flight:
+        final int numFollowers = 9;
+        for (int i = 0; i < numFollowers; i++) {
+            threads.add(_startCaller(siam, results, errors));
+        }
+        // wait until all of them are blocked joining the call
+        for (Thread thread : threads) {
+            _awaitWaiting(thread);
+        }
+
+        fake.release.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+        }
+
+        Assert.assertTrue(errors.isEmpty(), "errors: " + errors);
+        Assert.assertEquals(fake.calls.get(), 1);
+        Assert.assertEquals(results.size(), numFollowers + 1);
+        for (String result : results) {
+            Assert.assertEquals(result, "OK-p1");
+        }
+
+        // a later call goes again to the underlying object
+        Assert.assertEquals(siam.getPortStatus("p1"), "OK-p1");
+        Assert.assertEquals(fake.calls.get(), 2);
+    }
+
+    private static Thread _startCaller(final ISiam siam,
+            final List<String> results, final List<Throwable> errors) {
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    String result = siam.getPortStatus("p1");
+                    synchronized (results) {
+                        results.add(result);
+                    }
+                }
+                catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Waits until the thread is blocked, either in the underlying call or
+     * joining it.
+     */
+    private static void _awaitWaiting(Thread thread)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING
+                && thread.getState() != Thread.State.TIMED_WAITING) {
+            Assert.assertTrue(System.currentTimeMillis() < end,
+                    "caller not blocked: " + thread.getState());
+            Thread.sleep(1);
+        }
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testSharedResultsAreUnmodifiable() throws Exception {
+        ISiam siam = new CoalescingSiam(new FakeSiam());
+        siam.getPortProperties("p1").put("k", "v");
+    }
+
+    @Test
+    public void testExceptionIsPropagated() throws Exception {
+        ISiam siam = new CoalescingSiam(new FakeSiam() {
+            public String getPortStatus(String port) throws Exception {
+                throw new Exception("no such port: " + port);
+            }
+        });
+        try {
+            siam.getPortStatus("p1");
+            Assert.fail("exception expected");
+        }
+        catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "no such port: p1");
+        }
+    }
+}
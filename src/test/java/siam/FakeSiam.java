@@ -0,0 +1,57 @@
+package siam;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A trivial in-memory {@link ISiam} for unit tests of the decorators; tests
+ * override the operations of interest.
+ * 
+ * @author carueda
+ */
+class FakeSiam implements ISiam {
+
+    public void start() throws Exception {
+    }
+
+    public long getNodeId() {
+        return 0;
+    }
+
+    public String getNodeInfo() {
+        return "fake";
+    }
+
+    public List<PortItem> listPorts() throws Exception {
+        return new ArrayList<PortItem>();
+    }
+
+    public String getPortStatus(String port) throws Exception {
+        return "OK";
+    }
+
+    public InstrumentSample getPortLastSample(String port) throws Exception {
+        throw new Exception("not implemented");
+    }
+
+    public List<String> getPortChannels(String portName) throws Exception {
+        return new ArrayList<String>();
+    }
+
+    public Map<String, String> getPortProperties(String port)
+            throws Exception {
+        return new HashMap<String, String>();
+    }
+
+    public Map<String, String> setPortProperties(String port,
+            Map<String, String> params) throws Exception {
+        return new HashMap<String, String>(params);
+    }
+
+    public String getTurbineName(String portName, String channelName)
+            throws Exception {
+        return portName + "-" + channelName;
+    }
+}